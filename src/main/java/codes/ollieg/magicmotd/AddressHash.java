@@ -0,0 +1,56 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * Hashes addresses from all of their bytes.<br>
+ * {@link InetAddress#hashCode()} isn't enough for this on its own: for IPv6 it only looks at some of the bytes, so every
+ * address in a /64 (e.g. a client rotating privacy addresses) gets the same hash. For IPv4 it is the whole address as an
+ * int, so IPv4 addresses are hashed from that without allocating. IPv6 addresses have no accessor that doesn't copy, so
+ * hashing one allocates a copy of its 16 bytes.
+ */
+public final class AddressHash {
+    private AddressHash() {
+    }
+
+
+    /**
+     * Hashes the address with a seed, so the same address hashes differently per seed (e.g. per rotation window).
+     *
+     * @param address the address
+     * @param seed    the seed
+     * @return the hash, with every bit depending on every byte of the address and the seed
+     * @throws IllegalArgumentException if the address is null
+     */
+    public static long hash(@NotNull InetAddress address, long seed) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address cannot be null!");
+        }
+
+        // FNV-1a 64 over the address bytes, starting from the seed
+        long hash = 0xCBF29CE484222325L ^ (seed * 0x9E3779B97F4A7C15L);
+
+        if (address instanceof Inet4Address) {
+            // the hash code of an IPv4 address is its 4 bytes, most significant first, so this matches hashing the bytes
+            int bits = address.hashCode();
+
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                hash ^= (bits >>> shift) & 0xFF;
+                hash *= 0x100000001B3L;
+            }
+        } else {
+            for (byte b : address.getAddress()) {
+                hash ^= b & 0xFF;
+                hash *= 0x100000001B3L;
+            }
+        }
+
+        // the SplitMix64 finaliser, as FNV leaves the last bytes only in the low bits
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,105 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors used for blocking work, such as {@link PlayerDB} lookups and writes for pings and logins.<br>
+ * On Java 21+ each task gets its own virtual thread, so blocking never starves a pool. On older runtimes a bounded
+ * pool of platform threads is used, which rejects tasks once it is saturated, so callers on latency-sensitive threads
+ * (e.g. Netty's for pings) can fall back to something that doesn't block instead of running the task themselves.
+ */
+public final class AsyncExecutors {
+    // the most tasks that can wait for a platform thread before more are rejected
+    private static final int PLATFORM_QUEUE_SIZE = 1024;
+
+    private AsyncExecutors() {
+    }
+
+
+    /**
+     * Creates an executor for blocking work, using virtual threads if the runtime supports them.
+     *
+     * @param name        the prefix of the thread names
+     * @param max_threads the most platform threads to use, if virtual threads aren't supported
+     * @return the executor
+     * @throws IllegalArgumentException if the name is null or the thread count isn't positive
+     */
+    @NotNull
+    public static ExecutorService newExecutor(@NotNull String name, int max_threads) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null!");
+        }
+
+        if (max_threads <= 0) {
+            throw new IllegalArgumentException("Max threads must be positive!");
+        }
+
+        ExecutorService virtual = VirtualThreads.newExecutor(name);
+
+        if (virtual != null) {
+            return virtual;
+        }
+
+        return newPlatformExecutor(name, max_threads);
+    }
+
+    /**
+     * Creates a bounded executor of platform threads. Idle threads are stopped after a minute.<br>
+     * Once saturated, {@link ExecutorService#execute(Runnable)} throws a {@link RejectedExecutionException}.
+     *
+     * @param name        the prefix of the thread names
+     * @param max_threads the most threads to use
+     * @return the executor
+     * @throws IllegalArgumentException if the name is null or the thread count isn't positive
+     */
+    @NotNull
+    public static ExecutorService newPlatformExecutor(@NotNull String name, int max_threads) {
+        return newPlatformExecutor(name, max_threads, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Creates a bounded executor of platform threads, which handles tasks submitted once it is saturated with the given
+     * handler. Idle threads are stopped after a minute.<br>
+     * Tools that want back-pressure rather than rejections (e.g. a replay submitting as fast as it can read) can pass
+     * {@link ThreadPoolExecutor.CallerRunsPolicy}, as long as they never submit from a latency-sensitive thread.
+     *
+     * @param name         the prefix of the thread names
+     * @param max_threads  the most threads to use
+     * @param on_saturated handles tasks submitted while the queue is full
+     * @return the executor
+     * @throws IllegalArgumentException if the name or handler is null, or the thread count isn't positive
+     */
+    @NotNull
+    public static ExecutorService newPlatformExecutor(@NotNull String name, int max_threads, @NotNull RejectedExecutionHandler on_saturated) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null!");
+        }
+
+        if (on_saturated == null) {
+            throw new IllegalArgumentException("Handler cannot be null!");
+        }
+
+        if (max_threads <= 0) {
+            throw new IllegalArgumentException("Max threads must be positive!");
+        }
+
+        AtomicInteger thread_count = new AtomicInteger();
+
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + thread_count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                max_threads, max_threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(PLATFORM_QUEUE_SIZE), factory, on_saturated
+        );
+
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
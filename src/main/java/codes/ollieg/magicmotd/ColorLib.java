@@ -0,0 +1,290 @@
+package codes.ollieg.magicmotd;
+
+import net.md_5.bungee.api.chat.TextComponent;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Expands hex colour and gradient markup into legacy formatting codes.<br>
+ * This is done once when the config is parsed, so the ping path only ever sees plain legacy text. MOTDs that don't
+ * change per ping are also built into components then, see {@link #toComponent}.<br>
+ * <br>
+ * Supported markup:
+ * <ul>
+ *     <li>{@code &#RRGGBB} - a single hex colour</li>
+ *     <li>{@code <gradient:#RRGGBB:#RRGGBB[:#RRGGBB...]>text</gradient>} - a gradient between two or more colours</li>
+ *     <li>{@code <rainbow>text</rainbow>} - a full hue rotation</li>
+ * </ul>
+ * Templates inside a gradient (e.g. %player%) are kept intact and take the colour of their position. Hex colours can't
+ * be used inside a gradient or rainbow, as the gradient colours every character itself.
+ */
+public final class ColorLib {
+    private static final char COLOR_CHAR = '§';
+    private static final String FORMAT_CODES = "klmnoKLMNO";
+    private static final String COLOR_CODES = "0123456789abcdefABCDEF";
+
+    private static final Pattern HEX_REGEX = Pattern.compile("[&§]#([0-9a-fA-F]{6})");
+    private static final Pattern LEGACY_HEX_REGEX = Pattern.compile("§x(?:§[0-9a-fA-F]){6}", Pattern.CASE_INSENSITIVE);
+    private static final Pattern GRADIENT_REGEX = Pattern.compile("<gradient((?::#[0-9a-fA-F]{6})+)>(.*?)</gradient>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private static final Pattern RAINBOW_REGEX = Pattern.compile("<rainbow>(.*?)</rainbow>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    private static final Pattern TEMPLATE_REGEX = Pattern.compile("%[A-Za-z]+%");
+
+    private ColorLib() {
+    }
+
+
+    /**
+     * Converts a colour to the legacy hex colour sequence (§x§R§R§G§G§B§B).
+     *
+     * @param color the colour
+     * @return the legacy hex colour sequence
+     */
+    @NotNull
+    public static String toLegacyHex(@NotNull Color color) {
+        if (color == null) {
+            throw new IllegalArgumentException("Color cannot be null!");
+        }
+
+        String hex = String.format("%06x", color.getRGB() & 0xFFFFFF);
+
+        StringBuilder sb = new StringBuilder(14);
+        sb.append(COLOR_CHAR).append('x');
+
+        for (char c : hex.toCharArray()) {
+            sb.append(COLOR_CHAR).append(c);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Expands all hex colour, gradient and rainbow markup in the message.<br>
+     * Expects {@code &} colour codes to have already been translated to {@code §}.
+     *
+     * @param message the message to expand
+     * @return the message with all markup replaced by legacy formatting codes
+     * @throws IllegalArgumentException if the message is null or contains an unclosed tag
+     */
+    @NotNull
+    public static String expandMarkup(@NotNull String message) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null!");
+        }
+
+        // expand gradients and rainbows first, then any standalone hex colours
+        Matcher gradient_matcher = GRADIENT_REGEX.matcher(message);
+        StringBuffer sb = new StringBuffer();
+
+        while (gradient_matcher.find()) {
+            String[] stop_strings = gradient_matcher.group(1).substring(2).split(":#");
+
+            List<Color> stops = new ArrayList<>(stop_strings.length);
+            for (String stop : stop_strings) {
+                stops.add(new Color(Integer.parseInt(stop, 16)));
+            }
+
+            // a single stop is just a solid colour
+            if (stops.size() == 1) {
+                stops.add(stops.get(0));
+            }
+
+            checkNoHex(gradient_matcher.group(2));
+            gradient_matcher.appendReplacement(sb, Matcher.quoteReplacement(applyGradient(gradient_matcher.group(2), stops, false)));
+        }
+
+        gradient_matcher.appendTail(sb);
+        message = sb.toString();
+
+        Matcher rainbow_matcher = RAINBOW_REGEX.matcher(message);
+        sb = new StringBuffer();
+
+        while (rainbow_matcher.find()) {
+            checkNoHex(rainbow_matcher.group(1));
+            rainbow_matcher.appendReplacement(sb, Matcher.quoteReplacement(applyGradient(rainbow_matcher.group(1), null, true)));
+        }
+
+        rainbow_matcher.appendTail(sb);
+        message = sb.toString();
+
+        // check for any tags that weren't matched
+        String lower = message.toLowerCase();
+        if (lower.contains("<gradient") || lower.contains("</gradient>") || lower.contains("<rainbow>") || lower.contains("</rainbow>")) {
+            throw new IllegalArgumentException("Unclosed or malformed gradient/rainbow tag in \"" + message + "\"");
+        }
+
+        // finally, expand any standalone hex colours
+        Matcher hex_matcher = HEX_REGEX.matcher(message);
+        sb = new StringBuffer();
+
+        while (hex_matcher.find()) {
+            Color color = new Color(Integer.parseInt(hex_matcher.group(1), 16));
+            hex_matcher.appendReplacement(sb, Matcher.quoteReplacement(toLegacyHex(color)));
+        }
+
+        hex_matcher.appendTail(sb);
+
+        return sb.toString();
+    }
+
+    /**
+     * Builds the chat component for legacy text, such as an MOTD expanded by {@link #expandMarkup}.<br>
+     * Gradients become a component per character, so text that doesn't change should be built once and reused.
+     *
+     * @param legacy the legacy text
+     * @return the component
+     * @throws IllegalArgumentException if the text is null
+     */
+    @NotNull
+    public static TextComponent toComponent(@NotNull String legacy) {
+        if (legacy == null) {
+            throw new IllegalArgumentException("Text cannot be null!");
+        }
+
+        return new TextComponent(TextComponent.fromLegacyText(legacy));
+    }
+
+
+    /**
+     * Checks that a gradient body has no hex colours, which would otherwise be coloured character by character.
+     *
+     * @param body the gradient body
+     * @throws IllegalArgumentException if the body has a hex colour
+     */
+    private static void checkNoHex(String body) {
+        if (HEX_REGEX.matcher(body).find() || LEGACY_HEX_REGEX.matcher(body).find()) {
+            throw new IllegalArgumentException("Hex colours can't be used inside a gradient or rainbow, in \"" + body + "\"");
+        }
+    }
+
+    /**
+     * Counts the number of coloured steps in the gradient body.<br>
+     * Each visible character and each template counts as one step. Formatting codes, newlines and centering markers don't.
+     *
+     * @param body the gradient body
+     * @return the number of steps
+     */
+    private static int countSteps(String body) {
+        int steps = 0;
+
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+
+            if (c == COLOR_CHAR && i + 1 < body.length()) {
+                i++;
+            } else if (body.regionMatches(true, i, "%c%", 0, 3)) {
+                i += 2;
+            } else if (c != '\n') {
+                Matcher template_matcher = TEMPLATE_REGEX.matcher(body).region(i, body.length());
+
+                if (c == '%' && template_matcher.lookingAt()) {
+                    i = template_matcher.end() - 1;
+                }
+
+                steps++;
+            }
+        }
+
+        return steps;
+    }
+
+    /**
+     * Interpolates the colour at the position t (0 to 1) between the stops.
+     *
+     * @param stops the colour stops
+     * @param t     the position
+     * @return the interpolated colour
+     */
+    private static Color interpolate(List<Color> stops, float t) {
+        float scaled = t * (stops.size() - 1);
+        int segment = Math.min((int) scaled, stops.size() - 2);
+        float local = scaled - segment;
+
+        Color from = stops.get(segment);
+        Color to = stops.get(segment + 1);
+
+        return new Color(
+                Math.round(from.getRed() + (to.getRed() - from.getRed()) * local),
+                Math.round(from.getGreen() + (to.getGreen() - from.getGreen()) * local),
+                Math.round(from.getBlue() + (to.getBlue() - from.getBlue()) * local)
+        );
+    }
+
+    /**
+     * Colours each step of the body with a hex colour along the gradient.<br>
+     * Formatting codes (bold, italic, etc.) inside the body persist across steps, since each hex colour would otherwise reset them.
+     *
+     * @param body    the gradient body
+     * @param stops   the colour stops (ignored for rainbows)
+     * @param rainbow whether to rotate through all hues rather than interpolating the stops
+     * @return the coloured body
+     */
+    private static String applyGradient(String body, List<Color> stops, boolean rainbow) {
+        int steps = countSteps(body);
+        int step = 0;
+
+        StringBuilder formats = new StringBuilder();
+        StringBuilder sb = new StringBuilder(body.length() * 16);
+
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+
+            // formatting codes are remembered, colour codes are dropped in favour of the gradient
+            if (c == COLOR_CHAR && i + 1 < body.length()) {
+                char code = body.charAt(++i);
+
+                if (FORMAT_CODES.indexOf(code) != -1) {
+                    formats.append(COLOR_CHAR).append(Character.toLowerCase(code));
+                } else if (code == 'r' || code == 'R') {
+                    formats.setLength(0);
+                } else if (COLOR_CODES.indexOf(code) == -1) {
+                    sb.append(c).append(code);
+                }
+
+                continue;
+            }
+
+            // keep newlines and centering markers uncoloured, so centered lines still start with %C%
+            if (c == '\n') {
+                sb.append(c);
+                continue;
+            }
+
+            if (body.regionMatches(true, i, "%c%", 0, 3)) {
+                sb.append(body, i, i + 3);
+                i += 2;
+                continue;
+            }
+
+            float t = steps <= 1 ? 0 : (float) step / (steps - 1);
+            Color color;
+
+            if (rainbow) {
+                // stop just short of a full rotation, so the ends aren't the same colour
+                color = Color.getHSBColor(t * (steps - 1) / steps, 1, 1);
+            } else {
+                color = interpolate(stops, t);
+            }
+
+            sb.append(toLegacyHex(color)).append(formats);
+
+            // templates are kept whole and take a single colour
+            Matcher template_matcher = TEMPLATE_REGEX.matcher(body).region(i, body.length());
+
+            if (c == '%' && template_matcher.lookingAt()) {
+                sb.append(template_matcher.group());
+                i = template_matcher.end() - 1;
+            } else {
+                sb.append(c);
+            }
+
+            step++;
+        }
+
+        return sb.toString();
+    }
+}
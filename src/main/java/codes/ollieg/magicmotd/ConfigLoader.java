@@ -1,14 +1,25 @@
 package codes.ollieg.magicmotd;
 
+import codes.ollieg.magicmotd.profiling.ConfigEvent;
+import codes.ollieg.magicmotd.profiling.Profiling;
 import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.chat.TextComponent;
 import net.md_5.bungee.config.Configuration;
 import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,7 +28,25 @@ import java.util.regex.Pattern;
  */
 public class ConfigLoader {
     private final MagicMOTD plugin;
-    private Configuration config;
+    private volatile Configuration config;
+    private final List<Runnable> parse_listeners = new CopyOnWriteArrayList<>();
+
+    // the entries read from each catalog file, kept so unchanged files aren't parsed again on reload
+    // only used while reloading, which is synchronized
+    private final Map<String, CatalogFile> catalog_files = new HashMap<>();
+
+    /**
+     * The entries read from a catalog file, with a hash of its contents to tell whether it has changed since.
+     */
+    private static final class CatalogFile {
+        private final byte[] hash;
+        private final List<byte[]> entries;
+
+        private CatalogFile(byte[] hash, List<byte[]> entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+    }
 
 
     /**
@@ -100,12 +129,33 @@ public class ConfigLoader {
 
 
     /**
-     * (Re)loads the config file into memory.
+     * (Re)loads the config file into memory.<br>
+     * Reloads are run one at a time, so concurrent reloads can't mix their configs.
      *
      * @param parse whether to parse the config or not (uses {@link #parseConfig()})
      * @return true if successful, false otherwise
      */
-    public boolean reloadConfig(boolean parse) {
+    public synchronized boolean reloadConfig(boolean parse) {
+        ConfigEvent config_event = Profiling.JFR_AVAILABLE ? ConfigEvent.start("reloadConfig") : null;
+        boolean success = false;
+
+        try {
+            success = loadConfig(parse);
+            return success;
+        } finally {
+            if (config_event != null) {
+                config_event.finish(this.parsed_config.getMOTDs().size(), success);
+            }
+        }
+    }
+
+    /**
+     * Loads the config file into memory, see {@link #reloadConfig(boolean)}.
+     *
+     * @param parse whether to parse the config or not
+     * @return true if successful, false otherwise
+     */
+    private boolean loadConfig(boolean parse) {
         try {
             saveDefaultConfig();
         } catch (IOException e) {
@@ -153,6 +203,22 @@ public class ConfigLoader {
     }
 
 
+    /**
+     * Adds a listener that is run each time the config is successfully parsed.<br>
+     * Used to rebuild anything derived from the {@link ParsedConfig parsed config}.
+     *
+     * @param listener the listener
+     * @throws IllegalArgumentException if the listener is null
+     */
+    public void addParseListener(@NotNull Runnable listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null!");
+        }
+
+        this.parse_listeners.add(listener);
+    }
+
+
     /**
      * Gets the config as a {@link Configuration}.
      *
@@ -165,16 +231,92 @@ public class ConfigLoader {
 
 
     private static final String FALLBACK_DEFAULT_PLAYER_NAME = "player";
+    private static final long FALLBACK_STATS_FLUSH_INTERVAL = 60;
+    private static final long FALLBACK_STATS_ATTRIBUTION_WINDOW = 600;
+    private static final long FALLBACK_BREAKER_MAX_LATENCY = 250;
+    private static final double FALLBACK_BREAKER_MAX_ERROR_RATE = 0.5;
+    private static final long FALLBACK_BREAKER_PROBE_INTERVAL = 5;
+    private static final long FALLBACK_KNOWN_IPS_REBUILD_INTERVAL = 600;
+    private static final int FALLBACK_IPV4_KEY_PREFIX = 32;
+    private static final int FALLBACK_IPV6_KEY_PREFIX = 128;
+    private static final int FALLBACK_BACKUP_KEEP = 7;
+    private static final long FALLBACK_BACKUP_MAX_RATE = 1024;
+    private static final int FALLBACK_COMPACT_TIME = 2000;
+    private static final String FALLBACK_CATALOG_FOLDER = "motds";
+    private static final int FALLBACK_CATALOG_CACHE_SIZE = 512;
+    private static final int FALLBACK_ASYNC_THREADS = 16;
+    private static final int FALLBACK_DB_POOL_SIZE = 10;
+    private static final long FALLBACK_DB_POOL_TIMEOUT = 30;
+    private static final long FALLBACK_NETWORK_COUNTER_INTERVAL = 5;
+    private static final long FALLBACK_PING_RECORDING_MAX_SIZE = 100;
+    private static final long FALLBACK_STICKY_MOTD_WINDOW = 0;
+    private static final int FALLBACK_PRE_RENDER_CACHE_SIZE = 4096;
+    private static final long FALLBACK_SURGE_THRESHOLD = 0;
+
+    /**
+     * The ID of the default address target group, used by untargeted MOTDs and unmatched addresses.
+     */
+    public static final int DEFAULT_GROUP = 0;
+    private static final String DEFAULT_GROUP_NAME = "default";
 
     /**
      * Represents a parsed configuration.
      */
     public static class ParsedConfig {
+        // numbers each parsed config, so caches can tell which config they were built from without holding on to it
+        private static final AtomicLong NEXT_GENERATION = new AtomicLong();
+
+        private final long generation = NEXT_GENERATION.incrementAndGet();
         private String default_player_name = FALLBACK_DEFAULT_PLAYER_NAME;
         private List<String> motds = new ArrayList<>();
+        private TextComponent[] descriptions = new TextComponent[0];
+        private Map<Integer, MOTDSchedule> schedules = new HashMap<>();
+        private List<String> groups = new ArrayList<>(Collections.singletonList(DEFAULT_GROUP_NAME));
+        private Map<Integer, Integer> motd_groups = new HashMap<>();
+        private PrefixTrie address_targets = new PrefixTrie();
+        private HostTable virtual_hosts = new HostTable();
+        private long stats_flush_interval = FALLBACK_STATS_FLUSH_INTERVAL;
+        private long stats_attribution_window = FALLBACK_STATS_ATTRIBUTION_WINDOW;
+        private long breaker_max_latency = FALLBACK_BREAKER_MAX_LATENCY;
+        private double breaker_max_error_rate = FALLBACK_BREAKER_MAX_ERROR_RATE;
+        private long breaker_probe_interval = FALLBACK_BREAKER_PROBE_INTERVAL;
+        private long known_ips_rebuild_interval = FALLBACK_KNOWN_IPS_REBUILD_INTERVAL;
+        private int ipv4_key_prefix = FALLBACK_IPV4_KEY_PREFIX;
+        private int ipv6_key_prefix = FALLBACK_IPV6_KEY_PREFIX;
+        private MOTDSchedule maintenance_window = null;
+        private int backup_keep = FALLBACK_BACKUP_KEEP;
+        private long backup_max_rate = FALLBACK_BACKUP_MAX_RATE;
+        private int compact_time = FALLBACK_COMPACT_TIME;
+        private int async_threads = FALLBACK_ASYNC_THREADS;
+        private int db_pool_size = FALLBACK_DB_POOL_SIZE;
+        private long db_pool_timeout = FALLBACK_DB_POOL_TIMEOUT;
+        private String network_counter_url = null;
+        private String network_counter_user = "";
+        private String network_counter_password = "";
+        private String network_counter_id = null;
+        private long network_counter_interval = FALLBACK_NETWORK_COUNTER_INTERVAL;
+        private boolean ping_recording = false;
+        private long ping_recording_max_size = FALLBACK_PING_RECORDING_MAX_SIZE;
+        private boolean diagnostic_commands = false;
+        private long sticky_motd_window = FALLBACK_STICKY_MOTD_WINDOW;
+        private int pre_render_cache_size = FALLBACK_PRE_RENDER_CACHE_SIZE;
+        private long surge_threshold = FALLBACK_SURGE_THRESHOLD;
+        private long surge_exit_threshold = FALLBACK_SURGE_THRESHOLD;
+        private String surge_motd = null;
+        private TextComponent surge_description = null;
         private Map<String, String> messages = new HashMap<>();
 
 
+        /**
+         * Gets the generation of this parsed config, which is higher for each config parsed after it.
+         *
+         * @return the generation
+         */
+        public long getGeneration() {
+            return this.generation;
+        }
+
+
         /**
          * Gets the default player name.
          *
@@ -224,223 +366,1440 @@ public class ConfigLoader {
             this.motds = motds;
         }
 
-
         /**
-         * Gets the message with the given key, returning the key if it doesn't exist.
+         * Gets the ping response description of the MOTD at the index, if it was built when the config was parsed.<br>
+         * Only config MOTDs that don't use %player%, %online% or %max% are built ahead of time, as the rest change per ping.
+         * The description is shared by every ping, so must not be modified: responses are given a
+         * {@link TextComponent#duplicate() copy} of it, as other plugins can modify the response.
          *
-         * @param key the key
-         * @return the message
-         * @throws IllegalArgumentException if the key is null
+         * @param index the index of the MOTD
+         * @return the description, or null if it is built when pinged
          */
-        @NotNull
-        public String getMessage(@NotNull String key) {
-            if (key == null) {
-                throw new IllegalArgumentException("Key cannot be null!");
-            }
-
-            if (this.messages.containsKey(key)) {
-                return this.messages.get(key);
-            } else {
-                return key;
-            }
+        @Nullable
+        public TextComponent getDescription(int index) {
+            return index >= 0 && index < this.descriptions.length ? this.descriptions[index] : null;
         }
 
         /**
-         * Inserts the message with the given key.
+         * Replaces the descriptions built ahead of time.
          *
-         * @param key     the key
-         * @param message the message
-         * @throws IllegalArgumentException if the key or message is null
+         * @param descriptions the descriptions by MOTD index, with null for MOTDs that are built when pinged
+         * @throws IllegalArgumentException if the descriptions are null
          */
-        public void insertMessage(@NotNull String key, @NotNull String message) {
-            if (key == null) {
-                throw new IllegalArgumentException("Key cannot be null!");
+        public void replaceDescriptions(@NotNull TextComponent[] descriptions) {
+            if (descriptions == null) {
+                throw new IllegalArgumentException("Descriptions cannot be null!");
             }
 
-            if (message == null) {
-                throw new IllegalArgumentException("Message cannot be null!");
-            }
+            this.descriptions = descriptions;
+        }
 
-            this.messages.put(key, message);
+
+        /**
+         * Gets the schedules of the scheduled MOTDs, keyed by MOTD index.<br>
+         * MOTDs without a schedule are always active.
+         *
+         * @return the schedules
+         */
+        @NotNull
+        public Map<Integer, MOTDSchedule> getSchedules() {
+            return this.schedules;
         }
 
         /**
-         * Replaces the messages with the given map.
+         * Replaces the schedules with the given map.
          *
-         * @param messages the messages
-         * @throws IllegalArgumentException if the messages are null
+         * @param schedules the schedules, keyed by MOTD index
+         * @throws IllegalArgumentException if the schedules are null
          */
-        public void replaceMessages(@NotNull Map<String, String> messages) {
-            if (messages == null) {
-                throw new IllegalArgumentException("Messages cannot be null!");
+        public void replaceSchedules(@NotNull Map<Integer, MOTDSchedule> schedules) {
+            if (schedules == null) {
+                throw new IllegalArgumentException("Schedules cannot be null!");
             }
 
-            this.messages = messages;
+            this.schedules = schedules;
         }
-    }
 
-    private boolean is_parsed = false;
-    private final ParsedConfig parsed_config = new ParsedConfig();
 
-    /**
-     * Gets the {@link ParsedConfig parsed config}.
-     *
-     * @return the {@link ParsedConfig parsed config}
-     * @throws IllegalStateException if the config has not been parsed yet
-     */
-    @NotNull
-    public ParsedConfig getParsedConfig() {
-        if (!this.is_parsed) {
-            throw new IllegalStateException("Config has not been parsed yet!");
+        /**
+         * Gets the names of the address target groups.<br>
+         * The position in the list is the group's ID. The first group is always the default group, used by untargeted MOTDs.
+         *
+         * @return the group names
+         */
+        @NotNull
+        public List<String> getGroups() {
+            return this.groups;
         }
 
-        return this.parsed_config;
-    }
-
-
-    private final List<String> KNOWN_TEMPLATES = Arrays.asList("player", "online", "max", "ping", "c");
-    private final Pattern TEMPLATE_REGEX = Pattern.compile("(?<!\\\\)(?:\\\\{2})*%(?:(?<!\\\\)(?:\\\\{2})*\\\\%|[^%])+(?<!\\\\)(?:\\\\{2})*%");
-    private final Pattern BETWEEN_PERCENT_REGEX = Pattern.compile("%(.*?)%");
-
+        /**
+         * Replaces the group names with the given list.
+         *
+         * @param groups the group names, starting with the default group
+         * @throws IllegalArgumentException if the groups are null or empty
+         */
+        public void replaceGroups(@NotNull List<String> groups) {
+            if (groups == null || groups.isEmpty()) {
+                throw new IllegalArgumentException("Groups cannot be null or empty!");
+            }
 
-    /**
-     * Checks all templates in the message for validity.
-     *
-     * @param message the message to check
-     * @return true if all templates are valid, false otherwise
-     * @throws IllegalArgumentException if the message is null
-     */
-    public boolean validateTemplates(@NotNull String message) {
-        if (message == null) {
-            throw new IllegalArgumentException("Message cannot be null!");
+            this.groups = groups;
         }
 
-        // check each template found in the string for its existence
-        Matcher template_matcher = TEMPLATE_REGEX.matcher(message);
-
-        while (template_matcher.find()) {
-            String match = template_matcher.group(0);
-
-            // refine the match down to the content between the percent signs
-            Matcher between_percent_matcher = BETWEEN_PERCENT_REGEX.matcher(match);
+        /**
+         * Gets the group IDs of the targeted MOTDs, keyed by MOTD index.<br>
+         * MOTDs not in the map belong to the default group.
+         *
+         * @return the MOTD groups
+         */
+        @NotNull
+        public Map<Integer, Integer> getMOTDGroups() {
+            return this.motd_groups;
+        }
 
-            if (between_percent_matcher.find()) {
-                match = between_percent_matcher.group(1);
-            } else {
-                return false;
+        /**
+         * Replaces the MOTD groups with the given map.
+         *
+         * @param motd_groups the group IDs, keyed by MOTD index
+         * @throws IllegalArgumentException if the MOTD groups are null
+         */
+        public void replaceMOTDGroups(@NotNull Map<Integer, Integer> motd_groups) {
+            if (motd_groups == null) {
+                throw new IllegalArgumentException("MOTD groups cannot be null!");
             }
 
+            this.motd_groups = motd_groups;
+        }
 
-            if (!KNOWN_TEMPLATES.contains(match.toLowerCase())) {
-                return false;
-            }
+        /**
+         * Gets the trie of address ranges to group IDs.
+         *
+         * @return the address targets
+         */
+        @NotNull
+        public PrefixTrie getAddressTargets() {
+            return this.address_targets;
         }
 
-        return true;
-    }
+        /**
+         * Replaces the address targets with the given trie.
+         *
+         * @param address_targets the trie of address ranges to group IDs
+         * @throws IllegalArgumentException if the address targets are null
+         */
+        public void replaceAddressTargets(@NotNull PrefixTrie address_targets) {
+            if (address_targets == null) {
+                throw new IllegalArgumentException("Address targets cannot be null!");
+            }
 
-    /**
-     * Substitutes all templates in the message with the given values.
-     *
-     * @param message        The message to substitute
-     * @param player_name    The player name
-     * @param online_players The number of online players
-     * @param max_players    The maximum number of players
-     * @return The substituted message
-     */
-    public String substituteTemplates(@NotNull String message, @NotNull String player_name, int online_players, int max_players) {
-        if (message == null) {
-            throw new IllegalArgumentException("Message cannot be null!");
+            this.address_targets = address_targets;
         }
 
-        if (player_name == null) {
-            throw new IllegalArgumentException("Player name cannot be null!");
+        /**
+         * Gets the table of virtual hosts to group IDs.
+         *
+         * @return the virtual hosts
+         */
+        @NotNull
+        public HostTable getVirtualHosts() {
+            return this.virtual_hosts;
         }
 
+        /**
+         * Replaces the virtual hosts with the given table.
+         *
+         * @param virtual_hosts the table of virtual hosts to group IDs
+         * @throws IllegalArgumentException if the virtual hosts are null
+         */
+        public void replaceVirtualHosts(@NotNull HostTable virtual_hosts) {
+            if (virtual_hosts == null) {
+                throw new IllegalArgumentException("Virtual hosts cannot be null!");
+            }
 
-        Matcher template_matcher = TEMPLATE_REGEX.matcher(message);
-
-        while (template_matcher.find()) {
-            String full_match = template_matcher.group(0);
+            this.virtual_hosts = virtual_hosts;
+        }
 
-            // refine the match down to the content between the percent signs
-            Matcher between_percent_matcher = BETWEEN_PERCENT_REGEX.matcher(full_match);
 
-            String template;
-            if (between_percent_matcher.find()) {
-                template = between_percent_matcher.group(1);
-            } else {
-                continue;
-            }
+        /**
+         * Gets how often the MOTD stats are flushed to the database.
+         *
+         * @return the flush interval in seconds
+         */
+        public long getStatsFlushInterval() {
+            return this.stats_flush_interval;
+        }
 
-            if (!KNOWN_TEMPLATES.contains(template.toLowerCase())) {
-                continue;
+        /**
+         * Sets how often the MOTD stats are flushed to the database.
+         *
+         * @param stats_flush_interval the flush interval in seconds
+         * @throws IllegalArgumentException if the interval is not positive
+         */
+        public void setStatsFlushInterval(long stats_flush_interval) {
+            if (stats_flush_interval <= 0) {
+                throw new IllegalArgumentException("Stats flush interval must be positive!");
             }
 
-            switch (template) {
-                case "player":
-                    message = message.replace(full_match, player_name);
-                    break;
-                case "online":
-                    message = message.replace(full_match, String.valueOf(online_players));
-                    break;
-                case "max":
-                    message = message.replace(full_match, String.valueOf(max_players));
-                    break;
-            }
+            this.stats_flush_interval = stats_flush_interval;
         }
 
-        return message;
-    }
+        /**
+         * Gets how long after a ping a login from the same address is attributed to the MOTD it was shown.
+         *
+         * @return the attribution window in seconds
+         */
+        public long getStatsAttributionWindow() {
+            return this.stats_attribution_window;
+        }
 
+        /**
+         * Sets how long after a ping a login from the same address is attributed to the MOTD it was shown.
+         *
+         * @param stats_attribution_window the attribution window in seconds
+         * @throws IllegalArgumentException if the window is not positive
+         */
+        public void setStatsAttributionWindow(long stats_attribution_window) {
+            if (stats_attribution_window <= 0) {
+                throw new IllegalArgumentException("Stats attribution window must be positive!");
+            }
 
-    /**
-     * Parses the config for use by the plugin.
-     *
-     * @throws RuntimeException if the config is invalid
-     */
-    public void parseConfig() {
-        this.is_parsed = false;
+            this.stats_attribution_window = stats_attribution_window;
+        }
 
-        // get the default player name
-        String default_player_name = this.config.getString("default_player_name");
 
-        if (default_player_name == null) {
-            this.plugin.getLogger().warning("Default player name not found in config, using \"" + FALLBACK_DEFAULT_PLAYER_NAME + "\" instead!");
-        } else {
-            this.parsed_config.setDefaultPlayerName(default_player_name);
+        /**
+         * Gets the average database latency above which the circuit breaker opens.
+         *
+         * @return the maximum latency in milliseconds
+         */
+        public long getBreakerMaxLatency() {
+            return this.breaker_max_latency;
         }
 
+        /**
+         * Sets the average database latency above which the circuit breaker opens.
+         *
+         * @param breaker_max_latency the maximum latency in milliseconds
+         * @throws IllegalArgumentException if the latency is not positive
+         */
+        public void setBreakerMaxLatency(long breaker_max_latency) {
+            if (breaker_max_latency <= 0) {
+                throw new IllegalArgumentException("Breaker max latency must be positive!");
+            }
 
-        if (!this.config.contains("motds")) {
-            throw new RuntimeException("motds not found or invalid in config! Please make sure it is a list of strings (with a - on each line), or a single string.");
+            this.breaker_max_latency = breaker_max_latency;
         }
 
-        if (!this.config.contains("messages")) {
-            throw new RuntimeException("messages not found or invalid in config! Try reverting the section back to the default config, found here: https://raw.githubusercontent.com/obfuscatedgenerated/MagicMOTD/main/src/main/resources/config.yml");
+        /**
+         * Gets the database error rate above which the circuit breaker opens.
+         *
+         * @return the maximum error rate, from 0 to 1
+         */
+        public double getBreakerMaxErrorRate() {
+            return this.breaker_max_error_rate;
         }
 
-        // load each motd and validate templates
-        List<String> motds = this.config.getStringList("motds");
-
-        // if string list has length of 0, try interpreting it as a single string
-        if (motds.size() == 0) {
-            String motd = this.config.getString("motds");
-
-            if (motd == null) {
-                throw new RuntimeException("motds not found or invalid in config! Please make sure it is a list of strings (with a - on each line), or a single string.");
+        /**
+         * Sets the database error rate above which the circuit breaker opens.
+         *
+         * @param breaker_max_error_rate the maximum error rate, from 0 to 1
+         * @throws IllegalArgumentException if the error rate is not between 0 and 1
+         */
+        public void setBreakerMaxErrorRate(double breaker_max_error_rate) {
+            if (breaker_max_error_rate < 0 || breaker_max_error_rate > 1) {
+                throw new IllegalArgumentException("Breaker max error rate must be between 0 and 1!");
             }
 
-            motds = Collections.singletonList(motd);
+            this.breaker_max_error_rate = breaker_max_error_rate;
         }
 
-        // erase the motds list
-        this.parsed_config.getMOTDs().clear();
+        /**
+         * Gets how often the circuit breaker probes the database while open.
+         *
+         * @return the probe interval in seconds
+         */
+        public long getBreakerProbeInterval() {
+            return this.breaker_probe_interval;
+        }
 
-        for (String motd : motds) {
-            // check if the motd is empty
-            if (motd.isEmpty()) {
-                throw new RuntimeException("Empty or invalid message found in config! MOTD: \"" + motd + "\"");
+        /**
+         * Sets how often the circuit breaker probes the database while open.
+         *
+         * @param breaker_probe_interval the probe interval in seconds
+         * @throws IllegalArgumentException if the interval is not positive
+         */
+        public void setBreakerProbeInterval(long breaker_probe_interval) {
+            if (breaker_probe_interval <= 0) {
+                throw new IllegalArgumentException("Breaker probe interval must be positive!");
+            }
+
+            this.breaker_probe_interval = breaker_probe_interval;
+        }
+
+
+        /**
+         * Gets how often the known IP filter is checked for deleted IPs, and rebuilt if there are any.
+         *
+         * @return the rebuild interval in seconds
+         */
+        public long getKnownIPsRebuildInterval() {
+            return this.known_ips_rebuild_interval;
+        }
+
+        /**
+         * Sets how often the known IP filter is checked for deleted IPs, and rebuilt if there are any.
+         *
+         * @param known_ips_rebuild_interval the rebuild interval in seconds
+         * @throws IllegalArgumentException if the interval is not positive
+         */
+        public void setKnownIPsRebuildInterval(long known_ips_rebuild_interval) {
+            if (known_ips_rebuild_interval <= 0) {
+                throw new IllegalArgumentException("Known IPs rebuild interval must be positive!");
+            }
+
+            this.known_ips_rebuild_interval = known_ips_rebuild_interval;
+        }
+
+
+        /**
+         * Gets the prefix length IPv4 addresses are grouped by in the player database.
+         *
+         * @return the prefix length, which is 32 if addresses aren't grouped
+         */
+        public int getIPv4KeyPrefix() {
+            return this.ipv4_key_prefix;
+        }
+
+        /**
+         * Gets the prefix length IPv6 addresses are grouped by in the player database.
+         *
+         * @return the prefix length, which is 128 if addresses aren't grouped
+         */
+        public int getIPv6KeyPrefix() {
+            return this.ipv6_key_prefix;
+        }
+
+        /**
+         * Sets the prefix lengths addresses are grouped by in the player database.
+         *
+         * @param ipv4_key_prefix the IPv4 prefix length, or 32 to not group IPv4 addresses
+         * @param ipv6_key_prefix the IPv6 prefix length, or 128 to not group IPv6 addresses
+         * @throws IllegalArgumentException if either prefix length is out of range
+         */
+        public void setKeyPrefixes(int ipv4_key_prefix, int ipv6_key_prefix) {
+            if (ipv4_key_prefix < 1 || ipv4_key_prefix > 32) {
+                throw new IllegalArgumentException("IPv4 key prefix must be between 1 and 32!");
+            }
+
+            if (ipv6_key_prefix < 1 || ipv6_key_prefix > 128) {
+                throw new IllegalArgumentException("IPv6 key prefix must be between 1 and 128!");
+            }
+
+            this.ipv4_key_prefix = ipv4_key_prefix;
+            this.ipv6_key_prefix = ipv6_key_prefix;
+        }
+
+
+        /**
+         * Gets the daily window during which the database is backed up.
+         *
+         * @return the maintenance window, or null if maintenance is disabled
+         */
+        @Nullable
+        public MOTDSchedule getMaintenanceWindow() {
+            return this.maintenance_window;
+        }
+
+        /**
+         * Sets the daily window during which the database is backed up.
+         *
+         * @param maintenance_window the maintenance window, or null to disable maintenance
+         */
+        public void setMaintenanceWindow(@Nullable MOTDSchedule maintenance_window) {
+            this.maintenance_window = maintenance_window;
+        }
+
+        /**
+         * Gets how many database backups are kept.
+         *
+         * @return the number of backups, or 0 if backups are disabled
+         */
+        public int getBackupKeep() {
+            return this.backup_keep;
+        }
+
+        /**
+         * Sets how many database backups are kept.
+         *
+         * @param backup_keep the number of backups, or 0 to disable backups
+         * @throws IllegalArgumentException if the number is negative
+         */
+        public void setBackupKeep(int backup_keep) {
+            if (backup_keep < 0) {
+                throw new IllegalArgumentException("Backup keep cannot be negative!");
+            }
+
+            this.backup_keep = backup_keep;
+        }
+
+        /**
+         * Gets the most a backup may write per second.
+         *
+         * @return the rate in KiB per second, or 0 for no limit
+         */
+        public long getBackupMaxRate() {
+            return this.backup_max_rate;
+        }
+
+        /**
+         * Sets the most a backup may write per second.
+         *
+         * @param backup_max_rate the rate in KiB per second, or 0 for no limit
+         * @throws IllegalArgumentException if the rate is negative
+         */
+        public void setBackupMaxRate(long backup_max_rate) {
+            if (backup_max_rate < 0) {
+                throw new IllegalArgumentException("Backup max rate cannot be negative!");
+            }
+
+            this.backup_max_rate = backup_max_rate;
+        }
+
+        /**
+         * Gets the most time H2 may spend shrinking the database file when the database closes.
+         *
+         * @return the time in milliseconds, or 0 to never shrink it
+         */
+        public int getCompactTime() {
+            return this.compact_time;
+        }
+
+        /**
+         * Sets the most time H2 may spend shrinking the database file when the database closes.
+         *
+         * @param compact_time the time in milliseconds, or 0 to never shrink it
+         * @throws IllegalArgumentException if the time is negative
+         */
+        public void setCompactTime(int compact_time) {
+            if (compact_time < 0) {
+                throw new IllegalArgumentException("Compact time cannot be negative!");
+            }
+
+            this.compact_time = compact_time;
+        }
+
+
+        /**
+         * Gets the most platform threads used for blocking database work, on runtimes without virtual threads.
+         *
+         * @return the number of threads
+         */
+        public int getAsyncThreads() {
+            return this.async_threads;
+        }
+
+        /**
+         * Sets the most platform threads used for blocking database work, on runtimes without virtual threads.
+         *
+         * @param async_threads the number of threads
+         * @throws IllegalArgumentException if the number is not positive
+         */
+        public void setAsyncThreads(int async_threads) {
+            if (async_threads <= 0) {
+                throw new IllegalArgumentException("Async threads must be positive!");
+            }
+
+            this.async_threads = async_threads;
+        }
+
+        /**
+         * Gets the most database connections to have open at once, see {@link DBConnectionPool}.
+         *
+         * @return the number of connections
+         */
+        public int getDBPoolSize() {
+            return this.db_pool_size;
+        }
+
+        /**
+         * Sets the most database connections to have open at once, see {@link DBConnectionPool}.
+         *
+         * @param db_pool_size the number of connections
+         * @throws IllegalArgumentException if the number is not positive
+         */
+        public void setDBPoolSize(int db_pool_size) {
+            if (db_pool_size <= 0) {
+                throw new IllegalArgumentException("Database pool size must be positive!");
+            }
+
+            this.db_pool_size = db_pool_size;
+        }
+
+        /**
+         * Gets the longest to wait for a database connection when they are all in use.
+         *
+         * @return the timeout in seconds
+         */
+        public long getDBPoolTimeout() {
+            return this.db_pool_timeout;
+        }
+
+        /**
+         * Sets the longest to wait for a database connection when they are all in use.
+         *
+         * @param db_pool_timeout the timeout in seconds
+         * @throws IllegalArgumentException if the timeout is not positive
+         */
+        public void setDBPoolTimeout(long db_pool_timeout) {
+            if (db_pool_timeout <= 0) {
+                throw new IllegalArgumentException("Database pool timeout must be positive!");
+            }
+
+            this.db_pool_timeout = db_pool_timeout;
+        }
+
+
+        /**
+         * Gets the JDBC URL of the shared database the {@link NetworkCounter} publishes to.
+         *
+         * @return the URL, or null if the network counter is disabled
+         */
+        @Nullable
+        public String getNetworkCounterURL() {
+            return this.network_counter_url;
+        }
+
+        /**
+         * Sets the JDBC URL of the shared database the {@link NetworkCounter} publishes to.
+         *
+         * @param network_counter_url the URL, or null to disable the network counter
+         * @throws IllegalArgumentException if the URL isn't an H2 URL
+         */
+        public void setNetworkCounterURL(@Nullable String network_counter_url) {
+            if (network_counter_url != null && !network_counter_url.startsWith("jdbc:h2:")) {
+                throw new IllegalArgumentException("Network counter URL must start with jdbc:h2:");
+            }
+
+            this.network_counter_url = network_counter_url;
+        }
+
+        /**
+         * Gets the user to connect to the shared network counter database as.
+         *
+         * @return the user
+         */
+        @NotNull
+        public String getNetworkCounterUser() {
+            return this.network_counter_user;
+        }
+
+        /**
+         * Sets the user to connect to the shared network counter database as.
+         *
+         * @param network_counter_user the user
+         * @throws IllegalArgumentException if the user is null
+         */
+        public void setNetworkCounterUser(@NotNull String network_counter_user) {
+            if (network_counter_user == null) {
+                throw new IllegalArgumentException("Network counter user cannot be null!");
+            }
+
+            this.network_counter_user = network_counter_user;
+        }
+
+        /**
+         * Gets the password to connect to the shared network counter database with.
+         *
+         * @return the password
+         */
+        @NotNull
+        public String getNetworkCounterPassword() {
+            return this.network_counter_password;
+        }
+
+        /**
+         * Sets the password to connect to the shared network counter database with.
+         *
+         * @param network_counter_password the password
+         * @throws IllegalArgumentException if the password is null
+         */
+        public void setNetworkCounterPassword(@NotNull String network_counter_password) {
+            if (network_counter_password == null) {
+                throw new IllegalArgumentException("Network counter password cannot be null!");
+            }
+
+            this.network_counter_password = network_counter_password;
+        }
+
+        /**
+         * Gets the id this proxy publishes its counts under.
+         *
+         * @return the id, or null to use a random id until the proxy restarts
+         */
+        @Nullable
+        public String getNetworkCounterID() {
+            return this.network_counter_id;
+        }
+
+        /**
+         * Sets the id this proxy publishes its counts under.
+         *
+         * @param network_counter_id the id, or null to use a random id until the proxy restarts
+         * @throws IllegalArgumentException if the id is longer than 64 characters
+         */
+        public void setNetworkCounterID(@Nullable String network_counter_id) {
+            if (network_counter_id != null && network_counter_id.length() > 64) {
+                throw new IllegalArgumentException("Network counter id must be at most 64 characters!");
+            }
+
+            this.network_counter_id = network_counter_id;
+        }
+
+        /**
+         * Gets how often this proxy publishes its counts and reads the network totals.
+         *
+         * @return the interval in seconds
+         */
+        public long getNetworkCounterInterval() {
+            return this.network_counter_interval;
+        }
+
+        /**
+         * Sets how often this proxy publishes its counts and reads the network totals.
+         *
+         * @param network_counter_interval the interval in seconds
+         * @throws IllegalArgumentException if the interval is not positive
+         */
+        public void setNetworkCounterInterval(long network_counter_interval) {
+            if (network_counter_interval <= 0) {
+                throw new IllegalArgumentException("Network counter interval must be positive!");
+            }
+
+            this.network_counter_interval = network_counter_interval;
+        }
+
+
+        /**
+         * Gets whether pings are recorded for replaying with {@link PingReplay}.
+         *
+         * @return true if recording, false otherwise
+         */
+        public boolean isPingRecording() {
+            return this.ping_recording;
+        }
+
+        /**
+         * Sets whether pings are recorded for replaying with {@link PingReplay}.
+         *
+         * @param ping_recording true to record, false otherwise
+         */
+        public void setPingRecording(boolean ping_recording) {
+            this.ping_recording = ping_recording;
+        }
+
+        /**
+         * Gets the largest a ping recording can grow to before recording stops.
+         *
+         * @return the max size in MiB
+         */
+        public long getPingRecordingMaxSize() {
+            return this.ping_recording_max_size;
+        }
+
+        /**
+         * Sets the largest a ping recording can grow to before recording stops.
+         *
+         * @param ping_recording_max_size the max size in MiB
+         * @throws IllegalArgumentException if the size is not positive
+         */
+        public void setPingRecordingMaxSize(long ping_recording_max_size) {
+            if (ping_recording_max_size <= 0) {
+                throw new IllegalArgumentException("Ping recording max size must be positive!");
+            }
+
+            this.ping_recording_max_size = ping_recording_max_size;
+        }
+
+
+        /**
+         * Gets whether the load testing commands (/motdbench and /motdreplay) can be run.
+         *
+         * @return true if they can be run, false otherwise
+         */
+        public boolean areDiagnosticCommandsEnabled() {
+            return this.diagnostic_commands;
+        }
+
+        /**
+         * Sets whether the load testing commands (/motdbench and /motdreplay) can be run.
+         *
+         * @param diagnostic_commands true to allow them, false otherwise
+         */
+        public void setDiagnosticCommandsEnabled(boolean diagnostic_commands) {
+            this.diagnostic_commands = diagnostic_commands;
+        }
+
+
+        /**
+         * Gets how long each address keeps being shown the same MOTD.
+         *
+         * @return the window in seconds, or 0 to pick a new MOTD on every ping
+         */
+        public long getStickyMOTDWindow() {
+            return this.sticky_motd_window;
+        }
+
+        /**
+         * Sets how long each address keeps being shown the same MOTD.
+         *
+         * @param sticky_motd_window the window in seconds, or 0 to pick a new MOTD on every ping
+         * @throws IllegalArgumentException if the window is negative
+         */
+        public void setStickyMOTDWindow(long sticky_motd_window) {
+            if (sticky_motd_window < 0) {
+                throw new IllegalArgumentException("Sticky MOTD window cannot be negative!");
+            }
+
+            this.sticky_motd_window = sticky_motd_window;
+        }
+
+
+        /**
+         * Gets the most IPs to keep MOTDs rendered ahead of time for, see {@link PreRenderCache}.
+         *
+         * @return the number of IPs, or 0 if disabled
+         */
+        public int getPreRenderCacheSize() {
+            return this.pre_render_cache_size;
+        }
+
+        /**
+         * Sets the most IPs to keep MOTDs rendered ahead of time for, see {@link PreRenderCache}.
+         *
+         * @param pre_render_cache_size the number of IPs, or 0 to disable
+         * @throws IllegalArgumentException if the size is negative
+         */
+        public void setPreRenderCacheSize(int pre_render_cache_size) {
+            if (pre_render_cache_size < 0) {
+                throw new IllegalArgumentException("Pre-render cache size cannot be negative!");
+            }
+
+            this.pre_render_cache_size = pre_render_cache_size;
+        }
+
+
+        /**
+         * Gets the ping rate at which the {@link SurgeDetector} switches to serving the surge MOTD.
+         *
+         * @return the rate in pings per second, or 0 if disabled
+         */
+        public long getSurgeThreshold() {
+            return this.surge_threshold;
+        }
+
+        /**
+         * Gets the ping rate the {@link SurgeDetector} waits to stay below before rendering MOTDs normally again.
+         *
+         * @return the rate in pings per second
+         */
+        public long getSurgeExitThreshold() {
+            return this.surge_exit_threshold;
+        }
+
+        /**
+         * Sets the ping rates at which the {@link SurgeDetector} switches to and from serving the surge MOTD.
+         *
+         * @param surge_threshold      the rate to switch to the surge MOTD at in pings per second, or 0 to disable
+         * @param surge_exit_threshold the rate to stay below before switching back in pings per second,
+         *                             which must not be above the surge threshold
+         * @throws IllegalArgumentException if either rate is negative, or the exit threshold is above the surge threshold
+         */
+        public void setSurgeThresholds(long surge_threshold, long surge_exit_threshold) {
+            if (surge_threshold < 0 || surge_exit_threshold < 0) {
+                throw new IllegalArgumentException("Surge thresholds cannot be negative!");
+            }
+
+            if (surge_exit_threshold > surge_threshold) {
+                throw new IllegalArgumentException("Surge exit threshold cannot be above the surge threshold!");
+            }
+
+            this.surge_threshold = surge_threshold;
+            this.surge_exit_threshold = surge_exit_threshold;
+        }
+
+        /**
+         * Gets the MOTD served during ping surges, with its colours compiled but its lines not yet centered.
+         *
+         * @return the MOTD, or null to leave the proxy's own MOTD
+         */
+        @Nullable
+        public String getSurgeMOTD() {
+            return this.surge_motd;
+        }
+
+        /**
+         * Sets the MOTD served during ping surges.
+         *
+         * @param surge_motd the MOTD with its colours compiled, or null to leave the proxy's own MOTD
+         */
+        public void setSurgeMOTD(@Nullable String surge_motd) {
+            this.surge_motd = surge_motd;
+        }
+
+        /**
+         * Gets the ping response description served during ping surges, built when the config was parsed. It is shared by
+         * every ping during a surge, so must not be modified: responses are given a {@link TextComponent#duplicate() copy}
+         * of it, as other plugins can modify the response.
+         *
+         * @return the description, or null to leave the proxy's own MOTD
+         */
+        @Nullable
+        public TextComponent getSurgeDescription() {
+            return this.surge_description;
+        }
+
+        /**
+         * Sets the ping response description served during ping surges.
+         *
+         * @param surge_description the description, or null to leave the proxy's own MOTD
+         */
+        public void setSurgeDescription(@Nullable TextComponent surge_description) {
+            this.surge_description = surge_description;
+        }
+
+
+        /**
+         * Gets the message with the given key, returning the key if it doesn't exist.
+         *
+         * @param key the key
+         * @return the message
+         * @throws IllegalArgumentException if the key is null
+         */
+        @NotNull
+        public String getMessage(@NotNull String key) {
+            if (key == null) {
+                throw new IllegalArgumentException("Key cannot be null!");
+            }
+
+            if (this.messages.containsKey(key)) {
+                return this.messages.get(key);
+            } else {
+                return key;
+            }
+        }
+
+        /**
+         * Inserts the message with the given key.
+         *
+         * @param key     the key
+         * @param message the message
+         * @throws IllegalArgumentException if the key or message is null
+         */
+        public void insertMessage(@NotNull String key, @NotNull String message) {
+            if (key == null) {
+                throw new IllegalArgumentException("Key cannot be null!");
+            }
+
+            if (message == null) {
+                throw new IllegalArgumentException("Message cannot be null!");
+            }
+
+            this.messages.put(key, message);
+        }
+
+        /**
+         * Replaces the messages with the given map.
+         *
+         * @param messages the messages
+         * @throws IllegalArgumentException if the messages are null
+         */
+        public void replaceMessages(@NotNull Map<String, String> messages) {
+            if (messages == null) {
+                throw new IllegalArgumentException("Messages cannot be null!");
+            }
+
+            this.messages = messages;
+        }
+    }
+
+    // once parsed, the config stays parsed, even if a later reload fails
+    private volatile boolean is_parsed = false;
+    private volatile ParsedConfig parsed_config = new ParsedConfig();
+
+    /**
+     * Gets the {@link ParsedConfig parsed config}.<br>
+     * Each parse replaces the parsed config rather than changing it, so callers should get it once and keep using it
+     * for the whole operation (e.g. a ping), rather than getting it again part way through.
+     *
+     * @return the {@link ParsedConfig parsed config}
+     * @throws IllegalStateException if the config has not been parsed yet
+     */
+    @NotNull
+    public ParsedConfig getParsedConfig() {
+        if (!this.is_parsed) {
+            throw new IllegalStateException("Config has not been parsed yet!");
+        }
+
+        return this.parsed_config;
+    }
+
+
+    private final List<String> KNOWN_TEMPLATES = Arrays.asList("player", "online", "max", "ping", "c");
+    private final Pattern TEMPLATE_REGEX = Pattern.compile("(?<!\\\\)(?:\\\\{2})*%(?:(?<!\\\\)(?:\\\\{2})*\\\\%|[^%])+(?<!\\\\)(?:\\\\{2})*%");
+    private final Pattern BETWEEN_PERCENT_REGEX = Pattern.compile("%(.*?)%");
+
+
+    /**
+     * Checks all templates in the message for validity.
+     *
+     * @param message the message to check
+     * @return true if all templates are valid, false otherwise
+     * @throws IllegalArgumentException if the message is null
+     */
+    public boolean validateTemplates(@NotNull String message) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null!");
+        }
+
+        // check each template found in the string for its existence
+        Matcher template_matcher = TEMPLATE_REGEX.matcher(message);
+
+        while (template_matcher.find()) {
+            String match = template_matcher.group(0);
+
+            // refine the match down to the content between the percent signs
+            Matcher between_percent_matcher = BETWEEN_PERCENT_REGEX.matcher(match);
+
+            if (between_percent_matcher.find()) {
+                match = between_percent_matcher.group(1);
+            } else {
+                return false;
+            }
+
+
+            if (!KNOWN_TEMPLATES.contains(match.toLowerCase())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Substitutes all templates in the message with the given values.
+     *
+     * @param message        The message to substitute
+     * @param player_name    The player name
+     * @param online_players The number of online players
+     * @param max_players    The maximum number of players
+     * @return The substituted message
+     */
+    public String substituteTemplates(@NotNull String message, @NotNull String player_name, int online_players, int max_players) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null!");
+        }
+
+        if (player_name == null) {
+            throw new IllegalArgumentException("Player name cannot be null!");
+        }
+
+
+        Matcher template_matcher = TEMPLATE_REGEX.matcher(message);
+
+        while (template_matcher.find()) {
+            String full_match = template_matcher.group(0);
+
+            // refine the match down to the content between the percent signs
+            Matcher between_percent_matcher = BETWEEN_PERCENT_REGEX.matcher(full_match);
+
+            String template;
+            if (between_percent_matcher.find()) {
+                template = between_percent_matcher.group(1);
+            } else {
+                continue;
+            }
+
+            if (!KNOWN_TEMPLATES.contains(template.toLowerCase())) {
+                continue;
+            }
+
+            switch (template) {
+                case "player":
+                    message = message.replace(full_match, player_name);
+                    break;
+                case "online":
+                    message = message.replace(full_match, String.valueOf(online_players));
+                    break;
+                case "max":
+                    message = message.replace(full_match, String.valueOf(max_players));
+                    break;
+            }
+        }
+
+        return message;
+    }
+
+    /**
+     * Substitutes only the player name template in the message, leaving the others in place.
+     *
+     * @param message     The message to substitute
+     * @param player_name The player name
+     * @return The substituted message
+     */
+    public String substitutePlayerTemplate(@NotNull String message, @NotNull String player_name) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null!");
+        }
+
+        if (player_name == null) {
+            throw new IllegalArgumentException("Player name cannot be null!");
+        }
+
+        Matcher template_matcher = TEMPLATE_REGEX.matcher(message);
+
+        while (template_matcher.find()) {
+            String full_match = template_matcher.group(0);
+            Matcher between_percent_matcher = BETWEEN_PERCENT_REGEX.matcher(full_match);
+
+            // templates are matched case-sensitively, as in substituteTemplates
+            if (between_percent_matcher.find() && between_percent_matcher.group(1).equals("player")) {
+                message = message.replace(full_match, player_name);
+            }
+        }
+
+        return message;
+    }
+
+    /**
+     * Checks whether the message uses the template, matched the same way as {@link #substituteTemplates}.
+     *
+     * @param message  the message to check
+     * @param template the template, without percent signs (e.g. player)
+     * @return true if the message uses the template, false otherwise
+     * @throws IllegalArgumentException if the message or template is null
+     */
+    public boolean usesTemplate(@NotNull String message, @NotNull String template) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null!");
+        }
+
+        if (template == null) {
+            throw new IllegalArgumentException("Template cannot be null!");
+        }
+
+        Matcher template_matcher = TEMPLATE_REGEX.matcher(message);
+
+        while (template_matcher.find()) {
+            Matcher between_percent_matcher = BETWEEN_PERCENT_REGEX.matcher(template_matcher.group(0));
+
+            if (between_percent_matcher.find() && between_percent_matcher.group(1).equals(template)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Gets a schedule field from an MOTD section as a string.<br>
+     * Unquoted dates are read by YAML as timestamps (at midnight UTC), so they are converted back to ISO local date-times.
+     *
+     * @param section the MOTD section
+     * @param key     the field
+     * @return the field as a string, or null if it isn't set
+     */
+    private static String getScheduleField(Map<?, ?> section, String key) {
+        Object value = section.get(key);
+
+        if (value == null) {
+            return null;
+        }
+
+        if (value instanceof Date) {
+            return ((Date) value).toInstant().atZone(ZoneOffset.UTC).toLocalDateTime().toString();
+        }
+
+        return String.valueOf(value);
+    }
+
+
+    /**
+     * Loads the address targets file into a trie of address ranges to group IDs.<br>
+     * Each line is a CIDR range (or single address) followed by a group name, e.g. "10.0.0.0/8 internal".
+     * Blank lines and lines starting with # are ignored.
+     *
+     * @param file      the targets file
+     * @param group_ids the IDs of the groups used by MOTDs, keyed by lowercase name
+     * @return the trie
+     * @throws RuntimeException if the file can't be read or has an invalid line
+     */
+    private PrefixTrie loadAddressTargets(File file, Map<String, Integer> group_ids) {
+        PrefixTrie trie = new PrefixTrie();
+
+        if (!file.exists()) {
+            this.plugin.getLogger().warning("Targets file " + file.getName() + " not found, no MOTDs will be targeted by address!");
+            return trie;
+        }
+
+        Set<String> unused_groups = new HashSet<>();
+        int[] prefix_length = new int[1];
+        int line_number = 0;
+
+        // stream the file, as it may hold tens of thousands of ranges
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), java.nio.charset.StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                line_number++;
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] parts = line.split("\\s+");
+
+                if (parts.length != 2) {
+                    throw new RuntimeException("Invalid line " + line_number + " in " + file.getName() + "! Each line should be a range followed by a group name, e.g. 10.0.0.0/8 internal");
+                }
+
+                String group = parts[1].toLowerCase();
+                Integer group_id = group_ids.get(group);
+
+                if (group_id == null) {
+                    unused_groups.add(group);
+                    continue;
+                }
+
+                try {
+                    byte[] address = PrefixTrie.parseCIDR(parts[0], prefix_length);
+                    trie.insert(address, prefix_length[0], group_id);
+                } catch (IllegalArgumentException e) {
+                    throw new RuntimeException("Invalid line " + line_number + " in " + file.getName() + "! " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read targets file " + file.getName() + "!", e);
+        }
+
+        if (!unused_groups.isEmpty()) {
+            this.plugin.getLogger().warning("No MOTDs use the groups " + unused_groups + " from " + file.getName() + ", so their ranges were skipped.");
+        }
+
+        this.plugin.getLogger().info("Loaded " + trie.size() + " address ranges from " + file.getName() + ".");
+
+        return trie;
+    }
+
+
+    /**
+     * Builds the table of virtual hosts to group IDs from the virtual_hosts list.<br>
+     * Each entry is a hostname followed by a group name, as hostnames can't be used as keys (their dots would nest them).
+     * Hosts assigned to groups that no MOTD uses are skipped with a warning.
+     *
+     * @param group_ids the IDs of the groups used by MOTDs, keyed by lowercase name
+     * @return the table
+     * @throws RuntimeException if an entry is invalid
+     */
+    private HostTable parseVirtualHosts(Map<String, Integer> group_ids) {
+        HostTable table = new HostTable();
+        Set<String> unused_groups = new HashSet<>();
+
+        for (Object entry : this.config.getList("virtual_hosts", Collections.emptyList())) {
+            String[] parts = String.valueOf(entry).trim().split("\\s+");
+
+            if (parts.length != 2) {
+                throw new RuntimeException("Invalid virtual host \"" + entry + "\" found in config! Each entry should be a hostname followed by a group name, e.g. \"eu.example.com eu\"");
+            }
+
+            String group = parts[1].toLowerCase();
+            Integer group_id = group_ids.get(group);
+
+            if (group_id == null) {
+                unused_groups.add(group);
+                continue;
+            }
+
+            table.insert(parts[0], group_id);
+        }
+
+        if (!unused_groups.isEmpty()) {
+            this.plugin.getLogger().warning("No MOTDs use the groups " + unused_groups + " from virtual_hosts, so their hosts were skipped.");
+        }
+
+        return table;
+    }
+
+
+    /**
+     * Compiles a catalog entry into its MOTD, translating colour codes and expanding colour markup.<br>
+     * Catalog entries are compiled when first used (on the ping path), so invalid markup is logged through the
+     * {@link HotPathLogger} and left unexpanded rather than failing the reload.
+     *
+     * @param entry the entry as written in the catalog
+     * @return the compiled MOTD
+     */
+    private String compileCatalogEntry(String entry) {
+        String motd = ChatColor.translateAlternateColorCodes('&', entry);
+
+        try {
+            return ColorLib.expandMarkup(motd);
+        } catch (IllegalArgumentException e) {
+            this.plugin.getHotPathLogger().warning("Invalid colour markup in catalog MOTD", "\"" + entry + "\" (" + e.getMessage() + ")");
+            return motd;
+        }
+    }
+
+    /**
+     * Adds the entries of every catalog file (*.txt) in the folder to the catalog, in file name order.<br>
+     * Each line of a catalog file is an MOTD, where \n starts a new line of the MOTD. Blank lines and lines starting with # are skipped.
+     * Files are streamed line by line. Files whose contents haven't changed since the last reload are only hashed, and
+     * reuse the entries already read from them rather than being parsed and validated again.
+     *
+     * @param folder  the catalog folder
+     * @param catalog the catalog to add the entries to
+     * @throws RuntimeException if a file can't be read or has an invalid template
+     */
+    private void loadCatalogs(File folder, MOTDCatalog catalog) {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".txt"));
+
+        if (files == null) {
+            this.catalog_files.clear();
+            return;
+        }
+
+        Arrays.sort(files);
+        Map<String, CatalogFile> loaded = new HashMap<>();
+        int read_count = 0;
+
+        for (File file : files) {
+            // the contents are compared rather than the size and modification time, which can miss an edit
+            byte[] hash = hashCatalogFile(file);
+            CatalogFile catalog_file = this.catalog_files.get(file.getName());
+
+            if (catalog_file == null || !Arrays.equals(catalog_file.hash, hash)) {
+                catalog_file = readCatalogFile(file, hash);
+                read_count++;
+            }
+
+            loaded.put(file.getName(), catalog_file);
+
+            for (byte[] entry : catalog_file.entries) {
+                catalog.addEntry(entry);
+            }
+        }
+
+        // forget files that have been removed
+        this.catalog_files.clear();
+        this.catalog_files.putAll(loaded);
+
+        this.plugin.getLogger().info("Loaded " + catalog.getEntryCount() + " catalog MOTDs (" + catalog.getDistinctEntryCount() + " distinct) from " + files.length + " files, " + read_count + " of which changed.");
+    }
+
+    /**
+     * Hashes the contents of a catalog file, streaming it rather than reading it all at once.
+     *
+     * @param file the catalog file
+     * @return the SHA-256 hash of the contents
+     * @throws RuntimeException if the file can't be read
+     */
+    private static byte[] hashCatalogFile(File file) {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform must support SHA-256
+            throw new RuntimeException(e);
+        }
+
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] buffer = new byte[8192];
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read catalog file " + file.getName() + "!", e);
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Reads the entries of a catalog file.
+     *
+     * @param file the catalog file
+     * @param hash the hash of its contents
+     * @return the entries
+     * @throws RuntimeException if the file can't be read or has an invalid template
+     */
+    private CatalogFile readCatalogFile(File file, byte[] hash) {
+        List<byte[]> entries = new ArrayList<>();
+        int line_number = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), java.nio.charset.StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                line_number++;
+
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+
+                String entry = line.replace("\\n", "\n");
+
+                if (!validateTemplates(entry)) {
+                    throw new RuntimeException("Invalid template on line " + line_number + " of " + file.getName() + "!\nYou may need to escape percent signs with a backslash (\\\\). E.g: \\\\%");
+                }
+
+                entries.add(entry.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read catalog file " + file.getName() + "!", e);
+        }
+
+        return new CatalogFile(hash, entries);
+    }
+
+
+    /**
+     * Parses the config for use by the plugin.
+     *
+     * @throws RuntimeException if the config is invalid
+     */
+    public synchronized void parseConfig() {
+        ConfigEvent config_event = Profiling.JFR_AVAILABLE ? ConfigEvent.start("parseConfig") : null;
+        boolean success = false;
+
+        try {
+            parseLoadedConfig();
+            success = true;
+        } finally {
+            if (config_event != null) {
+                config_event.finish(this.parsed_config.getMOTDs().size(), success);
+            }
+        }
+    }
+
+    /**
+     * Parses the loaded config, see {@link #parseConfig()}.
+     *
+     * @throws RuntimeException if the config is invalid
+     */
+    private void parseLoadedConfig() {
+        // parse into a new config, so pings keep using the current one until this one is complete
+        ParsedConfig parsed = new ParsedConfig();
+
+        // get the default player name
+        String default_player_name = this.config.getString("default_player_name");
+
+        if (default_player_name == null) {
+            this.plugin.getLogger().warning("Default player name not found in config, using \"" + FALLBACK_DEFAULT_PLAYER_NAME + "\" instead!");
+        } else {
+            parsed.setDefaultPlayerName(default_player_name);
+        }
+
+
+        if (!this.config.contains("motds")) {
+            throw new RuntimeException("motds not found or invalid in config! Please make sure it is a list of strings (with a - on each line), or a single string.");
+        }
+
+        if (!this.config.contains("messages")) {
+            throw new RuntimeException("messages not found or invalid in config! Try reverting the section back to the default config, found here: https://raw.githubusercontent.com/obfuscatedgenerated/MagicMOTD/main/src/main/resources/config.yml");
+        }
+
+        // get the time zone used by scheduled motds
+        ZoneId zone = ZoneId.systemDefault();
+        String zone_id = this.config.getString("schedule_timezone", "");
+
+        if (!zone_id.isEmpty()) {
+            try {
+                zone = ZoneId.of(zone_id);
+            } catch (DateTimeException e) {
+                throw new RuntimeException("Invalid schedule_timezone \"" + zone_id + "\" in config! Use a zone ID such as Europe/London or UTC.");
+            }
+        }
+
+        // load each motd and validate templates
+        // entries are either plain strings or sections with text and schedule fields
+        List<?> motds = this.config.getList("motds");
+
+        // if list has length of 0, try interpreting it as a single string
+        if (motds.size() == 0) {
+            String motd = this.config.getString("motds");
+
+            if (motd == null) {
+                throw new RuntimeException("motds not found or invalid in config! Please make sure it is a list of strings (with a - on each line), or a single string.");
+            }
+
+            motds = Collections.singletonList(motd);
+        }
+
+        // the config motds come first, followed by the entries of the catalog files
+        int catalog_cache_size = this.config.getInt("catalog_cache_size", FALLBACK_CATALOG_CACHE_SIZE);
+
+        if (catalog_cache_size <= 0) {
+            throw new RuntimeException("Invalid catalog_cache_size in config! It must be positive.");
+        }
+
+        MOTDCatalog catalog = new MOTDCatalog(this::compileCatalogEntry, catalog_cache_size);
+        parsed.replaceMOTDs(catalog);
+
+        // map each group name to its ID as they are found
+        Map<String, Integer> group_ids = new HashMap<>();
+        List<String> groups = new ArrayList<>();
+        group_ids.put(DEFAULT_GROUP_NAME, DEFAULT_GROUP);
+        groups.add(DEFAULT_GROUP_NAME);
+
+        for (Object entry : motds) {
+            String motd;
+
+            if (entry instanceof String) {
+                motd = (String) entry;
+            } else if (entry instanceof Map) {
+                Map<?, ?> section = (Map<?, ?>) entry;
+                motd = section.get("text") == null ? "" : String.valueOf(section.get("text"));
+
+                if (section.containsKey("start") || section.containsKey("end") || section.containsKey("daily")) {
+                    try {
+                        MOTDSchedule schedule = MOTDSchedule.parse(
+                                getScheduleField(section, "start"),
+                                getScheduleField(section, "end"),
+                                getScheduleField(section, "daily"),
+                                zone
+                        );
+
+                        parsed.getSchedules().put(parsed.getMOTDs().size(), schedule);
+                    } catch (IllegalArgumentException e) {
+                        throw new RuntimeException("Invalid schedule for \"" + motd + "\" found in config! " + e.getMessage());
+                    }
+                }
+
+                if (section.get("group") != null) {
+                    String group = String.valueOf(section.get("group")).toLowerCase();
+
+                    if (!group_ids.containsKey(group)) {
+                        group_ids.put(group, groups.size());
+                        groups.add(group);
+                    }
+
+                    int group_id = group_ids.get(group);
+
+                    if (group_id != DEFAULT_GROUP) {
+                        parsed.getMOTDGroups().put(parsed.getMOTDs().size(), group_id);
+                    }
+                }
+            } else {
+                throw new RuntimeException("Invalid MOTD entry found in config! Each entry must be a string, or have a text field. Entry: " + entry);
+            }
+
+            // check if the motd is empty
+            if (motd.isEmpty()) {
+                throw new RuntimeException("Empty or invalid message found in config! MOTD: \"" + motd + "\"");
             }
 
             if (!validateTemplates(motd)) {
@@ -450,8 +1809,163 @@ public class ConfigLoader {
             // translate & color codes to § color codes
             motd = ChatColor.translateAlternateColorCodes('&', motd);
 
+            // expand hex colours and gradients now, so they cost nothing when pinged
+            try {
+                motd = ColorLib.expandMarkup(motd);
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Invalid colour markup found in config! " + e.getMessage());
+            }
+
             // push the motd to the list of motds
-            this.parsed_config.getMOTDs().add(motd);
+            parsed.getMOTDs().add(motd);
+        }
+
+        parsed.replaceGroups(groups);
+
+        // build the descriptions of the motds that are the same for every ping now, rather than parsing their colours per ping
+        TextComponent[] descriptions = new TextComponent[parsed.getMOTDs().size()];
+
+        for (int i = 0; i < descriptions.length; i++) {
+            String motd = parsed.getMOTDs().get(i);
+
+            if (!usesTemplate(motd, "player") && !usesTemplate(motd, "online") && !usesTemplate(motd, "max")) {
+                descriptions[i] = ColorLib.toComponent(FontLib.centerLines(motd));
+            }
+        }
+
+        parsed.replaceDescriptions(descriptions);
+
+        // catalog motds are always in the default group and unscheduled
+        String catalog_folder = this.config.getString("catalog_folder", FALLBACK_CATALOG_FOLDER);
+
+        if (!catalog_folder.isEmpty()) {
+            loadCatalogs(new File(this.plugin.getDataFolder(), catalog_folder), catalog);
+        }
+
+        // build the address target trie from the targets file, if there is one
+        String targets_file = this.config.getString("targets_file", "");
+
+        if (targets_file.isEmpty()) {
+            parsed.replaceAddressTargets(new PrefixTrie());
+        } else {
+            parsed.replaceAddressTargets(loadAddressTargets(new File(this.plugin.getDataFolder(), targets_file), group_ids));
+        }
+
+        parsed.replaceVirtualHosts(parseVirtualHosts(group_ids));
+
+        // get the stats settings
+        try {
+            parsed.setStatsFlushInterval(this.config.getLong("stats_flush_interval", FALLBACK_STATS_FLUSH_INTERVAL));
+            parsed.setStatsAttributionWindow(this.config.getLong("stats_attribution_window", FALLBACK_STATS_ATTRIBUTION_WINDOW));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid stats setting in config! " + e.getMessage());
+        }
+
+        // get the database circuit breaker settings
+        try {
+            parsed.setBreakerMaxLatency(this.config.getLong("db_breaker_max_latency", FALLBACK_BREAKER_MAX_LATENCY));
+            parsed.setBreakerMaxErrorRate(this.config.getDouble("db_breaker_max_error_rate", FALLBACK_BREAKER_MAX_ERROR_RATE));
+            parsed.setBreakerProbeInterval(this.config.getLong("db_breaker_probe_interval", FALLBACK_BREAKER_PROBE_INTERVAL));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid database circuit breaker setting in config! " + e.getMessage());
+        }
+
+        try {
+            parsed.setKnownIPsRebuildInterval(this.config.getLong("known_ips_rebuild_interval", FALLBACK_KNOWN_IPS_REBUILD_INTERVAL));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid known IPs rebuild interval in config! " + e.getMessage());
+        }
+
+        try {
+            parsed.setKeyPrefixes(this.config.getInt("ipv4_key_prefix", FALLBACK_IPV4_KEY_PREFIX), this.config.getInt("ipv6_key_prefix", FALLBACK_IPV6_KEY_PREFIX));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid key prefix in config! " + e.getMessage());
+        }
+
+        // get the database maintenance settings, where the window uses the same format and time zone as motd schedules
+        try {
+            String window = this.config.getString("db_maintenance_window", "");
+            parsed.setMaintenanceWindow(window.isEmpty() ? null : MOTDSchedule.parse(null, null, window, zone));
+
+            parsed.setBackupKeep(this.config.getInt("db_backup_keep", FALLBACK_BACKUP_KEEP));
+            parsed.setBackupMaxRate(this.config.getLong("db_backup_max_rate", FALLBACK_BACKUP_MAX_RATE));
+            parsed.setCompactTime(this.config.getInt("db_compact_time", FALLBACK_COMPACT_TIME));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid database maintenance setting in config! " + e.getMessage());
+        }
+
+        try {
+            parsed.setAsyncThreads(this.config.getInt("async_threads", FALLBACK_ASYNC_THREADS));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid async_threads in config! " + e.getMessage());
+        }
+
+        try {
+            parsed.setDBPoolSize(this.config.getInt("db_pool_size", FALLBACK_DB_POOL_SIZE));
+            parsed.setDBPoolTimeout(this.config.getLong("db_pool_timeout", FALLBACK_DB_POOL_TIMEOUT));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid database pool setting in config! " + e.getMessage());
+        }
+
+        // get the network counter settings, where a blank url or id means disabled or random
+        try {
+            String network_counter_url = this.config.getString("network_counter_url", "");
+            String network_counter_id = this.config.getString("network_counter_id", "");
+
+            parsed.setNetworkCounterURL(network_counter_url.isEmpty() ? null : network_counter_url);
+            parsed.setNetworkCounterUser(this.config.getString("network_counter_user", ""));
+            parsed.setNetworkCounterPassword(this.config.getString("network_counter_password", ""));
+            parsed.setNetworkCounterID(network_counter_id.isEmpty() ? null : network_counter_id);
+            parsed.setNetworkCounterInterval(this.config.getLong("network_counter_interval", FALLBACK_NETWORK_COUNTER_INTERVAL));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid network counter setting in config! " + e.getMessage());
+        }
+
+        try {
+            parsed.setPingRecording(this.config.getBoolean("ping_recording", false));
+            parsed.setPingRecordingMaxSize(this.config.getLong("ping_recording_max_size", FALLBACK_PING_RECORDING_MAX_SIZE));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid ping recording setting in config! " + e.getMessage());
+        }
+
+        parsed.setDiagnosticCommandsEnabled(this.config.getBoolean("diagnostic_commands", false));
+
+        try {
+            parsed.setStickyMOTDWindow(this.config.getLong("sticky_motd_window", FALLBACK_STICKY_MOTD_WINDOW));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid sticky_motd_window in config! " + e.getMessage());
+        }
+
+        try {
+            parsed.setPreRenderCacheSize(this.config.getInt("pre_render_cache_size", FALLBACK_PRE_RENDER_CACHE_SIZE));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid pre_render_cache_size in config! " + e.getMessage());
+        }
+
+        // get the surge settings, where an exit threshold of 0 means half the surge threshold
+        try {
+            long surge_threshold = this.config.getLong("surge_threshold", FALLBACK_SURGE_THRESHOLD);
+            long surge_exit_threshold = this.config.getLong("surge_exit_threshold", 0);
+
+            parsed.setSurgeThresholds(surge_threshold, surge_exit_threshold == 0 ? surge_threshold / 2 : surge_exit_threshold);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid surge threshold in config! " + e.getMessage());
+        }
+
+        String surge_motd = this.config.getString("surge_motd", "");
+
+        if (!surge_motd.isEmpty()) {
+            // the surge motd is rendered once, so there are no live counts to fill in
+            if (!validateTemplates(surge_motd) || usesTemplate(surge_motd, "online") || usesTemplate(surge_motd, "max")) {
+                throw new RuntimeException("Invalid template in surge_motd found in config! Only %player% (always the default player name) and %C% can be used.");
+            }
+
+            try {
+                parsed.setSurgeMOTD(ColorLib.expandMarkup(ChatColor.translateAlternateColorCodes('&', surge_motd)));
+                parsed.setSurgeDescription(ColorLib.toComponent(FontLib.centerLines(substitutePlayerTemplate(parsed.getSurgeMOTD(), parsed.getDefaultPlayerName()))));
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Invalid colour markup in surge_motd found in config! " + e.getMessage());
+            }
         }
 
         // load each message, pushing nested messages with dots (e.g. reload.success)
@@ -483,10 +1997,16 @@ public class ConfigLoader {
                 throw new RuntimeException("Empty or invalid message found in config!");
             }
 
-            this.parsed_config.insertMessage(key, message);
+            parsed.insertMessage(key, message);
         }
 
+        // publish the new config in one step, so readers see either all of the old config or all of the new one
+        this.parsed_config = parsed;
         this.is_parsed = true;
+
+        for (Runnable listener : this.parse_listeners) {
+            listener.run();
+        }
     }
 
     /**
@@ -0,0 +1,299 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A circuit breaker around {@link PlayerDB} name lookups.<br>
+ * Tracks the latency and error rate of the most recent database calls. When either gets too high, the breaker opens,
+ * and name resolution is skipped (serving the default name) until a background probe finds the database healthy again.
+ */
+public class DBCircuitBreaker {
+    /**
+     * The state of the breaker.
+     */
+    public enum State {
+        /**
+         * The database is healthy, calls are allowed.
+         */
+        CLOSED,
+
+        /**
+         * The database is unhealthy, calls are skipped while probing in the background.
+         */
+        OPEN,
+
+        /**
+         * A probe is currently checking whether the database has recovered. Calls are still skipped.
+         */
+        HALF_OPEN
+    }
+
+    // the number of recent calls considered, and how many are needed before the breaker can trip
+    private static final int WINDOW_SIZE = 50;
+    private static final int MIN_SAMPLES = 10;
+
+    private static final long EMPTY_SAMPLE = Long.MIN_VALUE;
+
+    // an IP that will never be in the database (TEST-NET-1, which is never routed), used to probe lookups
+    private static final String PROBE_IP = "192.0.2.0";
+
+    private final MagicMOTD plugin;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    // each sample is the call latency in nanoseconds, stored negated (minus 1) if the call failed
+    private final AtomicLongArray samples = new AtomicLongArray(WINDOW_SIZE);
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicInteger sample_count = new AtomicInteger();
+    private final AtomicInteger error_count = new AtomicInteger();
+    private final AtomicLong latency_sum = new AtomicLong();
+
+    private final AtomicLong trip_count = new AtomicLong();
+    private volatile long last_trip_time = 0;
+    private HashedWheelTimer.Job probe_task;
+
+
+    /**
+     * Constructs a new {@link DBCircuitBreaker}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public DBCircuitBreaker(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+        clearSamples();
+    }
+
+
+    /**
+     * Checks whether a database call should be made.
+     *
+     * @return true if the breaker is closed, false if calls should be skipped
+     */
+    public boolean allowRequest() {
+        return this.state.get() == State.CLOSED;
+    }
+
+    /**
+     * Records a successful database call.
+     *
+     * @param latency_ns how long the call took in nanoseconds
+     */
+    public void recordSuccess(long latency_ns) {
+        record(Math.max(0, latency_ns));
+    }
+
+    /**
+     * Records a failed database call.
+     *
+     * @param latency_ns how long the call took in nanoseconds
+     */
+    public void recordFailure(long latency_ns) {
+        record(-Math.max(0, latency_ns) - 1);
+    }
+
+    /**
+     * Adds a sample to the window, replacing the oldest, and trips the breaker if needed.
+     *
+     * @param sample the encoded sample
+     */
+    private void record(long sample) {
+        int index = Math.floorMod(this.cursor.getAndIncrement(), WINDOW_SIZE);
+        long old = this.samples.getAndSet(index, sample);
+
+        // keep the running totals in step with the window
+        if (old == EMPTY_SAMPLE) {
+            this.sample_count.incrementAndGet();
+        } else {
+            this.latency_sum.addAndGet(-decodeLatency(old));
+
+            if (old < 0) {
+                this.error_count.decrementAndGet();
+            }
+        }
+
+        this.latency_sum.addAndGet(decodeLatency(sample));
+
+        if (sample < 0) {
+            this.error_count.incrementAndGet();
+        }
+
+        if (this.state.get() == State.CLOSED && isUnhealthy()) {
+            trip();
+        }
+    }
+
+    /**
+     * Gets the latency of an encoded sample.
+     *
+     * @param sample the encoded sample
+     * @return the latency in nanoseconds
+     */
+    private static long decodeLatency(long sample) {
+        return sample < 0 ? -(sample + 1) : sample;
+    }
+
+    /**
+     * Checks whether the current window is over the configured error rate or latency limits.
+     *
+     * @return true if unhealthy, false otherwise
+     */
+    private boolean isUnhealthy() {
+        int count = this.sample_count.get();
+
+        if (count < MIN_SAMPLES || !this.plugin.getConfigLoader().isParsed()) {
+            return false;
+        }
+
+        ConfigLoader.ParsedConfig config = this.plugin.getConfigLoader().getParsedConfig();
+
+        return getErrorRate() > config.getBreakerMaxErrorRate()
+                || getAverageLatencyMs() > config.getBreakerMaxLatency();
+    }
+
+    /**
+     * Empties the window.
+     */
+    private void clearSamples() {
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            this.samples.set(i, EMPTY_SAMPLE);
+        }
+
+        this.sample_count.set(0);
+        this.error_count.set(0);
+        this.latency_sum.set(0);
+    }
+
+
+    /**
+     * Opens the breaker and starts probing for recovery.
+     */
+    private synchronized void trip() {
+        if (!this.state.compareAndSet(State.CLOSED, State.OPEN)) {
+            return;
+        }
+
+        this.trip_count.incrementAndGet();
+        this.last_trip_time = System.currentTimeMillis();
+
+        this.plugin.getLogger().warning(String.format(
+                "Database circuit breaker opened (error rate %.0f%%, average latency %.1fms). Player names will not be resolved until the database recovers.",
+                getErrorRate() * 100, getAverageLatencyMs()
+        ));
+
+        long interval = this.plugin.getConfigLoader().getParsedConfig().getBreakerProbeInterval();
+        this.probe_task = this.plugin.getTimer().schedule("breaker-probe", this::probe, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Makes a single lookup to check whether the database has recovered, closing the breaker if it has.
+     */
+    private void probe() {
+        if (!this.state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean healthy;
+
+        try {
+            this.plugin.getPlayerDB().getNameForIP(PROBE_IP);
+            healthy = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) <= this.plugin.getConfigLoader().getParsedConfig().getBreakerMaxLatency();
+        } catch (RuntimeException e) {
+            healthy = false;
+        }
+
+        // only move on from this probe's own half open state, as the breaker may have been reset (and even tripped
+        // again) while the lookup ran
+        if (!healthy) {
+            this.state.compareAndSet(State.HALF_OPEN, State.OPEN);
+            return;
+        }
+
+        synchronized (this) {
+            if (!this.state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                return;
+            }
+
+            cancelProbe();
+            clearSamples();
+        }
+
+        this.plugin.getLogger().info("Database circuit breaker closed, the database has recovered.");
+    }
+
+    /**
+     * Stops probing, if probing.
+     */
+    private synchronized void cancelProbe() {
+        if (this.probe_task != null) {
+            this.probe_task.cancel();
+            this.probe_task = null;
+        }
+    }
+
+    /**
+     * Stops probing and resets the breaker to closed. Used when the plugin is disabled.
+     */
+    public synchronized void reset() {
+        cancelProbe();
+        clearSamples();
+        this.state.set(State.CLOSED);
+    }
+
+
+    /**
+     * Gets the state of the breaker.
+     *
+     * @return the state
+     */
+    @NotNull
+    public State getState() {
+        return this.state.get();
+    }
+
+    /**
+     * Gets the fraction of failed calls in the current window.
+     *
+     * @return the error rate, from 0 to 1
+     */
+    public double getErrorRate() {
+        int count = this.sample_count.get();
+        return count == 0 ? 0 : (double) this.error_count.get() / count;
+    }
+
+    /**
+     * Gets the average latency of the calls in the current window.
+     *
+     * @return the average latency in milliseconds
+     */
+    public double getAverageLatencyMs() {
+        int count = this.sample_count.get();
+        return count == 0 ? 0 : this.latency_sum.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Gets how many times the breaker has opened since the plugin was enabled.
+     *
+     * @return the number of trips
+     */
+    public long getTripCount() {
+        return this.trip_count.get();
+    }
+
+    /**
+     * Gets when the breaker last opened.
+     *
+     * @return the time in epoch milliseconds, or 0 if it has never opened
+     */
+    public long getLastTripTime() {
+        return this.last_trip_time;
+    }
+}
@@ -0,0 +1,299 @@
+package codes.ollieg.magicmotd;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of connections to the {@link PlayerDB database} that keeps each connection's prepared statements, so the
+ * queries run on every ping and login are only parsed and planned once per connection rather than once per call.<br>
+ * Work is run through {@link #execute(Work)}, which checks out a connection, runs the work, and retries it on a fresh
+ * connection if it failed in a way that might not happen again (e.g. a lock timeout or a broken connection).
+ */
+public class DBConnectionPool {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_PAUSE_MS = 10;
+
+    /**
+     * A pooled connection and the statements prepared on it. Only used by one thread at a time.
+     */
+    public static final class Handle {
+        private final Connection conn;
+
+        // the SQL is always a constant, so the map is bounded by the number of queries in PlayerDB
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private Handle(Connection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * Gets the connection, e.g. for statements that aren't worth keeping. Must not be closed.
+         *
+         * @return the connection
+         */
+        @NotNull
+        public Connection getConnection() {
+            return this.conn;
+        }
+
+        /**
+         * Gets the statement prepared for the SQL on this connection, preparing it the first time.<br>
+         * The statement is kept for the next caller, so it must not be closed, and every parameter must be set before
+         * each use. Its result sets must still be closed.
+         *
+         * @param sql the SQL, which should be a constant
+         * @return the prepared statement
+         * @throws SQLException if the statement can't be prepared
+         */
+        @NotNull
+        public PreparedStatement prepare(@NotNull String sql) throws SQLException {
+            PreparedStatement statement = this.statements.get(sql);
+
+            if (statement == null) {
+                statement = this.conn.prepareStatement(sql);
+                this.statements.put(sql, statement);
+            }
+
+            return statement;
+        }
+
+        /**
+         * Closes the connection, along with its statements.
+         */
+        private void close() {
+            try {
+                this.conn.close();
+            } catch (SQLException ignored) {
+                // already broken, and being thrown away anyway
+            }
+        }
+    }
+
+    /**
+     * Thrown when no connection is free in time. Never retried, as the pool is already busy.
+     */
+    private static final class PoolTimeoutException extends SQLTimeoutException {
+        private static final long serialVersionUID = 1L;
+
+        private PoolTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Work to run with a pooled connection.
+     *
+     * @param <T> the result type
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        /**
+         * Runs the work. Work run by {@link #execute(Work)} may be run again on failure, so it must be safe to repeat.
+         *
+         * @param handle the pooled connection
+         * @return the result
+         * @throws SQLException if the work fails
+         */
+        T run(@NotNull Handle handle) throws SQLException;
+    }
+
+    private final JdbcDataSource source = new JdbcDataSource();
+    private final ConcurrentLinkedDeque<Handle> idle = new ConcurrentLinkedDeque<>();
+    private final Semaphore permits;
+    private final long timeout_ms;
+
+    private volatile boolean disposed = false;
+
+
+    /**
+     * Constructs a new {@link DBConnectionPool}. Connections are opened when first needed.
+     *
+     * @param url             the JDBC URL of the database
+     * @param max_connections the most connections to have checked out at once
+     * @param timeout_ms      the longest to wait for a connection when they are all checked out
+     * @throws IllegalArgumentException if the URL is null, or the connection count or timeout isn't positive
+     */
+    public DBConnectionPool(@NotNull String url, int max_connections, long timeout_ms) {
+        if (url == null) {
+            throw new IllegalArgumentException("URL cannot be null!");
+        }
+
+        if (max_connections <= 0) {
+            throw new IllegalArgumentException("Max connections must be positive!");
+        }
+
+        if (timeout_ms <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive!");
+        }
+
+        this.source.setURL(url);
+        this.permits = new Semaphore(max_connections, true);
+        this.timeout_ms = timeout_ms;
+    }
+
+
+    /**
+     * Runs the work with a pooled connection, retrying it on a fresh connection (after a short pause) if it fails with a
+     * transient error or the connection breaks. Other failures, and timing out waiting for a connection, are thrown
+     * straight away.
+     *
+     * @param work the work, which must be safe to repeat
+     * @param <T>  the result type
+     * @return the result of the work
+     * @throws SQLException if the work still fails after retrying, or no connection is free in time
+     * @throws IllegalArgumentException if the work is null
+     */
+    public <T> T execute(@NotNull Work<T> work) throws SQLException {
+        if (work == null) {
+            throw new IllegalArgumentException("Work cannot be null!");
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executeOnce(work);
+            } catch (SQLTransientException | SQLRecoverableException | SQLNonTransientConnectionException e) {
+                if (attempt >= MAX_ATTEMPTS || this.disposed || e instanceof PoolTimeoutException) {
+                    throw e;
+                }
+            }
+
+            try {
+                Thread.sleep(RETRY_PAUSE_MS * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while retrying a database query!", e);
+            }
+        }
+    }
+
+    /**
+     * Runs the work with a pooled connection, without retrying, for work that isn't safe to repeat.
+     *
+     * @param work the work
+     * @param <T>  the result type
+     * @return the result of the work
+     * @throws SQLException if the work fails, or no connection is free in time
+     * @throws IllegalArgumentException if the work is null
+     */
+    public <T> T executeOnce(@NotNull Work<T> work) throws SQLException {
+        if (work == null) {
+            throw new IllegalArgumentException("Work cannot be null!");
+        }
+
+        Handle handle = borrow();
+        boolean broken = false;
+
+        try {
+            return work.run(handle);
+        } catch (SQLException e) {
+            // statements survive most errors, so only throw the connection away if it broke
+            broken = e instanceof SQLRecoverableException || e instanceof SQLNonTransientConnectionException;
+            throw e;
+        } catch (RuntimeException e) {
+            // the work may have stopped part way through with a result set open, so start afresh
+            broken = true;
+            throw e;
+        } finally {
+            release(handle, broken);
+        }
+    }
+
+    /**
+     * Checks out a connection, reusing an idle one if there is one.
+     *
+     * @return the connection
+     * @throws SQLException if no connection is free in time, or a new one can't be opened
+     */
+    private Handle borrow() throws SQLException {
+        if (this.disposed) {
+            throw new SQLNonTransientConnectionException("The connection pool has been disposed!");
+        }
+
+        try {
+            if (!this.permits.tryAcquire(this.timeout_ms, TimeUnit.MILLISECONDS)) {
+                throw new PoolTimeoutException("Timed out after " + this.timeout_ms + "ms waiting for a database connection!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection!", e);
+        }
+
+        // the most recently used connection is the most likely to have the statement prepared already
+        Handle handle = this.idle.pollFirst();
+
+        if (handle != null) {
+            return handle;
+        }
+
+        try {
+            return new Handle(this.source.getConnection());
+        } catch (SQLException | RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool, or closes it if it is broken or the pool has been disposed.
+     *
+     * @param handle the connection
+     * @param broken whether the connection should be thrown away
+     */
+    private void release(Handle handle, boolean broken) {
+        if (broken || this.disposed) {
+            handle.close();
+        } else {
+            this.idle.offerFirst(handle);
+
+            // disposed while being returned, so make sure it is closed
+            if (this.disposed && this.idle.remove(handle)) {
+                handle.close();
+            }
+        }
+
+        this.permits.release();
+    }
+
+    /**
+     * Opens a connection outside the pool, for long running background work (e.g. migrations and backups) that
+     * shouldn't hold a pooled connection. The caller closes it.
+     *
+     * @return the connection
+     * @throws SQLException if the connection can't be opened
+     * @throws IllegalStateException if the pool has been disposed
+     */
+    @NotNull
+    public Connection openConnection() throws SQLException {
+        if (this.disposed) {
+            throw new IllegalStateException("The connection pool has been disposed!");
+        }
+
+        return this.source.getConnection();
+    }
+
+    /**
+     * Closes every idle connection, and every checked out connection once it is returned.
+     */
+    public void dispose() {
+        this.disposed = true;
+
+        Handle handle;
+
+        while ((handle = this.idle.pollFirst()) != null) {
+            handle.close();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Backs up the {@link PlayerDB database} once a day, during the maintenance window set in the config.<br>
+ * Backups run while the database is online, as throttled dumps read a chunk at a time, so lookups are never held up.
+ * H2 can only shrink the database file while it is closed, so that is left to when the proxy stops, and maintenance
+ * just reports how much of the file is free space waiting to be given back.
+ */
+public class DBMaintenance {
+    // wake up at least this often, in case the clock jumps (e.g. DST changes or NTP corrections)
+    private static final long MAX_DELAY_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static final String BACKUP_FOLDER = "backups";
+    private static final String BACKUP_PREFIX = "MagicMOTD-";
+    private static final String BACKUP_SUFFIX = ".sql.gz";
+    private static final DateTimeFormatter BACKUP_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HHmmss");
+
+    private final MagicMOTD plugin;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private HashedWheelTimer.Job window_task;
+
+    private volatile long last_run_time = 0;
+    private volatile long last_duration_ms = 0;
+    private volatile long last_backup_bytes = 0;
+    private volatile long last_free_space = 0;
+
+
+    /**
+     * Constructs a new {@link DBMaintenance}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public DBMaintenance(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Starts maintenance if the window is open and it hasn't run in this window yet,
+     * then schedules the next check for the next window boundary.
+     */
+    public synchronized void schedule() {
+        cancel();
+
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+
+        if (!config_loader.isParsed()) {
+            return;
+        }
+
+        MOTDSchedule window = config_loader.getParsedConfig().getMaintenanceWindow();
+
+        // maintenance is disabled
+        if (window == null) {
+            return;
+        }
+
+        Instant now = Instant.now();
+
+        if (window.isActive(now) && !hasRunInWindow(window, now)) {
+            this.plugin.getProxy().getScheduler().runAsync(this.plugin, this::run);
+        }
+
+        long delay = MAX_DELAY_MS;
+        Instant boundary = window.getNextBoundary(now);
+
+        if (boundary != null) {
+            delay = Math.min(delay, Math.max(0, Duration.between(now, boundary).toMillis()));
+        }
+
+        this.window_task = this.plugin.getTimer().schedule("maintenance-window", this::schedule, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the scheduled check, if any. Maintenance that is already running carries on until it finishes.
+     */
+    public synchronized void cancel() {
+        if (this.window_task != null) {
+            this.window_task.cancel();
+            this.window_task = null;
+        }
+    }
+
+    /**
+     * Checks whether maintenance has already run during the current opening of the window.
+     *
+     * @param window the maintenance window
+     * @param now    the current time
+     * @return true if it has run, false otherwise
+     */
+    private boolean hasRunInWindow(MOTDSchedule window, Instant now) {
+        if (this.last_run_time == 0) {
+            return false;
+        }
+
+        Instant last_run = Instant.ofEpochMilli(this.last_run_time);
+
+        // the window opens at most once a day, so a run inside it less than a day ago was this opening
+        return window.isActive(last_run) && Duration.between(last_run, now).compareTo(Duration.ofDays(1)) < 0;
+    }
+
+
+    /**
+     * Backs up the database, logging how long it took and how much of the database file is free.<br>
+     * Blocks until finished, so must not be called on the main thread. Does nothing if maintenance is already running.
+     */
+    public void run() {
+        PlayerDB player_db = this.plugin.getPlayerDB();
+
+        if (!player_db.isReady() || !this.plugin.getConfigLoader().isParsed()) {
+            return;
+        }
+
+        if (!this.running.compareAndSet(false, true)) {
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = this.plugin.getConfigLoader().getParsedConfig();
+        long start = System.nanoTime();
+        this.last_run_time = System.currentTimeMillis();
+
+        try {
+            long backup_bytes = 0;
+
+            if (config.getBackupKeep() > 0) {
+                backup_bytes = backup(player_db, config);
+            }
+
+            long free_space = player_db.getFreeSpace();
+
+            this.last_duration_ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            this.last_backup_bytes = backup_bytes;
+            this.last_free_space = free_space;
+
+            this.plugin.getLogger().info(String.format(
+                    "Database maintenance finished in %dms (backed up %d KiB, %d KiB free in the database file).",
+                    this.last_duration_ms, backup_bytes / 1024, free_space / 1024
+            ));
+        } catch (IOException | RuntimeException e) {
+            this.plugin.getLogger().warning("Database maintenance failed: " + e.getMessage());
+        } finally {
+            this.running.set(false);
+        }
+    }
+
+    /**
+     * Writes a new backup, then deletes the oldest backups past the number to keep.
+     *
+     * @param player_db the database
+     * @param config    the parsed config
+     * @return the number of bytes backed up
+     * @throws IOException if the backup can't be written
+     */
+    private long backup(PlayerDB player_db, ConfigLoader.ParsedConfig config) throws IOException {
+        File folder = new File(this.plugin.getDataFolder(), BACKUP_FOLDER);
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Could not create the backup folder " + folder.getPath());
+        }
+
+        File target = new File(folder, BACKUP_PREFIX + LocalDateTime.now().format(BACKUP_TIME_FORMAT) + BACKUP_SUFFIX);
+        long bytes = player_db.backup(target, config.getBackupMaxRate() * 1024);
+
+        // the names sort by time, so the oldest come first
+        File[] backups = folder.listFiles((dir, name) -> name.startsWith(BACKUP_PREFIX) && name.endsWith(BACKUP_SUFFIX));
+
+        if (backups != null && backups.length > config.getBackupKeep()) {
+            Arrays.sort(backups);
+
+            for (int i = 0; i < backups.length - config.getBackupKeep(); i++) {
+                if (!backups[i].delete()) {
+                    this.plugin.getLogger().warning("Could not delete old backup " + backups[i].getName());
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+
+    /**
+     * Gets whether maintenance is currently running.
+     *
+     * @return true if running, false otherwise
+     */
+    public boolean isRunning() {
+        return this.running.get();
+    }
+
+    /**
+     * Gets when maintenance last started.
+     *
+     * @return the time in epoch milliseconds, or 0 if it has never run
+     */
+    public long getLastRunTime() {
+        return this.last_run_time;
+    }
+
+    /**
+     * Gets how long the last successful maintenance took.
+     *
+     * @return the duration in milliseconds
+     */
+    public long getLastDuration() {
+        return this.last_duration_ms;
+    }
+
+    /**
+     * Gets how much was backed up by the last successful maintenance.
+     *
+     * @return the size of the (gzip compressed) backup file in bytes
+     */
+    public long getLastBackupBytes() {
+        return this.last_backup_bytes;
+    }
+
+    /**
+     * Gets how much of the database file was free space at the end of the last successful maintenance.
+     *
+     * @return the free space in bytes
+     */
+    public long getLastFreeSpace() {
+        return this.last_free_space;
+    }
+}
@@ -166,4 +166,22 @@ public class FontLib {
         }
         return sb + message;
     }
+
+    /**
+     * Centers each line of the message that starts with %C% (ignoring case), removing the marker.
+     *
+     * @param message the message, with its templates substituted
+     * @return the message with its marked lines centered
+     */
+    public static String centerLines(String message) {
+        String[] lines = message.split("\n");
+
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].toLowerCase().startsWith("%c%")) {
+                lines[i] = centerText(lines[i].substring(3));
+            }
+        }
+
+        return String.join("\n", lines);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,508 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single timer for every periodic background job (log draining, stats flushes, database probes and so on), so they
+ * share one thread that ticks rather than each holding a scheduler thread that sleeps between runs.<br>
+ * Jobs are kept in a hashed wheel of buckets, one per tick. Each tick only looks at its own bucket, so scheduling and
+ * firing a job costs the same however many jobs there are. Jobs fire to a small pool of worker threads, and a periodic
+ * job that is still running when it is next due skips that run, which is counted as an overrun.<br>
+ * Run times, failures and overruns are kept per job name, so they carry on across reloads that schedule a job again.
+ */
+public class HashedWheelTimer {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // a power of two, so the bucket of a tick is found with a mask. One turn of the wheel is 51.2 seconds
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    // enough that a slow database job can't hold up the quick jobs that run every few hundred milliseconds
+    private static final int WORKER_THREADS = 4;
+
+    private static final long DRAIN_TIMEOUT_SECONDS = 5;
+
+    private final MagicMOTD plugin;
+
+    /**
+     * The run time, failure and overrun counts of every job scheduled under a name.
+     */
+    public static final class JobStats {
+        private final String name;
+        private final LongAdder runs = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder overruns = new LongAdder();
+        private final LongAdder total_run_nanos = new LongAdder();
+        private final AtomicLong max_run_nanos = new AtomicLong();
+        private volatile long last_run_nanos = 0;
+
+        // only the first overrun is logged, as a job that overruns once usually keeps doing it
+        private final AtomicBoolean overrun_logged = new AtomicBoolean(false);
+
+        private JobStats(String name) {
+            this.name = name;
+        }
+
+        @NotNull
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets how many times the job has run, including runs that failed.
+         *
+         * @return the number of runs
+         */
+        public long getRuns() {
+            return this.runs.sum();
+        }
+
+        /**
+         * Gets how many runs of the job threw an exception.
+         *
+         * @return the number of failures
+         */
+        public long getFailures() {
+            return this.failures.sum();
+        }
+
+        /**
+         * Gets how many runs of the job were skipped because the run before was still going when it was due.
+         *
+         * @return the number of overruns
+         */
+        public long getOverruns() {
+            return this.overruns.sum();
+        }
+
+        /**
+         * Gets the average time a run of the job took.
+         *
+         * @return the average run time in nanoseconds, or 0 if it has never run
+         */
+        public long getAverageRunNanos() {
+            long runs = this.runs.sum();
+            return runs == 0 ? 0 : this.total_run_nanos.sum() / runs;
+        }
+
+        /**
+         * Gets the longest time a run of the job took.
+         *
+         * @return the longest run time in nanoseconds
+         */
+        public long getMaxRunNanos() {
+            return this.max_run_nanos.get();
+        }
+
+        /**
+         * Gets the time the last run of the job took.
+         *
+         * @return the last run time in nanoseconds, or 0 if it has never run
+         */
+        public long getLastRunNanos() {
+            return this.last_run_nanos;
+        }
+
+        /**
+         * Records a finished run.
+         *
+         * @param nanos  how long the run took
+         * @param failed whether it threw an exception
+         */
+        private void recordRun(long nanos, boolean failed) {
+            this.runs.increment();
+            this.total_run_nanos.add(nanos);
+            this.max_run_nanos.accumulateAndGet(nanos, Math::max);
+            this.last_run_nanos = nanos;
+
+            if (failed) {
+                this.failures.increment();
+            }
+        }
+    }
+
+    /**
+     * A scheduled job, which can be cancelled.
+     */
+    public final class Job {
+        private final Runnable task;
+        private final JobStats stats;
+        private final long period_nanos;
+
+        // only touched by the tick thread
+        private long deadline;
+        private long remaining_rounds;
+
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+
+        private Job(Runnable task, JobStats stats, long deadline, long period_nanos) {
+            this.task = task;
+            this.stats = stats;
+            this.deadline = deadline;
+            this.period_nanos = period_nanos;
+        }
+
+        /**
+         * Cancels the job. A run that has already started carries on until it finishes.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        /**
+         * Returns whether the job has been cancelled.
+         *
+         * @return true if cancelled, false otherwise
+         */
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        @NotNull
+        public String getName() {
+            return this.stats.name;
+        }
+
+        /**
+         * Runs the task on a worker thread, recording how long it took.
+         */
+        private void run() {
+            try {
+                // cancelled after it was handed to the workers
+                if (this.cancelled) {
+                    return;
+                }
+
+                long start = System.nanoTime();
+                boolean failed = false;
+
+                try {
+                    this.task.run();
+                } catch (RuntimeException e) {
+                    failed = true;
+                    // a job that fails every run would flood the log otherwise
+                    HashedWheelTimer.this.plugin.getHotPathLogger().warning("Background job " + this.stats.name + " failed", e.toString());
+                } finally {
+                    this.stats.recordRun(System.nanoTime() - start, failed);
+                }
+            } finally {
+                this.running.set(false);
+            }
+        }
+    }
+
+    // jobs scheduled since the last tick, which the tick thread moves into the wheel
+    private final Queue<Job> pending = new ConcurrentLinkedQueue<>();
+
+    // only touched by the tick thread while it runs
+    private final List<List<Job>> buckets = new ArrayList<>(WHEEL_SIZE);
+    private long start_time;
+    private long current_tick;
+
+    private final Map<String, JobStats> stats = new ConcurrentHashMap<>();
+
+    private Thread tick_thread;
+    private ExecutorService workers;
+    private volatile boolean running = false;
+
+
+    /**
+     * Constructs a new {@link HashedWheelTimer}. Jobs don't run until it is {@link #start() started}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public HashedWheelTimer(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.buckets.add(new ArrayList<>());
+        }
+    }
+
+
+    /**
+     * Schedules a job to run once after a delay.
+     *
+     * @param name  the name the job's stats are kept under
+     * @param task  the task
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return the job
+     * @throws IllegalArgumentException if any argument is null or the delay is negative
+     */
+    @NotNull
+    public Job schedule(@NotNull String name, @NotNull Runnable task, long delay, @NotNull TimeUnit unit) {
+        return schedule(name, task, delay, 0, unit);
+    }
+
+    /**
+     * Schedules a job to run after a delay, then repeatedly at a fixed rate. Runs are never concurrent, so a run that
+     * would start while the last is still going is skipped (and counted as an overrun) instead.<br>
+     * Jobs scheduled while the timer is stopped start once it is started. The timer ticks every 100ms, so jobs fire up
+     * to a tick late.
+     *
+     * @param name   the name the job's stats are kept under
+     * @param task   the task
+     * @param delay  the delay before the first run
+     * @param period the time between the starts of runs, or 0 to only run once
+     * @param unit   the unit of the delay and period
+     * @return the job
+     * @throws IllegalArgumentException if any argument is null or the delay or period is negative
+     */
+    @NotNull
+    public Job schedule(@NotNull String name, @NotNull Runnable task, long delay, long period, @NotNull TimeUnit unit) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null!");
+        }
+
+        if (task == null) {
+            throw new IllegalArgumentException("Task cannot be null!");
+        }
+
+        if (unit == null) {
+            throw new IllegalArgumentException("Unit cannot be null!");
+        }
+
+        if (delay < 0) {
+            throw new IllegalArgumentException("Delay cannot be negative!");
+        }
+
+        if (period < 0) {
+            throw new IllegalArgumentException("Period cannot be negative!");
+        }
+
+        JobStats stats = this.stats.computeIfAbsent(name, JobStats::new);
+        Job job = new Job(task, stats, System.nanoTime() + unit.toNanos(delay), unit.toNanos(period));
+
+        this.pending.add(job);
+        return job;
+    }
+
+
+    /**
+     * Starts the tick thread and the worker threads.
+     *
+     * @throws IllegalStateException if the timer is already running
+     */
+    public synchronized void start() {
+        if (this.running) {
+            throw new IllegalStateException("Timer is already running!");
+        }
+
+        this.running = true;
+        this.start_time = System.nanoTime();
+        this.current_tick = 0;
+        this.workers = AsyncExecutors.newPlatformExecutor("MagicMOTD-timer-worker", WORKER_THREADS);
+
+        this.tick_thread = new Thread(this::tickLoop, "MagicMOTD-timer");
+        this.tick_thread.setDaemon(true);
+        this.tick_thread.start();
+    }
+
+    /**
+     * Stops the timer, dropping every scheduled job, then waits a few seconds for runs that have already started.
+     * Jobs scheduled after this only start if the timer is started again.
+     */
+    public synchronized void stop() {
+        if (!this.running) {
+            return;
+        }
+
+        this.running = false;
+        LockSupport.unpark(this.tick_thread);
+
+        try {
+            this.tick_thread.join(TimeUnit.SECONDS.toMillis(DRAIN_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.tick_thread = null;
+        this.pending.clear();
+
+        for (List<Job> bucket : this.buckets) {
+            bucket.clear();
+        }
+
+        this.workers.shutdown();
+
+        try {
+            if (!this.workers.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                this.plugin.getLogger().warning("Some background jobs didn't finish in time and were abandoned.");
+                this.workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.workers = null;
+    }
+
+    /**
+     * Returns whether the timer is running.
+     *
+     * @return true if running, false otherwise
+     */
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * Gets the stats of every job name that has been scheduled since the plugin was loaded.
+     *
+     * @return the stats, sorted by job name
+     */
+    @NotNull
+    public Map<String, JobStats> getStats() {
+        return new TreeMap<>(this.stats);
+    }
+
+
+    /**
+     * Ticks until the timer is stopped, firing the jobs in each tick's bucket.
+     */
+    private void tickLoop() {
+        while (this.running) {
+            long wake_time = this.start_time + (this.current_tick + 1) * TICK_NANOS;
+            long now;
+
+            while (this.running && (now = System.nanoTime()) - wake_time < 0) {
+                LockSupport.parkNanos(this, wake_time - now);
+            }
+
+            if (!this.running) {
+                return;
+            }
+
+            // a tick that was missed (e.g. during a long GC pause) is caught up straight away
+            this.current_tick++;
+
+            Job job;
+
+            while ((job = this.pending.poll()) != null) {
+                if (!job.cancelled) {
+                    insert(job, this.current_tick);
+                }
+            }
+
+            expire(this.buckets.get((int) (this.current_tick & WHEEL_MASK)));
+        }
+    }
+
+    /**
+     * Puts a job into the bucket of the tick it is due in.
+     *
+     * @param job      the job
+     * @param min_tick the earliest tick it can go in, for jobs that are already due
+     */
+    private void insert(Job job, long min_tick) {
+        long due_tick = Math.max(min_tick, ceilDiv(job.deadline - this.start_time, TICK_NANOS));
+
+        job.remaining_rounds = (due_tick - this.current_tick) / WHEEL_SIZE;
+        this.buckets.get((int) (due_tick & WHEEL_MASK)).add(job);
+    }
+
+    /**
+     * Fires the jobs in the bucket that are due this turn of the wheel, and puts periodic jobs back for their next run.
+     *
+     * @param bucket the bucket of the current tick
+     */
+    private void expire(List<Job> bucket) {
+        List<Job> repeating = null;
+        Iterator<Job> iterator = bucket.iterator();
+
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+
+            if (job.cancelled) {
+                iterator.remove();
+                continue;
+            }
+
+            if (job.remaining_rounds > 0) {
+                job.remaining_rounds--;
+                continue;
+            }
+
+            iterator.remove();
+            fire(job);
+
+            if (job.period_nanos == 0) {
+                continue;
+            }
+
+            // keep to the fixed rate, unless the timer fell so far behind that the next run is already due
+            job.deadline = Math.max(job.deadline + job.period_nanos, System.nanoTime());
+
+            if (repeating == null) {
+                repeating = new ArrayList<>();
+            }
+
+            repeating.add(job);
+        }
+
+        // only once the bucket has been read, as a job due again within a tick would go back into it
+        if (repeating != null) {
+            for (Job job : repeating) {
+                insert(job, this.current_tick + 1);
+            }
+        }
+    }
+
+    /**
+     * Hands a job to the workers, unless its last run is still going.
+     *
+     * @param job the job
+     */
+    private void fire(Job job) {
+        if (!job.running.compareAndSet(false, true)) {
+            job.stats.overruns.increment();
+
+            if (job.stats.overrun_logged.compareAndSet(false, true)) {
+                this.plugin.getLogger().warning("Background job " + job.stats.name + " is taking longer than its "
+                        + TimeUnit.NANOSECONDS.toMillis(job.period_nanos) + "ms period, so runs are being skipped. See /motdhealth for its run times.");
+            }
+
+            return;
+        }
+
+        try {
+            this.workers.execute(job::run);
+        } catch (RejectedExecutionException e) {
+            job.running.set(false);
+        }
+    }
+
+    /**
+     * Divides, rounding up.
+     *
+     * @param dividend the dividend, which may be negative
+     * @param divisor  the divisor, which must be positive
+     * @return the rounded up quotient
+     */
+    private static long ceilDiv(long dividend, long divisor) {
+        return -Math.floorDiv(-dividend, divisor);
+    }
+}
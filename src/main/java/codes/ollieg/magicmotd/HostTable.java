@@ -0,0 +1,220 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A hash table of hostnames (the virtual host players connect with, e.g. eu.example.com) to integer values.<br>
+ * Hostnames are matched ignoring ASCII case and a trailing dot. Case is folded while hashing and comparing, so lookups
+ * don't allocate a lowercased copy of the hostname on every ping. Internationalised hostnames arrive in their ASCII
+ * (punycode) form, so folding ASCII is enough.<br>
+ * The table is built once (when the config is parsed) and is safe to read from many threads once published.
+ */
+public class HostTable {
+    /**
+     * The value returned by lookups when no hostname matches.
+     */
+    public static final int NO_MATCH = -1;
+
+    // open addressing with linear probing, kept at most half full so probes stay short
+    private String[] keys = new String[16];
+    private int[] values = new int[16];
+    private int size = 0;
+
+
+    /**
+     * Gets the number of hostnames in the table.
+     *
+     * @return the number of hostnames
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Normalises a hostname the way lookups see it: ASCII lowercase, without surrounding whitespace or a trailing dot.
+     *
+     * @param host the hostname
+     * @return the normalised hostname
+     * @throws IllegalArgumentException if the hostname is null
+     */
+    @NotNull
+    public static String normalise(@NotNull String host) {
+        if (host == null) {
+            throw new IllegalArgumentException("Host cannot be null!");
+        }
+
+        host = host.trim();
+        int length = trimmedLength(host);
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = fold(host.charAt(i));
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Inserts a hostname, replacing the value if it is already in the table.
+     *
+     * @param host  the hostname, which is normalised first
+     * @param value the value, which must not be negative
+     * @throws IllegalArgumentException if the hostname is null or empty, or the value is negative
+     */
+    public void insert(@NotNull String host, int value) {
+        if (host == null) {
+            throw new IllegalArgumentException("Host cannot be null!");
+        }
+
+        if (value < 0) {
+            throw new IllegalArgumentException("Value cannot be negative!");
+        }
+
+        String key = normalise(host);
+
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Host cannot be empty!");
+        }
+
+        if ((this.size + 1) * 2 > this.keys.length) {
+            resize();
+        }
+
+        int mask = this.keys.length - 1;
+        int slot = hash(key, key.length()) & mask;
+
+        while (this.keys[slot] != null) {
+            if (this.keys[slot].equals(key)) {
+                this.values[slot] = value;
+                return;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        this.size++;
+    }
+
+    /**
+     * Doubles the capacity of the table, reinserting every hostname.
+     */
+    private void resize() {
+        String[] old_keys = this.keys;
+        int[] old_values = this.values;
+
+        this.keys = new String[old_keys.length * 2];
+        this.values = new int[old_keys.length * 2];
+        int mask = this.keys.length - 1;
+
+        for (int i = 0; i < old_keys.length; i++) {
+            if (old_keys[i] == null) {
+                continue;
+            }
+
+            int slot = hash(old_keys[i], old_keys[i].length()) & mask;
+
+            while (this.keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+
+            this.keys[slot] = old_keys[i];
+            this.values[slot] = old_values[i];
+        }
+    }
+
+    /**
+     * Looks up the value of a hostname, ignoring ASCII case and a trailing dot. Doesn't allocate.
+     *
+     * @param host the hostname as the client sent it
+     * @return the value, or {@link #NO_MATCH} if the hostname isn't in the table
+     * @throws IllegalArgumentException if the hostname is null
+     */
+    public int lookup(@NotNull String host) {
+        if (host == null) {
+            throw new IllegalArgumentException("Host cannot be null!");
+        }
+
+        if (this.size == 0) {
+            return NO_MATCH;
+        }
+
+        int length = trimmedLength(host);
+        int mask = this.keys.length - 1;
+        int slot = hash(host, length) & mask;
+
+        while (this.keys[slot] != null) {
+            if (matches(this.keys[slot], host, length)) {
+                return this.values[slot];
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return NO_MATCH;
+    }
+
+
+    /**
+     * Gets the length of a hostname without its trailing dot, if it has one.
+     *
+     * @param host the hostname
+     * @return the length
+     */
+    private static int trimmedLength(String host) {
+        int length = host.length();
+        return length > 0 && host.charAt(length - 1) == '.' ? length - 1 : length;
+    }
+
+    /**
+     * Lowercases an ASCII letter, leaving any other character as it is.
+     *
+     * @param c the character
+     * @return the folded character
+     */
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Hashes the start of a hostname with FNV-1a, folding case as it goes.
+     *
+     * @param host   the hostname
+     * @param length how many characters to hash
+     * @return the hash
+     */
+    private static int hash(String host, int length) {
+        int hash = 0x811C9DC5;
+
+        for (int i = 0; i < length; i++) {
+            hash ^= fold(host.charAt(i));
+            hash *= 0x01000193;
+        }
+
+        // FNV's low bits are weak, and only the low bits pick the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Compares a normalised key with the start of a hostname, folding the hostname's case.
+     *
+     * @param key    the normalised key
+     * @param host   the hostname
+     * @param length how many characters of the hostname to compare
+     * @return true if they match, false otherwise
+     */
+    private static boolean matches(String key, String host, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != fold(host.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
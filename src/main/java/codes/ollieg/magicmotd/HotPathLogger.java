@@ -0,0 +1,187 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Logs warnings from hot paths (pings and logins) without letting a flood of them slow the proxy down.<br>
+ * The first warning of each kind in a summary interval is logged, and the rest are only counted, then reported together
+ * at the end of the interval (e.g. "1234 more warnings in the last 10s: Could not resolve name for IP").
+ * Callers never write to the log themselves: lines are handed to a bounded queue, which is written out on a timer,
+ * and lines that don't fit are dropped and counted.
+ */
+public class HotPathLogger {
+    private static final long SUMMARY_INTERVAL_SECONDS = 10;
+    private static final long DRAIN_INTERVAL_MS = 500;
+
+    // the most lines waiting to be written, past which lines are dropped
+    private static final int QUEUE_SIZE = 256;
+
+    // the most kinds of warning to track, past which they are all counted together
+    private static final int MAX_KINDS = 64;
+    private static final String OTHER_KIND = "Other warnings";
+
+    private final MagicMOTD plugin;
+
+    /**
+     * The state of a single kind of warning.
+     */
+    private static final class Kind {
+        private final AtomicLong next_log_time = new AtomicLong(System.nanoTime());
+        private final LongAdder suppressed = new LongAdder();
+        private volatile String last_detail;
+    }
+
+    private final Map<String, Kind> kinds = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final LongAdder dropped = new LongAdder();
+
+    private HashedWheelTimer.Job drain_task;
+    private HashedWheelTimer.Job summary_task;
+
+
+    /**
+     * Constructs a new {@link HotPathLogger}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public HotPathLogger(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Logs a warning, unless one of the same kind was already logged in this summary interval, in which case it is
+     * counted towards the summary instead. Never blocks.
+     *
+     * @param kind   what went wrong, which is the same for every warning of this kind (e.g. "Could not resolve name for IP")
+     * @param detail the details of this warning (e.g. the IP and error message), or null if there are none
+     * @throws IllegalArgumentException if the kind is null
+     */
+    public void warning(@NotNull String kind, String detail) {
+        if (kind == null) {
+            throw new IllegalArgumentException("Kind cannot be null!");
+        }
+
+        Kind state = getKind(kind);
+        long now = System.nanoTime();
+        long next = state.next_log_time.get();
+
+        // only the first warning of the interval to win the race is logged
+        if (now - next >= 0 && state.next_log_time.compareAndSet(next, now + TimeUnit.SECONDS.toNanos(SUMMARY_INTERVAL_SECONDS))) {
+            enqueue(detail == null ? kind : kind + ": " + detail);
+            return;
+        }
+
+        state.suppressed.increment();
+        state.last_detail = detail;
+    }
+
+    /**
+     * Gets the state of a kind of warning, creating it if it doesn't exist.
+     *
+     * @param kind the kind of warning
+     * @return the state
+     */
+    private Kind getKind(String kind) {
+        Kind existing = this.kinds.get(kind);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        // a rough bound is enough, as kinds are fixed strings at each call site
+        if (this.kinds.size() >= MAX_KINDS) {
+            return this.kinds.computeIfAbsent(OTHER_KIND, key -> new Kind());
+        }
+
+        return this.kinds.computeIfAbsent(kind, key -> new Kind());
+    }
+
+    /**
+     * Hands a line to the writer, dropping it if the queue is full.
+     *
+     * @param line the line
+     */
+    private void enqueue(String line) {
+        if (!this.queue.offer(line)) {
+            this.dropped.increment();
+        }
+    }
+
+
+    /**
+     * Queues a summary line for each kind of warning that was counted but not logged during the last interval.
+     */
+    public void summarise() {
+        for (Map.Entry<String, Kind> entry : this.kinds.entrySet()) {
+            long suppressed = entry.getValue().suppressed.sumThenReset();
+
+            if (suppressed == 0) {
+                continue;
+            }
+
+            String detail = entry.getValue().last_detail;
+
+            enqueue(String.format("%d more warnings in the last %ds: %s%s",
+                    suppressed, SUMMARY_INTERVAL_SECONDS, entry.getKey(), detail == null ? "" : " (last: " + detail + ")"));
+        }
+    }
+
+    /**
+     * Writes out every queued line, then how many lines were dropped since the last drain, if any.
+     */
+    public void drain() {
+        Logger logger = this.plugin.getLogger();
+        String line;
+
+        while ((line = this.queue.poll()) != null) {
+            logger.warning(line);
+        }
+
+        long dropped = this.dropped.sumThenReset();
+
+        if (dropped > 0) {
+            logger.warning("Dropped " + dropped + " warnings, as they were logged faster than they could be written.");
+        }
+    }
+
+
+    /**
+     * Starts writing out queued lines and summaries on a timer.
+     */
+    public synchronized void start() {
+        stop();
+
+        this.drain_task = this.plugin.getTimer().schedule("log-drain", this::drain, DRAIN_INTERVAL_MS, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        this.summary_task = this.plugin.getTimer().schedule("log-summary", this::summarise, SUMMARY_INTERVAL_SECONDS, SUMMARY_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the timers. Doesn't write out the remaining lines, call {@link #summarise()} and {@link #drain()} for that.
+     */
+    public synchronized void stop() {
+        if (this.drain_task != null) {
+            this.drain_task.cancel();
+            this.drain_task = null;
+        }
+
+        if (this.summary_task != null) {
+            this.summary_task.cancel();
+            this.summary_task = null;
+        }
+    }
+}
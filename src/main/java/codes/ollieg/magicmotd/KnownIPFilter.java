@@ -0,0 +1,302 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A scalable Bloom filter of the IP addresses stored in the {@link PlayerDB}.<br>
+ * If the filter says an IP isn't known, it is definitely not in the database, so the lookup can be skipped.
+ * Known IPs may be false positives (at roughly {@link #FALSE_POSITIVE_RATE}), which just cost a normal lookup.<br>
+ * The filter grows by adding larger, stricter stages as IPs are added, so it never needs to know the final size up front.
+ * IPs can't be removed, so the filter must be rebuilt from the database after deletes.
+ */
+public class KnownIPFilter {
+    /**
+     * The target false positive rate of the whole filter.
+     */
+    public static final double FALSE_POSITIVE_RATE = 0.01;
+
+    // each new stage holds twice as many IPs as the last, with half the false positive rate,
+    // so the total rate stays under FALSE_POSITIVE_RATE however many stages there are
+    private static final int MIN_CAPACITY = 1024;
+    private static final int GROWTH_FACTOR = 2;
+    private static final double TIGHTENING_RATIO = 0.5;
+
+    /**
+     * A fixed-size Bloom filter.
+     */
+    private static final class Stage {
+        private final AtomicLongArray words;
+        private final long bit_count;
+        private final int hash_count;
+        private final int capacity;
+        private final double false_positive_rate;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private Stage(int capacity, double false_positive_rate) {
+            // the optimal size and number of hashes for the capacity and false positive rate
+            long bits = (long) Math.ceil(-capacity * Math.log(false_positive_rate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) >>> 6);
+
+            this.words = new AtomicLongArray(words);
+            this.bit_count = (long) words << 6;
+            this.hash_count = Math.max(1, (int) Math.round((double) this.bit_count / capacity * Math.log(2)));
+            this.capacity = capacity;
+            this.false_positive_rate = false_positive_rate;
+        }
+
+        private boolean mightContain(long hash_1, long hash_2) {
+            for (int i = 0; i < this.hash_count; i++) {
+                long bit = Math.floorMod(hash_1 + i * hash_2, this.bit_count);
+
+                if ((this.words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void add(long hash_1, long hash_2) {
+            for (int i = 0; i < this.hash_count; i++) {
+                long bit = Math.floorMod(hash_1 + i * hash_2, this.bit_count);
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+
+                long word;
+                do {
+                    word = this.words.get(index);
+                } while ((word & mask) == 0 && !this.words.compareAndSet(index, word, word | mask));
+            }
+
+            this.count.incrementAndGet();
+        }
+    }
+
+    // replaced (never modified) when a stage is added, so readers never need to lock
+    private volatile Stage[] stages;
+
+
+    /**
+     * Constructs a new, empty {@link KnownIPFilter}.
+     *
+     * @param expected_ips roughly how many IPs will be added, used to size the first stage
+     */
+    public KnownIPFilter(int expected_ips) {
+        // leave room for growth so a freshly built filter doesn't immediately need a second stage
+        int capacity = (int) Math.min(Integer.MAX_VALUE / GROWTH_FACTOR, Math.max(MIN_CAPACITY, (long) expected_ips * GROWTH_FACTOR));
+        this.stages = new Stage[]{new Stage(capacity, FALSE_POSITIVE_RATE * (1 - TIGHTENING_RATIO))};
+    }
+
+
+    /**
+     * Checks whether the IP might be known.
+     *
+     * @param ip the IP address
+     * @return false if the IP is definitely not known, true if it might be
+     * @throws IllegalArgumentException if the IP is null
+     */
+    public boolean mightContain(@NotNull String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
+        }
+
+        return mightContain(hash(ip));
+    }
+
+    /**
+     * Checks whether the IP might be known, by its {@link PlayerDB#toKey(String) key}.
+     *
+     * @param key the IP address key
+     * @return false if the IP is definitely not known, true if it might be
+     * @throws IllegalArgumentException if the key is null
+     */
+    public boolean mightContain(@NotNull byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+
+        return mightContain(hash(key));
+    }
+
+    /**
+     * Checks whether the hashed IP might be known.
+     *
+     * @param hash_1 the hash of the IP
+     * @return false if the IP is definitely not known, true if it might be
+     */
+    private boolean mightContain(long hash_1) {
+        long hash_2 = mix(hash_1 ^ 0x9E3779B97F4A7C15L) | 1;
+
+        for (Stage stage : this.stages) {
+            if (stage.mightContain(hash_1, hash_2)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds the IP to the filter, if it isn't already known.
+     *
+     * @param ip the IP address
+     * @throws IllegalArgumentException if the IP is null
+     */
+    public void add(@NotNull String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
+        }
+
+        add(hash(ip));
+    }
+
+    /**
+     * Adds the IP to the filter by its {@link PlayerDB#toKey(String) key}, if it isn't already known.
+     *
+     * @param key the IP address key
+     * @throws IllegalArgumentException if the key is null
+     */
+    public void add(@NotNull byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+
+        add(hash(key));
+    }
+
+    /**
+     * Adds the hashed IP to the filter, if it isn't already known.
+     *
+     * @param hash_1 the hash of the IP
+     */
+    private void add(long hash_1) {
+        long hash_2 = mix(hash_1 ^ 0x9E3779B97F4A7C15L) | 1;
+
+        Stage[] stages = this.stages;
+
+        // most adds are returning players, so don't fill up the filter with them again
+        for (Stage stage : stages) {
+            if (stage.mightContain(hash_1, hash_2)) {
+                return;
+            }
+        }
+
+        Stage last = stages[stages.length - 1];
+
+        if (last.count.get() >= last.capacity) {
+            last = grow(last);
+        }
+
+        last.add(hash_1, hash_2);
+    }
+
+    /**
+     * Adds a new stage if the full stage is still the last one.
+     *
+     * @param full the stage that is full
+     * @return the new last stage
+     */
+    private synchronized Stage grow(Stage full) {
+        Stage[] stages = this.stages;
+        Stage last = stages[stages.length - 1];
+
+        // another thread already grew the filter
+        if (last != full) {
+            return last;
+        }
+
+        int capacity = (int) Math.min(Integer.MAX_VALUE / GROWTH_FACTOR, (long) last.capacity * GROWTH_FACTOR);
+        Stage[] grown = new Stage[stages.length + 1];
+        System.arraycopy(stages, 0, grown, 0, stages.length);
+        grown[stages.length] = new Stage(capacity, last.false_positive_rate * TIGHTENING_RATIO);
+
+        this.stages = grown;
+        return grown[stages.length];
+    }
+
+
+    /**
+     * Gets roughly how many IPs have been added.<br>
+     * IPs that were false positives when added aren't counted.
+     *
+     * @return the number of IPs
+     */
+    public int size() {
+        int size = 0;
+
+        for (Stage stage : this.stages) {
+            size += stage.count.get();
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the memory used by the filter's bits.
+     *
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        long bytes = 0;
+
+        for (Stage stage : this.stages) {
+            bytes += stage.bit_count >>> 3;
+        }
+
+        return bytes;
+    }
+
+
+    /**
+     * Hashes the IP into 64 bits.
+     *
+     * @param ip the IP address
+     * @return the hash
+     */
+    private static long hash(String ip) {
+        // FNV-1a, then mixed so similar addresses spread across the whole range
+        long hash = 0xCBF29CE484222325L;
+
+        for (int i = 0; i < ip.length(); i++) {
+            hash ^= ip.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * Hashes the IP key into 64 bits.
+     *
+     * @param key the IP address key
+     * @return the hash
+     */
+    private static long hash(byte[] key) {
+        long hash = 0xCBF29CE484222325L;
+
+        for (byte b : key) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * The MurmurHash3 64-bit finaliser.
+     *
+     * @param hash the value to mix
+     * @return the mixed value
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB93FE1A85EC3L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,178 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * The list of MOTDs, made up of the MOTDs written in the config followed by the entries of the catalog files.<br>
+ * Config MOTDs are few, so they are compiled when parsed. Catalog entries may number in the thousands, so they are kept
+ * as deduplicated UTF-8 bytes and only compiled when first used, with the most recently used compiled forms kept in a
+ * bounded {@link StripedLRUCache}, so pings on different threads rarely wait on each other. Memory therefore grows with
+ * the raw size of the catalog, not its compiled size.<br>
+ * Once published (as part of a {@link ConfigLoader.ParsedConfig}), the list is never changed, so it is safe to read from many threads.
+ */
+public class MOTDCatalog extends AbstractList<String> implements RandomAccess {
+    private final List<String> compiled = new ArrayList<>();
+    private final List<byte[]> entries = new ArrayList<>();
+
+    // identical entries (within and across catalog files) share the same bytes
+    private final Map<ByteBuffer, byte[]> interned = new HashMap<>();
+
+    private final Function<String, String> compiler;
+    private final StripedLRUCache<Integer, String> cache;
+
+
+    /**
+     * Constructs a new, empty {@link MOTDCatalog}.
+     *
+     * @param compiler   compiles a catalog entry into its MOTD (e.g. translating colour codes)
+     * @param cache_size the most compiled catalog entries to keep
+     * @throws IllegalArgumentException if the compiler is null or the cache size isn't positive
+     */
+    public MOTDCatalog(@NotNull Function<String, String> compiler, int cache_size) {
+        if (compiler == null) {
+            throw new IllegalArgumentException("Compiler cannot be null!");
+        }
+
+        if (cache_size <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive!");
+        }
+
+        this.compiler = compiler;
+        this.cache = new StripedLRUCache<>(cache_size);
+    }
+
+
+    /**
+     * Adds an MOTD that has already been compiled. Must be called before any catalog entries are added.
+     *
+     * @param motd the compiled MOTD
+     * @return true
+     * @throws IllegalArgumentException if the MOTD is null
+     * @throws IllegalStateException    if catalog entries have already been added
+     */
+    @Override
+    public boolean add(@NotNull String motd) {
+        if (motd == null) {
+            throw new IllegalArgumentException("MOTD cannot be null!");
+        }
+
+        if (!this.entries.isEmpty()) {
+            throw new IllegalStateException("Compiled MOTDs must be added before catalog entries!");
+        }
+
+        this.modCount++;
+        return this.compiled.add(motd);
+    }
+
+    /**
+     * Adds a catalog entry, to be compiled when first used.
+     *
+     * @param entry the entry as written in the catalog
+     * @throws IllegalArgumentException if the entry is null
+     */
+    public void addEntry(@NotNull String entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException("Entry cannot be null!");
+        }
+
+        addEntry(entry.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds a catalog entry, to be compiled when first used.
+     *
+     * @param entry the entry as written in the catalog, in UTF-8
+     * @throws IllegalArgumentException if the entry is null
+     */
+    public void addEntry(@NotNull byte[] entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException("Entry cannot be null!");
+        }
+
+        byte[] existing = this.interned.putIfAbsent(ByteBuffer.wrap(entry), entry);
+
+        this.modCount++;
+        this.entries.add(existing == null ? entry : existing);
+    }
+
+    /**
+     * Gets the MOTD at the index, compiling it if it is a catalog entry that isn't cached.
+     *
+     * @param index the index
+     * @return the compiled MOTD
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    @Override
+    public String get(int index) {
+        int compiled_count = this.compiled.size();
+
+        if (index < compiled_count) {
+            return this.compiled.get(index);
+        }
+
+        int entry = index - compiled_count;
+
+        if (entry >= this.entries.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        String cached = this.cache.get(entry);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        // compiling twice in a race is harmless, the result is the same
+        String motd = this.compiler.apply(new String(this.entries.get(entry), StandardCharsets.UTF_8));
+        this.cache.put(entry, motd);
+
+        return motd;
+    }
+
+    @Override
+    public int size() {
+        return this.compiled.size() + this.entries.size();
+    }
+
+
+    /**
+     * Gets the number of MOTDs written in the config, which come before the catalog entries and are always compiled.
+     *
+     * @return the number of config MOTDs
+     */
+    public int getCompiledCount() {
+        return this.compiled.size();
+    }
+
+    /**
+     * Gets the number of catalog entries.
+     *
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * Gets the number of distinct catalog entries, after deduplication.
+     *
+     * @return the number of distinct entries
+     */
+    public int getDistinctEntryCount() {
+        return this.interned.size();
+    }
+
+    /**
+     * Gets the number of compiled catalog entries currently cached.
+     *
+     * @return the number of cached entries
+     */
+    public int getCachedCount() {
+        return this.cache.size();
+    }
+}
@@ -0,0 +1,218 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.*;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The time window in which a scheduled MOTD is active.<br>
+ * A schedule can have an absolute start and/or end, and/or a daily window (which may wrap past midnight).
+ */
+public class MOTDSchedule {
+    private final ZonedDateTime start;
+    private final ZonedDateTime end;
+    private final LocalTime daily_start;
+    private final LocalTime daily_end;
+    private final ZoneId zone;
+
+
+    /**
+     * Constructs a new {@link MOTDSchedule}.
+     *
+     * @param start       the time the MOTD becomes active, or null for no start
+     * @param end         the time the MOTD stops being active, or null for no end
+     * @param daily_start the start of the daily window, or null for no daily window
+     * @param daily_end   the end of the daily window, or null for no daily window
+     * @param zone        the time zone the schedule is in
+     * @throws IllegalArgumentException if the zone is null, only one of the daily times is given, or the end is not after the start
+     */
+    public MOTDSchedule(@Nullable ZonedDateTime start, @Nullable ZonedDateTime end, @Nullable LocalTime daily_start, @Nullable LocalTime daily_end, @NotNull ZoneId zone) {
+        if (zone == null) {
+            throw new IllegalArgumentException("Zone cannot be null!");
+        }
+
+        if ((daily_start == null) != (daily_end == null)) {
+            throw new IllegalArgumentException("Daily window must have both a start and an end!");
+        }
+
+        if (daily_start != null && daily_start.equals(daily_end)) {
+            throw new IllegalArgumentException("Daily window cannot start and end at the same time!");
+        }
+
+        if (start != null && end != null && !end.isAfter(start)) {
+            throw new IllegalArgumentException("Schedule end must be after its start!");
+        }
+
+        this.start = start;
+        this.end = end;
+        this.daily_start = daily_start;
+        this.daily_end = daily_end;
+        this.zone = zone;
+    }
+
+
+    /**
+     * Parses a schedule from its config values.<br>
+     * Start and end accept an ISO date (2024-12-25) or date-time (2024-12-25T18:00). The daily window is written as HH:mm-HH:mm.
+     *
+     * @param start the start, or null
+     * @param end   the end, or null
+     * @param daily the daily window, or null
+     * @param zone  the time zone the schedule is in
+     * @return the schedule
+     * @throws IllegalArgumentException if any value is invalid
+     */
+    @NotNull
+    public static MOTDSchedule parse(@Nullable String start, @Nullable String end, @Nullable String daily, @NotNull ZoneId zone) {
+        if (zone == null) {
+            throw new IllegalArgumentException("Zone cannot be null!");
+        }
+
+        LocalTime daily_start = null;
+        LocalTime daily_end = null;
+
+        if (daily != null) {
+            String[] parts = daily.split("-");
+
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid daily window \"" + daily + "\"! Use the format HH:mm-HH:mm.");
+            }
+
+            try {
+                daily_start = LocalTime.parse(parts[0].trim());
+                daily_end = LocalTime.parse(parts[1].trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid daily window \"" + daily + "\"! Use the format HH:mm-HH:mm.");
+            }
+        }
+
+        return new MOTDSchedule(parseDateTime(start, zone), parseDateTime(end, zone), daily_start, daily_end, zone);
+    }
+
+    /**
+     * Parses an ISO date or date-time in the given zone.
+     *
+     * @param value the value, or null
+     * @param zone  the time zone
+     * @return the parsed date-time, or null if the value is null
+     */
+    private static ZonedDateTime parseDateTime(String value, ZoneId zone) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            if (value.contains("T")) {
+                return LocalDateTime.parse(value.trim()).atZone(zone);
+            }
+
+            return LocalDate.parse(value.trim()).atStartOfDay(zone);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date \"" + value + "\"! Use the format yyyy-MM-dd or yyyy-MM-ddTHH:mm.");
+        }
+    }
+
+
+    /**
+     * Checks if the schedule is active at the given time.<br>
+     * Starts are inclusive and ends are exclusive.
+     *
+     * @param now the time to check
+     * @return true if active, false otherwise
+     */
+    public boolean isActive(@NotNull Instant now) {
+        if (now == null) {
+            throw new IllegalArgumentException("Now cannot be null!");
+        }
+
+        if (this.start != null && now.isBefore(this.start.toInstant())) {
+            return false;
+        }
+
+        if (this.end != null && !now.isBefore(this.end.toInstant())) {
+            return false;
+        }
+
+        if (this.daily_start == null) {
+            return true;
+        }
+
+        LocalTime time = now.atZone(this.zone).toLocalTime();
+
+        if (this.daily_start.isBefore(this.daily_end)) {
+            return !time.isBefore(this.daily_start) && time.isBefore(this.daily_end);
+        }
+
+        // the window wraps past midnight
+        return !time.isBefore(this.daily_start) || time.isBefore(this.daily_end);
+    }
+
+    /**
+     * Gets the next time after now at which this schedule may change between active and inactive.
+     *
+     * @param now the current time
+     * @return the next boundary, or null if the schedule will never change again
+     */
+    @Nullable
+    public Instant getNextBoundary(@NotNull Instant now) {
+        if (now == null) {
+            throw new IllegalArgumentException("Now cannot be null!");
+        }
+
+        Instant next = null;
+
+        if (this.start != null && this.start.toInstant().isAfter(now)) {
+            next = this.start.toInstant();
+        }
+
+        if (this.end != null && this.end.toInstant().isAfter(now)) {
+            next = earliest(next, this.end.toInstant());
+        } else if (this.end != null) {
+            // already ended for good
+            return null;
+        }
+
+        if (this.daily_start != null) {
+            ZonedDateTime zoned_now = now.atZone(this.zone);
+
+            next = earliest(next, nextOccurrence(zoned_now, this.daily_start));
+            next = earliest(next, nextOccurrence(zoned_now, this.daily_end));
+        }
+
+        return next;
+    }
+
+    /**
+     * Gets the next occurrence of the time of day strictly after now.
+     *
+     * @param now  the current time
+     * @param time the time of day
+     * @return the next occurrence
+     */
+    private static Instant nextOccurrence(ZonedDateTime now, LocalTime time) {
+        ZonedDateTime candidate = now.with(time);
+
+        if (!candidate.isAfter(now)) {
+            candidate = now.plusDays(1).with(time);
+        }
+
+        return candidate.toInstant();
+    }
+
+    /**
+     * Gets the earliest of two instants, where a may be null.
+     *
+     * @param a the first instant, or null
+     * @param b the second instant
+     * @return the earliest instant
+     */
+    private static Instant earliest(Instant a, Instant b) {
+        if (a == null) {
+            return b;
+        }
+
+        return b.isBefore(a) ? b : a;
+    }
+}
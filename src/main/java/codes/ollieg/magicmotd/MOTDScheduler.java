@@ -0,0 +1,160 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps track of which MOTDs are currently active according to their {@link MOTDSchedule schedules}, per address target group.<br>
+ * The active set is only recomputed at schedule boundaries (and whenever the config is parsed), then published atomically,
+ * so pinging never has to check any schedules.
+ */
+public class MOTDScheduler {
+    // recompute at least this often, in case the clock jumps (e.g. DST changes or NTP corrections)
+    private static final long MAX_DELAY_MS = TimeUnit.HOURS.toMillis(1);
+    private static final int[] EMPTY = new int[0];
+
+    private final MagicMOTD plugin;
+
+    private final AtomicReference<int[][]> active_indices = new AtomicReference<>(new int[][]{EMPTY});
+    private HashedWheelTimer.Job boundary_task;
+
+
+    /**
+     * Constructs a new {@link MOTDScheduler}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public MOTDScheduler(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Gets the indices of the MOTDs in the default group that are currently active.<br>
+     * The returned array is shared and must not be modified.
+     *
+     * @return the active MOTD indices
+     */
+    @NotNull
+    public int[] getActiveIndices() {
+        return getActiveIndices(ConfigLoader.DEFAULT_GROUP);
+    }
+
+    /**
+     * Gets the indices of the MOTDs in the address target group that are currently active.<br>
+     * The returned array is shared and must not be modified.
+     *
+     * @param group the group ID
+     * @return the active MOTD indices, or an empty array if the group doesn't exist
+     */
+    @NotNull
+    public int[] getActiveIndices(int group) {
+        int[][] active = this.active_indices.get();
+
+        if (group < 0 || group >= active.length) {
+            return EMPTY;
+        }
+
+        return active[group];
+    }
+
+    /**
+     * Recomputes the active set immediately and schedules the next recompute for the next schedule boundary.
+     */
+    public synchronized void recompute() {
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+
+        if (!config_loader.isParsed()) {
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = config_loader.getParsedConfig();
+        Map<Integer, MOTDSchedule> schedules = config.getSchedules();
+        Map<Integer, Integer> motd_groups = config.getMOTDGroups();
+        int motd_count = config.getMOTDs().size();
+        int group_count = config.getGroups().size();
+
+        Instant now = Instant.now();
+        Instant next_boundary = null;
+
+        // the group of each active MOTD, or -1 if it isn't active, so the groups can be sized before they are filled
+        int[] active_groups = new int[motd_count];
+        int[] active_counts = new int[group_count];
+        int active_count = 0;
+
+        for (int i = 0; i < motd_count; i++) {
+            MOTDSchedule schedule = schedules.get(i);
+            active_groups[i] = -1;
+
+            if (schedule != null) {
+                Instant boundary = schedule.getNextBoundary(now);
+
+                if (boundary != null && (next_boundary == null || boundary.isBefore(next_boundary))) {
+                    next_boundary = boundary;
+                }
+            }
+
+            if (schedule == null || schedule.isActive(now)) {
+                int group = motd_groups.getOrDefault(i, ConfigLoader.DEFAULT_GROUP);
+
+                active_groups[i] = group;
+                active_counts[group]++;
+                active_count++;
+            }
+        }
+
+        int[][] published = new int[group_count][];
+
+        for (int group = 0; group < group_count; group++) {
+            published[group] = active_counts[group] == 0 ? EMPTY : new int[active_counts[group]];
+            active_counts[group] = 0;
+        }
+
+        for (int i = 0; i < motd_count; i++) {
+            int group = active_groups[i];
+
+            if (group != -1) {
+                published[group][active_counts[group]++] = i;
+            }
+        }
+
+        this.active_indices.set(published);
+
+        if (active_count == 0 && motd_count > 0) {
+            this.plugin.getLogger().info("No MOTDs are currently scheduled to be active, the default MOTD will be shown.");
+        }
+
+        // schedule the next recompute
+        cancel();
+
+        if (next_boundary != null || !schedules.isEmpty()) {
+            long delay = MAX_DELAY_MS;
+
+            if (next_boundary != null) {
+                delay = Math.min(delay, Math.max(0, Duration.between(now, next_boundary).toMillis()));
+            }
+
+            this.boundary_task = this.plugin.getTimer().schedule("motd-schedule", this::recompute, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cancels the scheduled recompute, if any.
+     */
+    public synchronized void cancel() {
+        if (this.boundary_task != null) {
+            this.boundary_task.cancel();
+            this.boundary_task = null;
+        }
+    }
+}
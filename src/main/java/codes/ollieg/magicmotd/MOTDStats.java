@@ -0,0 +1,293 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how many times each MOTD is shown (impressions) and how many logins follow it (conversions).<br>
+ * Counting is lock-free, and the counts are flushed to the {@link PlayerDB database} in batches on a timer,
+ * so nothing on the ping path ever waits on the database.
+ */
+public class MOTDStats {
+    // the number of slots in the recent ping table, must be a power of 2
+    private static final int RECENT_PING_SLOTS = 1 << 14;
+
+    private final MagicMOTD plugin;
+
+    /**
+     * The counts for a single MOTD. The adders only ever go up, and the flush keeps track of how much it has written,
+     * so a ping counted while a flush is reading is written by the next flush rather than lost.
+     */
+    private static final class Counters {
+        private final String motd;
+
+        private final LongAdder impressions = new LongAdder();
+        private final LongAdder conversions = new LongAdder();
+
+        // only written by the flush
+        private volatile long flushed_impressions = 0;
+        private volatile long flushed_conversions = 0;
+
+        // whether nothing had been counted since the flush before the last one
+        private boolean stale = false;
+
+        private Counters(String motd) {
+            this.motd = motd;
+        }
+    }
+
+    /**
+     * The last MOTD an address was shown.
+     */
+    private static final class RecentPing {
+        private final InetAddress address;
+        private final String motd;
+        private final long time;
+
+        private RecentPing(InetAddress address, String motd, long time) {
+            this.address = address;
+            this.motd = motd;
+            this.time = time;
+        }
+    }
+
+    // keyed by the parsed MOTD, so counts survive reloads that reorder the MOTDs. Counters that go idle are dropped once
+    // flushed, so memory follows the MOTDs being shown rather than the size of the catalogs
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+
+    // counters dropped at the last flush, which are flushed once more in case a ping was still counting into them
+    private final List<Counters> retired = new ArrayList<>();
+
+    // a fixed size table of the last MOTD each address saw, where colliding addresses simply overwrite each other
+    private final AtomicReferenceArray<RecentPing> recent_pings = new AtomicReferenceArray<>(RECENT_PING_SLOTS);
+
+    private HashedWheelTimer.Job flush_task;
+
+
+    /**
+     * Constructs a new {@link MOTDStats}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public MOTDStats(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Gets the counters for the MOTD, creating them if they don't exist.
+     *
+     * @param motd the parsed MOTD
+     * @return the counters
+     */
+    private Counters getCounters(String motd) {
+        Counters existing = this.counters.get(motd);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        return this.counters.computeIfAbsent(motd, Counters::new);
+    }
+
+    /**
+     * Gets the recent ping slot for the address.
+     *
+     * @param address the address
+     * @return the slot index
+     */
+    private static int slot(InetAddress address) {
+        return (int) AddressHash.hash(address, 0) & (RECENT_PING_SLOTS - 1);
+    }
+
+
+    /**
+     * Records that the MOTD was shown to the address.
+     *
+     * @param motd    the parsed MOTD
+     * @param address the pinging address, or null if unknown
+     * @throws IllegalArgumentException if the MOTD is null
+     */
+    public void recordImpression(@NotNull String motd, @Nullable InetAddress address) {
+        if (motd == null) {
+            throw new IllegalArgumentException("MOTD cannot be null!");
+        }
+
+        getCounters(motd).impressions.increment();
+
+        if (address != null) {
+            this.recent_pings.set(slot(address), new RecentPing(address, motd, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Records a login from the address, attributing it to the last MOTD the address was shown (if seen recently).
+     *
+     * @param address the address of the player
+     * @return true if the login was attributed to an MOTD, false otherwise
+     * @throws IllegalArgumentException if the address is null
+     */
+    public boolean recordLogin(@NotNull InetAddress address) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address cannot be null!");
+        }
+
+        int slot = slot(address);
+        RecentPing ping = this.recent_pings.get(slot);
+
+        if (ping == null || !ping.address.equals(address) || !this.plugin.getConfigLoader().isParsed()) {
+            return false;
+        }
+
+        long window_ms = TimeUnit.SECONDS.toMillis(this.plugin.getConfigLoader().getParsedConfig().getStatsAttributionWindow());
+
+        if (System.currentTimeMillis() - ping.time > window_ms) {
+            return false;
+        }
+
+        // only attribute one login to each ping
+        if (!this.recent_pings.compareAndSet(slot, ping, null)) {
+            return false;
+        }
+
+        getCounters(ping.motd).conversions.increment();
+        return true;
+    }
+
+
+    /**
+     * Gets the counts that haven't been flushed to the database yet.
+     *
+     * @return the unflushed impressions and conversions, keyed by parsed MOTD
+     */
+    @NotNull
+    public Map<String, long[]> getUnflushed() {
+        Map<String, long[]> unflushed = new HashMap<>();
+
+        for (Map.Entry<String, Counters> entry : this.counters.entrySet()) {
+            Counters counters = entry.getValue();
+            unflushed.put(entry.getKey(), new long[]{
+                    counters.impressions.sum() - counters.flushed_impressions,
+                    counters.conversions.sum() - counters.flushed_conversions
+            });
+        }
+
+        return unflushed;
+    }
+
+    /**
+     * Writes all unflushed counts to the database in a single batch.<br>
+     * If the write fails, the counts are left unflushed so they are retried on the next flush. Counters that have had
+     * nothing to flush for two flushes in a row are dropped (new ones are made if the MOTD is shown again), and flushed
+     * once more at the next flush, which gives pings that fetched them just before they were dropped time to finish.
+     */
+    public synchronized void flush() {
+        if (!this.plugin.getPlayerDB().isReady()) {
+            return;
+        }
+
+        Map<String, long[]> deltas = new HashMap<>();
+        List<Counters> flushing = new ArrayList<>();
+        List<long[]> totals = new ArrayList<>();
+
+        for (Map.Entry<String, Counters> entry : this.counters.entrySet()) {
+            Counters counters = entry.getValue();
+
+            // sum() isn't a snapshot, but the adders only go up, so anything it misses is still there next time
+            long impressions = counters.impressions.sum();
+            long conversions = counters.conversions.sum();
+
+            if (impressions != counters.flushed_impressions || conversions != counters.flushed_conversions) {
+                deltas.put(entry.getKey(), new long[]{impressions - counters.flushed_impressions, conversions - counters.flushed_conversions});
+                flushing.add(counters);
+                totals.add(new long[]{impressions, conversions});
+            }
+        }
+
+        // the MOTD may have been counted again since its counters were dropped, so add to any new counters' deltas
+        for (Counters counters : this.retired) {
+            long impressions = counters.impressions.sum();
+            long conversions = counters.conversions.sum();
+
+            if (impressions != counters.flushed_impressions || conversions != counters.flushed_conversions) {
+                deltas.merge(counters.motd, new long[]{impressions - counters.flushed_impressions, conversions - counters.flushed_conversions},
+                        (a, b) -> new long[]{a[0] + b[0], a[1] + b[1]});
+                flushing.add(counters);
+                totals.add(new long[]{impressions, conversions});
+            }
+        }
+
+        if (!deltas.isEmpty()) {
+            try {
+                this.plugin.getPlayerDB().addMOTDStats(deltas);
+            } catch (SQLException | RuntimeException e) {
+                this.plugin.getLogger().warning("Could not flush MOTD stats, they will be retried: " + e.getMessage());
+                return;
+            }
+
+            for (int i = 0; i < flushing.size(); i++) {
+                flushing.get(i).flushed_impressions = totals.get(i)[0];
+                flushing.get(i).flushed_conversions = totals.get(i)[1];
+            }
+        }
+
+        this.retired.clear();
+        pruneIdle();
+    }
+
+    /**
+     * Drops the counters that have had nothing to flush for two flushes in a row, keeping them to be flushed once more.<br>
+     * This never looks at the config's MOTDs, as reading every catalog entry would compile them all.
+     */
+    private void pruneIdle() {
+        for (Map.Entry<String, Counters> entry : this.counters.entrySet()) {
+            Counters counters = entry.getValue();
+            boolean flushed = counters.impressions.sum() == counters.flushed_impressions && counters.conversions.sum() == counters.flushed_conversions;
+
+            if (!flushed) {
+                counters.stale = false;
+            } else if (!counters.stale) {
+                counters.stale = true;
+            } else if (this.counters.remove(entry.getKey(), counters)) {
+                this.retired.add(counters);
+            }
+        }
+    }
+
+
+    /**
+     * Starts (or restarts) flushing on the interval set in the config.
+     */
+    public synchronized void start() {
+        stop();
+
+        long interval = this.plugin.getConfigLoader().getParsedConfig().getStatsFlushInterval();
+        this.flush_task = this.plugin.getTimer().schedule("stats-flush", this::flush, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops flushing on the interval. Doesn't flush any remaining counts.
+     */
+    public synchronized void stop() {
+        if (this.flush_task != null) {
+            this.flush_task.cancel();
+            this.flush_task = null;
+        }
+    }
+}
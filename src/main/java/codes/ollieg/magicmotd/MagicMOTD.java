@@ -1,23 +1,42 @@
 package codes.ollieg.magicmotd;
 
 import codes.ollieg.magicmotd.commands.CommandForceMOTD;
+import codes.ollieg.magicmotd.commands.CommandMOTDBench;
+import codes.ollieg.magicmotd.commands.CommandMOTDHealth;
+import codes.ollieg.magicmotd.commands.CommandMOTDLookup;
+import codes.ollieg.magicmotd.commands.CommandMOTDReplay;
+import codes.ollieg.magicmotd.commands.CommandMOTDStats;
 import codes.ollieg.magicmotd.commands.CommandReloadMOTD;
 import codes.ollieg.magicmotd.handlers.PingHandler;
 import codes.ollieg.magicmotd.handlers.PostLoginHandler;
 import net.md_5.bungee.api.plugin.Plugin;
 import net.md_5.bungee.api.plugin.PluginManager;
 import org.bstats.bungeecord.Metrics;
+import org.bstats.charts.SimplePie;
 
 import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main class for the MagicMOTD plugin.
  */
 public final class MagicMOTD extends Plugin {
+    private final HashedWheelTimer timer = new HashedWheelTimer(this);
+    private final HotPathLogger hot_path_logger = new HotPathLogger(this);
     private final ConfigLoader config_loader = new ConfigLoader(this);
     private final PlayerDB player_db = new PlayerDB(this);
+    private final MOTDScheduler motd_scheduler = new MOTDScheduler(this);
+    private final MOTDStats motd_stats = new MOTDStats(this);
+    private final DBCircuitBreaker db_breaker = new DBCircuitBreaker(this);
+    private final DBMaintenance db_maintenance = new DBMaintenance(this);
+    private final NetworkCounter network_counter = new NetworkCounter(this);
+    private final PingRecorder ping_recorder = new PingRecorder(this);
+    private final PreRenderCache pre_render_cache = new PreRenderCache(this);
+    private final SurgeDetector surge_detector = new SurgeDetector(this);
     private final PingHandler ping_handler = new PingHandler(this);
     private Metrics metrics;
+    private ExecutorService async_executor;
 
     /**
      * Gets the {@link ConfigLoader} instance associated with this plugin.
@@ -27,6 +46,22 @@ public final class MagicMOTD extends Plugin {
         return this.config_loader;
     }
 
+    /**
+     * Gets the {@link HashedWheelTimer} instance associated with this plugin, which runs every periodic background job.
+     * @return The {@link HashedWheelTimer} instance associated with this plugin.
+     */
+    public HashedWheelTimer getTimer() {
+        return this.timer;
+    }
+
+    /**
+     * Gets the {@link HotPathLogger} instance associated with this plugin, for warnings from pings and logins.
+     * @return The {@link HotPathLogger} instance associated with this plugin.
+     */
+    public HotPathLogger getHotPathLogger() {
+        return this.hot_path_logger;
+    }
+
     /**
      * Gets the {@link PingHandler} instance associated with this plugin.
      * @return The {@link PingHandler} instance associated with this plugin.
@@ -44,13 +79,110 @@ public final class MagicMOTD extends Plugin {
     }
 
 
+    /**
+     * Gets the {@link MOTDScheduler} instance associated with this plugin.
+     * @return The {@link MOTDScheduler} instance associated with this plugin.
+     */
+    public MOTDScheduler getMOTDScheduler() {
+        return this.motd_scheduler;
+    }
+
+
+    /**
+     * Gets the {@link MOTDStats} instance associated with this plugin.
+     * @return The {@link MOTDStats} instance associated with this plugin.
+     */
+    public MOTDStats getMOTDStats() {
+        return this.motd_stats;
+    }
+
+
+    /**
+     * Gets the {@link DBCircuitBreaker} instance associated with this plugin.
+     * @return The {@link DBCircuitBreaker} instance associated with this plugin.
+     */
+    public DBCircuitBreaker getDBCircuitBreaker() {
+        return this.db_breaker;
+    }
+
+
+    /**
+     * Gets the {@link DBMaintenance} instance associated with this plugin.
+     * @return The {@link DBMaintenance} instance associated with this plugin.
+     */
+    public DBMaintenance getDBMaintenance() {
+        return this.db_maintenance;
+    }
+
+
+    /**
+     * Gets the {@link NetworkCounter} instance associated with this plugin.
+     * @return The {@link NetworkCounter} instance associated with this plugin.
+     */
+    public NetworkCounter getNetworkCounter() {
+        return this.network_counter;
+    }
+
+
+    /**
+     * Gets the {@link PingRecorder} instance associated with this plugin.
+     * @return The {@link PingRecorder} instance associated with this plugin.
+     */
+    public PingRecorder getPingRecorder() {
+        return this.ping_recorder;
+    }
+
+
+    /**
+     * Gets the {@link PreRenderCache} instance associated with this plugin.
+     * @return The {@link PreRenderCache} instance associated with this plugin.
+     */
+    public PreRenderCache getPreRenderCache() {
+        return this.pre_render_cache;
+    }
+
+
+    /**
+     * Gets the {@link SurgeDetector} instance associated with this plugin.
+     * @return The {@link SurgeDetector} instance associated with this plugin.
+     */
+    public SurgeDetector getSurgeDetector() {
+        return this.surge_detector;
+    }
+
+
+    /**
+     * Gets the executor for blocking work, such as database lookups for pings and logins.<br>
+     * Uses virtual threads on Java 21+, see {@link AsyncExecutors}.
+     * @return The executor, or null if the plugin isn't enabled.
+     */
+    public ExecutorService getAsyncExecutor() {
+        return this.async_executor;
+    }
+
+
     /**
      * Called by the BungeeCord plugin system when this plugin is enabled.
      */
     @Override
     public void onEnable() {
+        // start the timer for background jobs before anything schedules one
+        this.timer.start();
+
+        // recompute the scheduled motds and restart the stats timer whenever the config changes
+        this.config_loader.addParseListener(this.motd_scheduler::recompute);
+        this.config_loader.addParseListener(this.motd_stats::start);
+
+        // write out warnings from pings and logins on a timer, so floods of them can't slow the proxy down
+        this.hot_path_logger.start();
+
         this.config_loader.reloadConfig();
 
+        // create the executor for blocking database work before any events can use it
+        int async_threads = this.config_loader.isParsed() ? this.config_loader.getParsedConfig().getAsyncThreads() : Runtime.getRuntime().availableProcessors();
+        this.async_executor = AsyncExecutors.newExecutor("MagicMOTD-async", async_threads);
+        getLogger().info(VirtualThreads.isSupported() ? "Using virtual threads for database work." : "Using up to " + async_threads + " threads for database work.");
+
         PluginManager plugin_manager = getProxy().getPluginManager();
 
         // register listeners and commands
@@ -59,6 +191,11 @@ public final class MagicMOTD extends Plugin {
 
         plugin_manager.registerCommand(this, new CommandReloadMOTD(this.config_loader));
         plugin_manager.registerCommand(this, new CommandForceMOTD(this));
+        plugin_manager.registerCommand(this, new CommandMOTDStats(this));
+        plugin_manager.registerCommand(this, new CommandMOTDHealth(this));
+        plugin_manager.registerCommand(this, new CommandMOTDLookup(this));
+        plugin_manager.registerCommand(this, new CommandMOTDBench(this));
+        plugin_manager.registerCommand(this, new CommandMOTDReplay(this));
 
         // ready & create the database if it doesn't exist
         try {
@@ -68,8 +205,38 @@ public final class MagicMOTD extends Plugin {
             throw new RuntimeException(e);
         }
 
+        // copy data for schema migrations in the background, so the proxy doesn't wait for them
+        this.player_db.startMigrations();
+
+        // build the known ip filter in the background, and restart its rebuild timer whenever the config changes
+        this.player_db.startKnownIPRebuilds();
+        this.config_loader.addParseListener(this.player_db::startKnownIPRebuilds);
+
+        // back up the database during the maintenance window
+        this.db_maintenance.schedule();
+        this.config_loader.addParseListener(this.db_maintenance::schedule);
+
+        // share the online count with the other proxies in the network, if enabled
+        this.network_counter.start();
+        this.config_loader.addParseListener(this.network_counter::start);
+
+        // record pings for replaying later, if enabled
+        this.ping_recorder.applyConfig();
+        this.config_loader.addParseListener(this.ping_recorder::applyConfig);
+
+        // keep the MOTDs of recently logged in players rendered ahead of time, if enabled, forgetting them when their records change
+        this.pre_render_cache.applyConfig();
+        this.config_loader.addParseListener(this.pre_render_cache::applyConfig);
+        this.player_db.addChangeListener(this.pre_render_cache::onRecordChanged);
+
+        // serve a static MOTD during ping surges, if enabled
+        this.surge_detector.applyConfig();
+        this.config_loader.addParseListener(this.surge_detector::applyConfig);
+
         // connect to bstats
         this.metrics = new Metrics(this, 18579);
+        this.metrics.addCustomChart(new SimplePie("db_circuit_breaker", () -> this.db_breaker.getState().name()));
+        this.metrics.addCustomChart(new SimplePie("surge_mode", () -> this.surge_detector.isDegraded() ? "DEGRADED" : "NORMAL"));
 
         getLogger().info("MagicMOTD has been enabled!");
     }
@@ -79,7 +246,42 @@ public final class MagicMOTD extends Plugin {
      */
     @Override
     public void onDisable() {
+        this.motd_scheduler.cancel();
+        this.db_breaker.reset();
+        this.db_maintenance.cancel();
+        this.network_counter.stop();
+        this.ping_recorder.stop();
+        this.surge_detector.stop();
+
+        // let background jobs that are already running finish before the database closes
+        this.timer.stop();
+
+        // write out any remaining stats before the database closes
+        this.motd_stats.stop();
+        this.motd_stats.flush();
+
+        // let queued lookups and saves finish before the database closes
+        if (this.async_executor != null) {
+            this.async_executor.shutdown();
+
+            try {
+                if (!this.async_executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    getLogger().warning("Some database work didn't finish in time and was abandoned.");
+                    this.async_executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        this.player_db.stopMigrations();
+        this.player_db.stopKnownIPRebuilds();
         this.player_db.destroyConnections();
+
+        // write out any warnings that are still queued
+        this.hot_path_logger.stop();
+        this.hot_path_logger.summarise();
+        this.hot_path_logger.drain();
         getLogger().info("MagicMOTD has been disabled!");
     }
 }
@@ -0,0 +1,275 @@
+package codes.ollieg.magicmotd;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates the online player count across every proxy in the network, so proxies behind a load balancer all show
+ * the same numbers in the %online% and %max% templates.<br>
+ * On an interval, each proxy publishes its own counts to a shared H2 database (a TCP server, or a file opened with
+ * AUTO_SERVER) and reads back the totals of the other proxies. Pings only ever read the cached totals, so they never
+ * wait on the shared database.
+ */
+public class NetworkCounter {
+    // proxies that haven't published for this many intervals are assumed to be down
+    private static final int STALE_INTERVALS = 3;
+
+    private final MagicMOTD plugin;
+
+    /**
+     * The counts of the other proxies in the network, as last read from the shared database.
+     */
+    public static final class Totals {
+        private final int online;
+        private final int max;
+        private final int proxies;
+        private final long read_time;
+
+        private Totals(int online, int max, int proxies, long read_time) {
+            this.online = online;
+            this.max = max;
+            this.proxies = proxies;
+            this.read_time = read_time;
+        }
+
+        public int getOnline() {
+            return this.online;
+        }
+
+        public int getMax() {
+            return this.max;
+        }
+
+        public int getProxies() {
+            return this.proxies;
+        }
+
+        public long getReadTime() {
+            return this.read_time;
+        }
+    }
+
+    private JdbcConnectionPool pool;
+    private HashedWheelTimer.Job publish_task;
+
+    // the settings the pool was created with, so reloads that don't change them keep the connection
+    private String url;
+    private String user;
+    private String password;
+    private String proxy_id;
+    private volatile long interval;
+
+    private volatile Totals others;
+
+    // the local max players as seen by the last ping, as the proxy doesn't otherwise expose it
+    private volatile int local_max = 0;
+
+
+    /**
+     * Constructs a new {@link NetworkCounter}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public NetworkCounter(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Starts (or restarts) publishing on the interval set in the config, connecting to the shared database if its
+     * settings have changed. Does nothing but stop if the counter is disabled in the config.
+     */
+    public synchronized void start() {
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+
+        if (!config_loader.isParsed() || config_loader.getParsedConfig().getNetworkCounterURL() == null) {
+            stop();
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = config_loader.getParsedConfig();
+        String proxy_id = config.getNetworkCounterID() != null ? config.getNetworkCounterID() : this.proxy_id;
+
+        boolean same_store = this.pool != null
+                && config.getNetworkCounterURL().equals(this.url)
+                && config.getNetworkCounterUser().equals(this.user)
+                && config.getNetworkCounterPassword().equals(this.password)
+                && proxy_id != null && proxy_id.equals(this.proxy_id);
+
+        if (same_store) {
+            cancel();
+        } else {
+            stop();
+
+            try {
+                Class.forName("org.h2.Driver");
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+
+            this.url = config.getNetworkCounterURL();
+            this.user = config.getNetworkCounterUser();
+            this.password = config.getNetworkCounterPassword();
+
+            // without a configured id, pick one that lasts until the proxy restarts
+            this.proxy_id = proxy_id != null ? proxy_id : UUID.randomUUID().toString();
+
+            this.pool = JdbcConnectionPool.create(this.url, this.user, this.password);
+            this.pool.setMaxConnections(2);
+        }
+
+        this.interval = config.getNetworkCounterInterval();
+        this.publish_task = this.plugin.getTimer().schedule("network-counter", this::publish, 0, this.interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops publishing, removes this proxy from the shared database and disconnects from it.<br>
+     * Blocks on the shared database, so shouldn't be called on a network thread.
+     */
+    public synchronized void stop() {
+        cancel();
+
+        if (this.pool != null) {
+            // remove this proxy straight away, rather than waiting for the others to see it as stale
+            try (Connection conn = this.pool.getConnection();
+                 PreparedStatement statement = conn.prepareStatement("DELETE FROM NETWORK_COUNTS WHERE proxy_id = ?")) {
+                statement.setString(1, this.proxy_id);
+                statement.executeUpdate();
+            } catch (SQLException e) {
+                this.plugin.getLogger().warning("Could not remove this proxy from the network counter: " + e.getMessage());
+            }
+
+            this.pool.dispose();
+            this.pool = null;
+        }
+
+        this.others = null;
+    }
+
+    /**
+     * Cancels the publish task, if any.
+     */
+    private void cancel() {
+        if (this.publish_task != null) {
+            this.publish_task.cancel();
+            this.publish_task = null;
+        }
+    }
+
+
+    /**
+     * Publishes this proxy's counts to the shared database and reads back the totals of the other proxies.<br>
+     * If the shared database can't be reached, the last totals are kept until they go stale.
+     */
+    public void publish() {
+        JdbcConnectionPool pool;
+        String proxy_id;
+        long interval;
+
+        synchronized (this) {
+            pool = this.pool;
+            proxy_id = this.proxy_id;
+            interval = this.interval;
+        }
+
+        if (pool == null) {
+            return;
+        }
+
+        try (Connection conn = pool.getConnection()) {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS NETWORK_COUNTS (proxy_id VARCHAR(64) PRIMARY KEY, online INT NOT NULL, max_players INT NOT NULL, updated TIMESTAMP NOT NULL)");
+            }
+
+            // use the shared database's clock, so clock drift between proxies doesn't matter
+            try (PreparedStatement statement = conn.prepareStatement("MERGE INTO NETWORK_COUNTS (proxy_id, online, max_players, updated) KEY (proxy_id) VALUES (?, ?, ?, CURRENT_TIMESTAMP)")) {
+                statement.setString(1, proxy_id);
+                statement.setInt(2, this.plugin.getProxy().getOnlineCount());
+                statement.setInt(3, this.local_max);
+                statement.executeUpdate();
+            }
+
+            try (PreparedStatement statement = conn.prepareStatement("SELECT COALESCE(SUM(online), 0), COALESCE(SUM(max_players), 0), COUNT(*) FROM NETWORK_COUNTS WHERE proxy_id <> ? AND updated > DATEADD('SECOND', ?, CURRENT_TIMESTAMP)")) {
+                statement.setString(1, proxy_id);
+                statement.setLong(2, -interval * STALE_INTERVALS);
+
+                try (ResultSet result = statement.executeQuery()) {
+                    if (result.next()) {
+                        this.others = new Totals(result.getInt(1), result.getInt(2), result.getInt(3), System.currentTimeMillis());
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            this.plugin.getLogger().warning("Could not update the network counter: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Records the max players of this proxy, as seen by a ping, to be published on the next interval.
+     *
+     * @param max_players the max players
+     */
+    public void recordLocalMax(int max_players) {
+        // skip the volatile write when nothing changed, as it is called on every ping
+        if (this.local_max != max_players) {
+            this.local_max = max_players;
+        }
+    }
+
+    /**
+     * Gets the cached counts of the other proxies in the network. Never blocks.
+     *
+     * @return the totals, or null if the counter is disabled or hasn't read fresh totals recently
+     */
+    @Nullable
+    public Totals getOthers() {
+        Totals others = this.others;
+
+        if (others == null) {
+            return null;
+        }
+
+        // don't keep adding counts from a shared database that can no longer be reached
+        long stale_ms = TimeUnit.SECONDS.toMillis(this.interval * STALE_INTERVALS);
+
+        if (System.currentTimeMillis() - others.read_time > stale_ms) {
+            return null;
+        }
+
+        return others;
+    }
+
+    /**
+     * Gets whether the counter is publishing to a shared database.
+     *
+     * @return true if enabled, false otherwise
+     */
+    public synchronized boolean isEnabled() {
+        return this.pool != null;
+    }
+
+    /**
+     * Gets the id this proxy publishes its counts under.
+     *
+     * @return the id, or null if the counter has never been enabled
+     */
+    @Nullable
+    public synchronized String getProxyID() {
+        return this.proxy_id;
+    }
+}
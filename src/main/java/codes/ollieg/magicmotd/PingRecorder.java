@@ -0,0 +1,507 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the pings the proxy receives to a compact binary file, so real traffic can be replayed later with
+ * {@link PingReplay}.<br>
+ * Each record holds when the ping arrived, a hash of the pinging address, the client's protocol version and the player
+ * counts. Addresses are hashed with a random key that is never written down, so recordings don't contain IPs.<br>
+ * Pings only copy their record into a buffer, reserving their slot in it with a single atomic increment rather than a
+ * lock. Full buffers are written out by a background thread, and if it falls behind, records are dropped rather than
+ * holding up pings.
+ */
+public class PingRecorder {
+    /**
+     * The bytes every recording starts with.
+     */
+    public static final int MAGIC = 0x4D4D5052; // MMPR
+
+    /**
+     * The version of the recording format.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * The size of the header: magic, format version and the start time in epoch milliseconds.
+     */
+    public static final int HEADER_SIZE = 4 + 4 + 8;
+
+    /**
+     * The size of each record: time since the start in milliseconds, address hash, protocol version, online and max players.
+     */
+    public static final int RECORD_SIZE = 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * The folder recordings are written to, inside the plugin's data folder.
+     */
+    public static final String RECORDING_FOLDER = "recordings";
+
+    /**
+     * The file extension of recordings.
+     */
+    public static final String RECORDING_SUFFIX = ".mmpr";
+
+    private static final String RECORDING_PREFIX = "pings-";
+    private static final DateTimeFormatter RECORDING_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HHmmss");
+
+    // each buffer holds this many records, and one is filled while the others are written
+    private static final int BUFFER_RECORDS = 2048;
+    private static final int BUFFER_COUNT = 4;
+
+    // write partly filled buffers this often, so quiet proxies still record
+    private static final long FLUSH_INTERVAL_SECONDS = 1;
+
+    /**
+     * A single use of a buffer, which pings fill without a lock.<br>
+     * Each ping reserves the next slot with an atomic increment and writes its record there. Once every slot is
+     * reserved (or the slab is sealed early to flush it) the slab is closed for good, and whichever ping finishes its
+     * record last hands the buffer to the writer. Buffers are reused, but every use gets a new slab, so a ping still
+     * holding an old slab only ever finds it closed and never writes into the buffer's next use.
+     */
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final AtomicInteger filled = new AtomicInteger();
+
+        // the number of records in the slab, only lowered when it is sealed before it is full
+        private volatile int count = BUFFER_RECORDS;
+
+        private Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Everything pings need to add to a recording, replaced as a whole when recording starts, so a ping that races a
+     * restart never mixes up two recordings.
+     */
+    private static final class Recording {
+        private final FileChannel channel;
+        private final ExecutorService writer;
+        private final BlockingQueue<ByteBuffer> free_buffers;
+        private final AtomicReference<Slab> active;
+        private final long start_time;
+        private final long key;
+
+        private Recording(FileChannel channel, ExecutorService writer, BlockingQueue<ByteBuffer> free_buffers, Slab active, long start_time, long key) {
+            this.channel = channel;
+            this.writer = writer;
+            this.free_buffers = free_buffers;
+            this.active = new AtomicReference<>(active);
+            this.start_time = start_time;
+            this.key = key;
+        }
+    }
+
+    private final MagicMOTD plugin;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // only touched while holding the lock on this
+    private File file;
+    private HashedWheelTimer.Job flush_task;
+
+    // updated by the writer thread, which mustn't take the lock as stopping holds it while waiting for the writer
+    private final AtomicLong written_bytes = new AtomicLong();
+    private volatile long max_bytes;
+
+    // read on every ping without the lock, or null if not recording
+    private volatile Recording current = null;
+
+
+    /**
+     * Constructs a new {@link PingRecorder}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public PingRecorder(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Starts or stops recording to match the config. A recording that is already running carries on into the same file.
+     */
+    public synchronized void applyConfig() {
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+        boolean enabled = config_loader.isParsed() && config_loader.getParsedConfig().isPingRecording();
+
+        if (!enabled) {
+            stop();
+            return;
+        }
+
+        if (this.current != null) {
+            return;
+        }
+
+        File folder = new File(this.plugin.getDataFolder(), RECORDING_FOLDER);
+        File file = new File(folder, RECORDING_PREFIX + LocalDateTime.now().format(RECORDING_TIME_FORMAT) + RECORDING_SUFFIX);
+
+        try {
+            start(file, config_loader.getParsedConfig().getPingRecordingMaxSize() * 1024 * 1024);
+        } catch (IOException e) {
+            this.plugin.getLogger().warning("Could not start recording pings: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts recording pings to a new file.
+     *
+     * @param file      the file to record to, which mustn't exist
+     * @param max_bytes the most bytes to record before stopping
+     * @throws IOException              if the file can't be created
+     * @throws IllegalArgumentException if the file is null or the max size isn't positive
+     * @throws IllegalStateException    if already recording
+     */
+    public synchronized void start(@NotNull File file, long max_bytes) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null!");
+        }
+
+        if (max_bytes <= 0) {
+            throw new IllegalArgumentException("Max size must be positive!");
+        }
+
+        if (this.current != null) {
+            throw new IllegalStateException("Already recording!");
+        }
+
+        File folder = file.getAbsoluteFile().getParentFile();
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Could not create the recording folder " + folder.getPath());
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        long start_time = System.currentTimeMillis();
+
+        this.file = file;
+        this.max_bytes = max_bytes;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(start_time).flip();
+
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        this.written_bytes.set(HEADER_SIZE);
+
+        BlockingQueue<ByteBuffer> free_buffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+
+        for (int i = 0; i < BUFFER_COUNT - 1; i++) {
+            free_buffers.add(ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE));
+        }
+
+        // a single thread keeps the buffers in order
+        ExecutorService writer = AsyncExecutors.newPlatformExecutor("MagicMOTD-recorder", 1);
+        Slab active = new Slab(ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE));
+
+        this.recorded.reset();
+        this.dropped.reset();
+        this.current = new Recording(channel, writer, free_buffers, active, start_time, new SecureRandom().nextLong());
+
+        this.flush_task = this.plugin.getTimer().schedule("ping-recording-flush", this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        this.plugin.getLogger().info("Recording pings to " + file.getName());
+    }
+
+    /**
+     * Stops recording, writing out any buffered records and closing the file. Blocks until the file is closed.<br>
+     * Pings still copying their record when recording stops may have it dropped.
+     */
+    public synchronized void stop() {
+        Recording recording = this.current;
+
+        if (recording == null) {
+            return;
+        }
+
+        this.current = null;
+
+        if (this.flush_task != null) {
+            this.flush_task.cancel();
+            this.flush_task = null;
+        }
+
+        seal(recording, recording.active.get());
+
+        recording.writer.shutdown();
+
+        try {
+            if (!recording.writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                this.plugin.getLogger().warning("Some recorded pings couldn't be written in time and were lost.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            recording.channel.close();
+        } catch (IOException e) {
+            this.plugin.getLogger().warning("Could not close the ping recording: " + e.getMessage());
+        }
+
+        this.plugin.getLogger().info(String.format("Stopped recording pings to %s (%d recorded, %d dropped).",
+                this.file.getName(), this.recorded.sum(), this.dropped.sum()));
+    }
+
+
+    /**
+     * Records a ping. Never blocks on the file or waits on other pings: if the writer has fallen behind, the record is dropped.
+     *
+     * @param address        the pinging address, or null if unknown
+     * @param protocol       the client's protocol version
+     * @param online_players the number of online players
+     * @param max_players    the maximum number of players
+     */
+    public void record(@Nullable InetAddress address, int protocol, int online_players, int max_players) {
+        Recording recording = this.current;
+
+        if (recording == null) {
+            return;
+        }
+
+        // a keyed 64-bit mix rather than a cryptographic hash, as it runs on every ping: without the key (which is never
+        // saved) addresses can't be found by hashing every candidate, but it isn't meant to stand up to deeper analysis
+        long hash = address == null ? 0 : AddressHash.hash(address, recording.key);
+        long time = System.currentTimeMillis();
+
+        Slab slab = recording.active.get();
+        int slot;
+
+        while (true) {
+            // only increment while there are slots left, so a full slab's count can't run away while no buffer is free
+            slot = slab.reserved.get() < BUFFER_RECORDS ? slab.reserved.getAndIncrement() : BUFFER_RECORDS;
+
+            if (slot < BUFFER_RECORDS) {
+                break;
+            }
+
+            slab = nextSlab(recording, slab);
+
+            if (slab == null) {
+                this.dropped.increment();
+                return;
+            }
+        }
+
+        int offset = slot * RECORD_SIZE;
+        slab.buffer.putLong(offset, time - recording.start_time).putLong(offset + 8, hash)
+                .putInt(offset + 16, protocol).putInt(offset + 20, online_players).putInt(offset + 24, max_players);
+
+        this.recorded.increment();
+        fill(recording, slab, 1);
+    }
+
+    /**
+     * Moves on from a full slab, making a new slab from a free buffer if no other ping has yet.
+     *
+     * @param recording the recording
+     * @param full      the full slab
+     * @return the active slab, or null if no buffer is free (or recording has stopped)
+     */
+    private Slab nextSlab(Recording recording, Slab full) {
+        if (this.current != recording) {
+            return null;
+        }
+
+        Slab active = recording.active.get();
+
+        if (active != full) {
+            return active;
+        }
+
+        ByteBuffer buffer = recording.free_buffers.poll();
+
+        // the writer has fallen behind
+        if (buffer == null) {
+            return null;
+        }
+
+        Slab next = new Slab(buffer);
+
+        if (recording.active.compareAndSet(full, next)) {
+            return next;
+        }
+
+        // another ping got there first
+        recording.free_buffers.offer(buffer);
+        return recording.active.get();
+    }
+
+    /**
+     * Closes a slab to new records before it is full, counting the slots nobody reserved as filled, so it is handed to
+     * the writer as soon as the records already being copied into it are finished.
+     *
+     * @param recording the recording
+     * @param slab      the slab, which must no longer be active
+     */
+    private void seal(Recording recording, Slab slab) {
+        int reserved = slab.reserved.getAndSet(BUFFER_RECORDS);
+
+        // already full, so the last record handed it over or will do
+        if (reserved >= BUFFER_RECORDS) {
+            return;
+        }
+
+        slab.count = reserved;
+        fill(recording, slab, BUFFER_RECORDS - reserved);
+    }
+
+    /**
+     * Counts slots of a slab as filled, handing it to the writer once every slot is.
+     *
+     * @param recording the recording
+     * @param slab      the slab
+     * @param slots     the number of slots filled
+     */
+    private void fill(Recording recording, Slab slab, int slots) {
+        if (slab.filled.addAndGet(slots) == BUFFER_RECORDS) {
+            submit(recording, slab);
+        }
+    }
+
+    /**
+     * Hands any partly filled buffer to the writer, so records reach the file even when pings are quiet.
+     */
+    public synchronized void flush() {
+        Recording recording = this.current;
+
+        if (recording == null) {
+            return;
+        }
+
+        Slab slab = recording.active.get();
+
+        if (slab.reserved.get() == 0) {
+            return;
+        }
+
+        ByteBuffer buffer = recording.free_buffers.poll();
+
+        // the writer is busy, so the next full buffer will catch these up
+        if (buffer == null) {
+            return;
+        }
+
+        // pings filled it up and moved on in the meantime
+        if (!recording.active.compareAndSet(slab, new Slab(buffer))) {
+            recording.free_buffers.offer(buffer);
+            return;
+        }
+
+        seal(recording, slab);
+    }
+
+    /**
+     * Hands a slab's buffer to the writer thread, which returns it to the free buffers once written.
+     *
+     * @param recording the recording
+     * @param slab      the slab, with every record finished
+     */
+    private void submit(Recording recording, Slab slab) {
+        ByteBuffer buffer = slab.buffer;
+        int count = slab.count;
+
+        // the records were written at their slots, so the position never moved
+        buffer.limit(count * RECORD_SIZE);
+
+        try {
+            recording.writer.execute(() -> {
+                try {
+                    write(recording.channel, buffer);
+                } finally {
+                    buffer.clear();
+                    recording.free_buffers.offer(buffer);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.dropped.add(count);
+        }
+    }
+
+    /**
+     * Writes a buffer to the file, stopping the recording once it reaches its max size. Runs on the writer thread.
+     *
+     * @param channel the file channel
+     * @param buffer  the buffer
+     */
+    private void write(FileChannel channel, ByteBuffer buffer) {
+        int records = buffer.remaining() / RECORD_SIZE;
+
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            this.dropped.add(records);
+            this.plugin.getHotPathLogger().warning("Could not write recorded pings", e.getMessage());
+            return;
+        }
+
+        long written = this.written_bytes.addAndGet((long) records * RECORD_SIZE);
+
+        // stop from another thread, as stopping waits for this one
+        if (this.current != null && written >= this.max_bytes && written - (long) records * RECORD_SIZE < this.max_bytes) {
+            this.plugin.getLogger().info("The ping recording reached its max size.");
+            this.plugin.getProxy().getScheduler().runAsync(this.plugin, this::stop);
+        }
+    }
+
+
+    /**
+     * Gets whether pings are being recorded.
+     *
+     * @return true if recording, false otherwise
+     */
+    public boolean isRecording() {
+        return this.current != null;
+    }
+
+    /**
+     * Gets the number of pings recorded since recording started.
+     *
+     * @return the number of pings
+     */
+    public long getRecorded() {
+        return this.recorded.sum();
+    }
+
+    /**
+     * Gets the number of pings dropped since recording started, because the writer fell behind.
+     *
+     * @return the number of pings
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+}
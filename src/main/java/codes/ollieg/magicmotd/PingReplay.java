@@ -0,0 +1,286 @@
+package codes.ollieg.magicmotd;
+
+import codes.ollieg.magicmotd.handlers.PingHandler;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a recording made by {@link PingRecorder} through the {@link PingHandler}, at the original speed or faster,
+ * so real load shapes (bursts, quiet periods, repeat pingers) can be reproduced away from production.<br>
+ * Each recorded address hash is turned back into the same address every time (in the 2001:db8::/32 documentation
+ * range), so repeat pingers stay repeat pingers. The addresses are never in the database, so replays measure
+ * picking and rendering, not name lookups, and they don't count towards the MOTD stats.
+ */
+public class PingReplay {
+    // records are read from the file this many at a time
+    private static final int READ_RECORDS = 4096;
+
+    private final MagicMOTD plugin;
+
+    /**
+     * The outcome of a replay.
+     */
+    public static final class Result {
+        private final LongAdder pings = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder render_nanos = new LongAdder();
+        private final Set<Integer> protocols = new HashSet<>();
+        private long recorded_duration_ms;
+        private long elapsed_ms;
+        private long max_lag_ms;
+
+        public long getPings() {
+            return this.pings.sum();
+        }
+
+        public long getFailures() {
+            return this.failures.sum();
+        }
+
+        /**
+         * Gets the average time taken to handle each ping.
+         *
+         * @return the time in nanoseconds
+         */
+        public long getAverageNanos() {
+            long pings = getPings();
+            return pings == 0 ? 0 : this.render_nanos.sum() / pings;
+        }
+
+        /**
+         * Gets the number of different protocol versions (client versions) in the recording.
+         *
+         * @return the number of protocol versions
+         */
+        public int getProtocolCount() {
+            return this.protocols.size();
+        }
+
+        /**
+         * Gets how much time the recording covers.
+         *
+         * @return the time in milliseconds
+         */
+        public long getRecordedDuration() {
+            return this.recorded_duration_ms;
+        }
+
+        /**
+         * Gets how long the replay took.
+         *
+         * @return the time in milliseconds
+         */
+        public long getElapsed() {
+            return this.elapsed_ms;
+        }
+
+        /**
+         * Gets the furthest the replay fell behind the recorded timing, which shows when the proxy couldn't keep up.
+         *
+         * @return the lag in milliseconds
+         */
+        public long getMaxLag() {
+            return this.max_lag_ms;
+        }
+    }
+
+
+    /**
+     * Constructs a new {@link PingReplay}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public PingReplay(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Replays a recording, blocking until every ping has been handled. Must not be called on the main thread.
+     *
+     * @param file    the recording
+     * @param speed   how many times faster than recorded to replay, or 0 to replay as fast as possible
+     * @param threads how many threads to handle pings on, like the proxy's network threads
+     * @return the result
+     * @throws IOException              if the recording can't be read or isn't a recording
+     * @throws IllegalArgumentException if the file is null, the speed is negative or the thread count isn't positive
+     * @throws IllegalStateException    if the config has not been parsed yet
+     */
+    @NotNull
+    public Result replay(@NotNull File file, double speed, int threads) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null!");
+        }
+
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("Speed cannot be negative!");
+        }
+
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be positive!");
+        }
+
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+        PingHandler ping_handler = this.plugin.getPingHandler();
+
+        // fail now rather than on every ping
+        config_loader.getParsedConfig();
+
+        Result result = new Result();
+        ExecutorService executor = AsyncExecutors.newPlatformExecutor("MagicMOTD-replay", threads, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * PingRecorder.RECORD_SIZE);
+            buffer.limit(PingRecorder.HEADER_SIZE);
+
+            if (!fill(channel, buffer) || buffer.getInt() != PingRecorder.MAGIC) {
+                throw new IOException(file.getName() + " isn't a ping recording!");
+            }
+
+            int version = buffer.getInt();
+
+            if (version != PingRecorder.FORMAT_VERSION) {
+                throw new IOException(file.getName() + " was recorded in an unsupported format (version " + version + ")!");
+            }
+
+            // the recorded start time isn't needed, as records are relative to it
+            buffer.getLong();
+
+            long start = System.nanoTime();
+
+            while (true) {
+                buffer.clear();
+
+                if (!fill(channel, buffer)) {
+                    break;
+                }
+
+                while (buffer.remaining() >= PingRecorder.RECORD_SIZE) {
+                    long offset_ms = buffer.getLong();
+                    long hash = buffer.getLong();
+                    int protocol = buffer.getInt();
+                    int online_players = buffer.getInt();
+                    int max_players = buffer.getInt();
+
+                    result.recorded_duration_ms = offset_ms;
+                    result.protocols.add(protocol);
+
+                    // wait until the ping is due, then note how late it is
+                    if (speed > 0) {
+                        long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(offset_ms) / speed);
+                        long wait = due - System.nanoTime();
+
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+
+                        result.max_lag_ms = Math.max(result.max_lag_ms, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - due));
+                    }
+
+                    InetAddress address = toAddress(hash);
+                    String ip = address.getHostAddress();
+
+                    executor.execute(() -> ping(config_loader, ping_handler, address, ip, online_players, max_players, result));
+                }
+            }
+
+            executor.shutdown();
+
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("The replay didn't finish handling its pings in time!");
+            }
+
+            result.elapsed_ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    /**
+     * Handles a single replayed ping the same way the {@link PingHandler} does, without counting an impression.
+     *
+     * @param config_loader  the config loader
+     * @param ping_handler   the ping handler
+     * @param address        the address
+     * @param ip             the IP, as it would be stored in the database
+     * @param online_players the number of online players
+     * @param max_players    the maximum number of players
+     * @param result         the result to record the ping in
+     */
+    private static void ping(ConfigLoader config_loader, PingHandler ping_handler, InetAddress address, String ip, int online_players, int max_players, Result result) {
+        long start = System.nanoTime();
+
+        try {
+            ConfigLoader.ParsedConfig config = config_loader.getParsedConfig();
+            int index = ping_handler.pickMOTD(config, address);
+
+            if (index != -1) {
+                PingHandler.buildDescription(ping_handler.renderMOTD(config, index, ip, online_players, max_players, null));
+            }
+        } catch (RuntimeException e) {
+            result.failures.increment();
+        }
+
+        result.render_nanos.add(System.nanoTime() - start);
+        result.pings.increment();
+    }
+
+    /**
+     * Reads from the channel until the buffer is full or the file ends, then flips the buffer.
+     *
+     * @param channel the channel
+     * @param buffer  the buffer
+     * @return true if anything was read, false if the file had ended
+     * @throws IOException if the file can't be read
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Turns an address hash into an address in the 2001:db8::/32 documentation range, which is never routed.
+     *
+     * @param hash the address hash
+     * @return the address
+     */
+    private static InetAddress toAddress(long hash) {
+        byte[] bytes = new byte[16];
+        ByteBuffer.wrap(bytes).putShort((short) 0x2001).putShort((short) 0x0db8).putInt(0).putLong(hash);
+
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,21 +1,88 @@
 package codes.ollieg.magicmotd;
 
-import org.h2.jdbcx.JdbcConnectionPool;
+import codes.ollieg.magicmotd.profiling.DBEvent;
+import codes.ollieg.magicmotd.profiling.Profiling;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * A KV store of player IP addresses to names.
+ * A KV store of player IP addresses to names.<br>
+ * IPs are stored as their raw bytes (see {@link #toKey(String)}), so every way of writing the same address finds the
+ * same record.<br>
+ * Names can also be stored under an address prefix (e.g. a /64 for IPv6 clients that rotate privacy addresses), set in
+ * the config per address family. New names are then only stored under the prefix, and lookups try the prefix first,
+ * then the exact address (for records stored before the family was grouped).<br>
+ * Also stores the impression and conversion counts of each MOTD.<br>
+ * Keeps a {@link KnownIPFilter} of the stored IPs, so lookups of IPs that were never stored can skip the database.<br>
+ * Queries run through a {@link DBConnectionPool}, which keeps each connection's prepared statements.<br>
+ * The schema is kept up to date by a {@link SchemaMigrator}.
  */
 public class PlayerDB {
+    private static final String DB_NAME = "MagicMOTD";
+
+    /**
+     * The longest a stored player name can be, which is the longest a Minecraft name can be.
+     */
+    public static final int MAX_NAME_LENGTH = 16;
+
+    // the longest key, which is an IPv6 prefix followed by its length
+    private static final int MAX_KEY_LENGTH = 17;
+
+    // the most rows a backup reads at a time, pausing for its throttle between reads
+    private static final int BACKUP_CHUNK_ROWS = 1000;
+
+    // sorts keys the way the database sorts binary columns
+    private static final Comparator<byte[]> KEY_ORDER = (a, b) -> {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int compare = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+
+            if (compare != 0) {
+                return compare;
+            }
+        }
+
+        return Integer.compare(a.length, b.length);
+    };
+
     private final MagicMOTD plugin;
 
-    private JdbcConnectionPool pool;
+    private final SchemaMigrator migrator;
+
+    private DBConnectionPool pool;
+
+    // null until the first build finishes, in which case every IP might be known
+    private final AtomicReference<KnownIPFilter> known_ips = new AtomicReference<>();
+
+    // the filter being built, which IPs stored during the build are also added to
+    private volatile KnownIPFilter building_known_ips;
+
+    // whether IPs have been erased since the filter was built
+    private final AtomicBoolean known_ips_stale = new AtomicBoolean(false);
+
+    private HashedWheelTimer.Job known_ips_task;
+
+    private final List<Consumer<String>> change_listeners = new CopyOnWriteArrayList<>();
 
 
     /**
@@ -30,11 +97,412 @@ public class PlayerDB {
         }
 
         this.plugin = plugin;
+        this.migrator = new SchemaMigrator(plugin, Arrays.asList(new BaselineMigration(), new BinaryKeyMigration(), new PrefixKeyMigration()));
+    }
+
+
+    /**
+     * The schema from before migrations were versioned: names keyed by the IP as text.
+     * Every statement is safe to run against any older database, so unversioned databases start here.
+     */
+    private static final class BaselineMigration implements SchemaMigrator.Migration {
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public @NotNull String getDescription() {
+            return "create the players and MOTD stats tables";
+        }
+
+        @Override
+        public void prepare(@NotNull Connection conn) throws SQLException {
+            try (Statement statement = conn.createStatement()) {
+                // the table is a simple KV store of ip -> name
+                statement.execute("CREATE TABLE IF NOT EXISTS PLAYERS (ip TEXT PRIMARY KEY, name TEXT NOT NULL)");
+
+                // index the lowercase name, so lookups and erases by name are case-insensitive and don't scan the whole table
+                // (H2 can't index expressions directly, so the lowercase name is kept in a generated column)
+                statement.execute("ALTER TABLE PLAYERS ADD COLUMN IF NOT EXISTS name_lower VARCHAR GENERATED ALWAYS AS (LOWER(name))");
+                statement.execute("CREATE INDEX IF NOT EXISTS PLAYERS_NAME_LOWER ON PLAYERS (name_lower, ip)");
+
+                // the impression and conversion counts of each parsed motd
+                statement.execute("CREATE TABLE IF NOT EXISTS MOTD_STATS (motd TEXT PRIMARY KEY, impressions BIGINT NOT NULL, conversions BIGINT NOT NULL)");
+            }
+        }
+    }
+
+    /**
+     * Moves the players to a compact table keyed by the IP's bytes, with names limited to {@link #MAX_NAME_LENGTH}.<br>
+     * The old table is renamed to PLAYERS_V1 and copied across in the background, in IP order. Reads fall back to it
+     * and erases apply to both tables until the copy finishes, and rows already written to the new table are never
+     * overwritten by the copy. Rows that can't be converted (IPs that aren't addresses, over-long names) are left
+     * behind, and dropped with the old table.
+     */
+    private final class BinaryKeyMigration implements SchemaMigrator.Migration {
+        private static final int VERSION = 2;
+
+        private int skipped = 0;
+
+        @Override
+        public int getVersion() {
+            return VERSION;
+        }
+
+        @Override
+        public @NotNull String getDescription() {
+            return "key players by the bytes of their IP";
+        }
+
+        @Override
+        public void prepare(@NotNull Connection conn) throws SQLException {
+            try (Statement statement = conn.createStatement()) {
+                // each step is checked separately, as schema changes commit straight away
+                if (!tableExists(conn, "PLAYERS_V1")) {
+                    statement.execute("ALTER TABLE PLAYERS RENAME TO PLAYERS_V1");
+                }
+
+                // the index keeps its name when the table is renamed, which the new table's index needs
+                if (indexExists(conn, "PLAYERS_V1", "PLAYERS_NAME_LOWER")) {
+                    statement.execute("ALTER INDEX PLAYERS_NAME_LOWER RENAME TO PLAYERS_V1_NAME_LOWER");
+                }
+
+                statement.execute("CREATE TABLE IF NOT EXISTS PLAYERS (ip VARBINARY(16) PRIMARY KEY, name VARCHAR(" + MAX_NAME_LENGTH + ") NOT NULL, name_lower VARCHAR(" + MAX_NAME_LENGTH + ") GENERATED ALWAYS AS (LOWER(name)))");
+                statement.execute("CREATE INDEX IF NOT EXISTS PLAYERS_NAME_LOWER ON PLAYERS (name_lower, ip)");
+            }
+        }
+
+        @Override
+        public boolean copiesData() {
+            return true;
+        }
+
+        @Override
+        public @Nullable String copyBatch(@NotNull Connection conn, @NotNull String cursor, int batch_size) throws SQLException {
+            String last = null;
+
+            try (PreparedStatement select = conn.prepareStatement("SELECT ip, name FROM PLAYERS_V1 WHERE ip > ? ORDER BY ip LIMIT ?");
+                 PreparedStatement insert = conn.prepareStatement("INSERT IGNORE INTO PLAYERS (ip, name) VALUES (?, ?)")) {
+                select.setString(1, cursor);
+                select.setInt(2, batch_size);
+
+                try (ResultSet result = select.executeQuery()) {
+                    while (result.next()) {
+                        last = result.getString("ip");
+                        String name = result.getString("name");
+                        byte[] key = toKey(last);
+
+                        if (key == null || name.length() > MAX_NAME_LENGTH) {
+                            this.skipped++;
+                            continue;
+                        }
+
+                        // a write since the migration started is newer, so keep it
+                        insert.setBytes(1, key);
+                        insert.setString(2, name);
+                        insert.addBatch();
+                    }
+                }
+
+                insert.executeBatch();
+            }
+
+            return last;
+        }
+
+        @Override
+        public void finish(@NotNull Connection conn) throws SQLException {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS PLAYERS_V1");
+            }
+
+            if (this.skipped > 0) {
+                PlayerDB.this.plugin.getLogger().warning("Dropped " + this.skipped + " player records that weren't valid IPs or names while migrating the database.");
+            }
+
+            // the filter was built from both tables, so it can be rebuilt from just the new one
+            PlayerDB.this.known_ips_stale.set(true);
+        }
+    }
+
+    /**
+     * Widens the IP column by a byte, to fit the keys of address prefixes (see {@link #toPrefixKey(byte[], int)}).<br>
+     * Changing the column's type would rewrite the whole table while the proxy starts, so the old table is renamed to
+     * PLAYERS_V2 and copied across in the background instead, in key order, the same way as {@link BinaryKeyMigration}.
+     * Names are only stored under prefixes from this version on, so a key copied from the old table can never
+     * overwrite one.
+     */
+    private final class PrefixKeyMigration implements SchemaMigrator.Migration {
+        private static final int VERSION = 3;
+
+        @Override
+        public int getVersion() {
+            return VERSION;
+        }
+
+        @Override
+        public @NotNull String getDescription() {
+            return "make room for address prefix keys";
+        }
+
+        @Override
+        public void prepare(@NotNull Connection conn) throws SQLException {
+            try (Statement statement = conn.createStatement()) {
+                // each step is checked separately, as schema changes commit straight away
+                if (!tableExists(conn, "PLAYERS_V2")) {
+                    statement.execute("ALTER TABLE PLAYERS RENAME TO PLAYERS_V2");
+                }
+
+                if (indexExists(conn, "PLAYERS_V2", "PLAYERS_NAME_LOWER")) {
+                    statement.execute("ALTER INDEX PLAYERS_NAME_LOWER RENAME TO PLAYERS_V2_NAME_LOWER");
+                }
+
+                statement.execute("CREATE TABLE IF NOT EXISTS PLAYERS (ip VARBINARY(" + MAX_KEY_LENGTH + ") PRIMARY KEY, name VARCHAR(" + MAX_NAME_LENGTH + ") NOT NULL, name_lower VARCHAR(" + MAX_NAME_LENGTH + ") GENERATED ALWAYS AS (LOWER(name)))");
+                statement.execute("CREATE INDEX IF NOT EXISTS PLAYERS_NAME_LOWER ON PLAYERS (name_lower, ip)");
+            }
+        }
+
+        @Override
+        public boolean copiesData() {
+            return true;
+        }
+
+        @Override
+        public @Nullable String copyBatch(@NotNull Connection conn, @NotNull String cursor, int batch_size) throws SQLException {
+            byte[] last = null;
+
+            try (PreparedStatement select = conn.prepareStatement("SELECT ip, name FROM PLAYERS_V2 WHERE ip > ? ORDER BY ip LIMIT ?");
+                 PreparedStatement insert = conn.prepareStatement("INSERT IGNORE INTO PLAYERS (ip, name) VALUES (?, ?)")) {
+                // the cursor is the last IP copied, and every key sorts after an empty one
+                select.setBytes(1, cursor.isEmpty() ? new byte[0] : toKey(cursor));
+                select.setInt(2, batch_size);
+
+                try (ResultSet result = select.executeQuery()) {
+                    while (result.next()) {
+                        last = result.getBytes("ip");
+
+                        // a write since the migration started is newer, so keep it
+                        insert.setBytes(1, last);
+                        insert.setString(2, result.getString("name"));
+                        insert.addBatch();
+                    }
+                }
+
+                insert.executeBatch();
+            }
+
+            return last == null ? null : fromKey(last);
+        }
+
+        @Override
+        public void finish(@NotNull Connection conn) throws SQLException {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS PLAYERS_V2");
+            }
+
+            // the filter was built from both tables, so it can be rebuilt from just the new one
+            PlayerDB.this.known_ips_stale.set(true);
+        }
+    }
+
+    /**
+     * Checks whether a table exists in the current schema.
+     *
+     * @param conn  the connection
+     * @param table the table name
+     * @return whether it exists
+     * @throws SQLException if the check fails
+     */
+    private static boolean tableExists(Connection conn, String table) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT 1 FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = SCHEMA() AND TABLE_NAME = ?")) {
+            statement.setString(1, table);
+
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next();
+            }
+        }
+    }
+
+    /**
+     * Checks whether an index exists on a table in the current schema.
+     *
+     * @param conn  the connection
+     * @param table the table name
+     * @param index the index name
+     * @return whether it exists
+     * @throws SQLException if the check fails
+     */
+    private static boolean indexExists(Connection conn, String table, String index) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT 1 FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_SCHEMA = SCHEMA() AND TABLE_NAME = ? AND INDEX_NAME = ?")) {
+            statement.setString(1, table);
+            statement.setString(2, index);
+
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next();
+            }
+        }
+    }
+
+
+    /**
+     * Converts an IP address to the key it is stored under: its 4 (IPv4) or 16 (IPv6) bytes.<br>
+     * An address prefix in CIDR notation (e.g. 2001:db8::/64) is converted to its prefix key instead (see
+     * {@link #toPrefixKey(byte[], int)}).<br>
+     * Only literal addresses are accepted, so this never makes a DNS lookup.
+     *
+     * @param ip the IP address or prefix, optionally with a leading '/'
+     * @return the key, or null if the IP isn't a valid IP address or prefix
+     * @throws IllegalArgumentException if the IP is null
+     */
+    public static @Nullable byte[] toKey(@NotNull String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
+        }
+
+        String literal = ip.startsWith("/") ? ip.substring(1) : ip;
+        int slash = literal.indexOf('/');
+
+        if (slash == -1) {
+            return PrefixTrie.parseAddress(literal);
+        }
+
+        byte[] key = PrefixTrie.parseAddress(literal.substring(0, slash));
+        String length = literal.substring(slash + 1);
+
+        // at most 3 digits, so the length can't overflow
+        if (key == null || length.isEmpty() || length.length() > 3) {
+            return null;
+        }
+
+        int prefix_length = 0;
+
+        for (int i = 0; i < length.length(); i++) {
+            char c = length.charAt(i);
+
+            if (c < '0' || c > '9') {
+                return null;
+            }
+
+            prefix_length = prefix_length * 10 + (c - '0');
+        }
+
+        return prefix_length <= key.length * 8 ? toPrefixKey(key, prefix_length) : null;
+    }
+
+    /**
+     * Converts an IP key to the key of its prefix: the address with every bit past the prefix cleared, followed by a
+     * byte holding the prefix length. The extra byte keeps prefix keys apart from the keys of single addresses.
+     *
+     * @param key           the IP key, 4 or 16 bytes long
+     * @param prefix_length the number of leading bits to keep
+     * @return the prefix key, or the key itself if the prefix covers the whole address
+     * @throws IllegalArgumentException if the key is null or not 4 or 16 bytes long, or the prefix length is out of range
+     */
+    public static @NotNull byte[] toPrefixKey(@NotNull byte[] key, int prefix_length) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+
+        if (key.length != 4 && key.length != 16) {
+            throw new IllegalArgumentException("Key must be 4 or 16 bytes long!");
+        }
+
+        if (prefix_length < 0 || prefix_length > key.length * 8) {
+            throw new IllegalArgumentException("Prefix length must be between 0 and " + key.length * 8 + "!");
+        }
+
+        if (prefix_length == key.length * 8) {
+            return key;
+        }
+
+        byte[] prefix_key = new byte[key.length + 1];
+        int whole_bytes = prefix_length / 8;
+
+        System.arraycopy(key, 0, prefix_key, 0, whole_bytes);
+
+        if (prefix_length % 8 != 0) {
+            prefix_key[whole_bytes] = (byte) (key[whole_bytes] & (0xFF00 >> (prefix_length % 8)));
+        }
+
+        prefix_key[key.length] = (byte) prefix_length;
+        return prefix_key;
+    }
+
+    /**
+     * Returns whether the key is the key of an address prefix rather than a single address.
+     *
+     * @param key the key
+     * @return true if it is a prefix key, false otherwise
+     */
+    private static boolean isPrefixKey(byte[] key) {
+        return key.length == 5 || key.length == 17;
+    }
+
+    /**
+     * Converts a stored key back to an IP address, in its standard form. Prefix keys are converted to CIDR notation.
+     *
+     * @param key the key
+     * @return the IP address or prefix
+     * @throws IllegalArgumentException if the key is null or not 4, 5, 16 or 17 bytes long
+     */
+    public static @NotNull String fromKey(@NotNull byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+
+        try {
+            if (isPrefixKey(key)) {
+                return InetAddress.getByAddress(Arrays.copyOf(key, key.length - 1)).getHostAddress() + "/" + (key[key.length - 1] & 0xFF);
+            }
+
+            return InetAddress.getByAddress(key).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Key must be 4, 5, 16 or 17 bytes long!");
+        }
+    }
+
+    /**
+     * Returns whether the players are still being copied to the binary keyed table, in which case reads fall back to
+     * the old table and erases apply to both.
+     *
+     * @return whether the copy is in progress
+     */
+    private boolean isMigratingKeys() {
+        return this.migrator.getMigratingVersion() == BinaryKeyMigration.VERSION;
+    }
+
+    /**
+     * Returns whether the players are still being copied to the table with room for prefix keys, in which case reads
+     * fall back to the old table and erases apply to both.
+     *
+     * @return whether the copy is in progress
+     */
+    private boolean isWideningKeys() {
+        return this.migrator.getMigratingVersion() == PrefixKeyMigration.VERSION;
+    }
+
+    /**
+     * Gets the key of the prefix the config groups the IP's address family by.<br>
+     * Prefixes are only used once the database has been migrated to fit their keys.
+     *
+     * @param key the IP key
+     * @return the prefix key, or the key itself if its family isn't grouped (or it is already a prefix key)
+     */
+    private byte[] toGroupKey(byte[] key) {
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+
+        if (isPrefixKey(key) || !config_loader.isParsed() || this.migrator.getVersion() < PrefixKeyMigration.VERSION) {
+            return key;
+        }
+
+        ConfigLoader.ParsedConfig config = config_loader.getParsedConfig();
+        return toPrefixKey(key, key.length == 4 ? config.getIPv4KeyPrefix() : config.getIPv6KeyPrefix());
     }
 
 
     /**
-     * Creates a connection pool to the database.
+     * Creates a connection pool to the database, sized as set in the config.
      *
      * @throws RuntimeException      if the H2 database driver cannot be found
      * @throws IllegalStateException if the database is already ready
@@ -44,9 +512,12 @@ public class PlayerDB {
             throw new IllegalStateException("Database is already ready!");
         }
 
+        ConfigLoader.ParsedConfig config = this.plugin.getConfigLoader().getParsedConfig();
+
         // use MySQL mode to allow for ON DUPLICATE KEY UPDATE
-        File db_path = new File(this.plugin.getDataFolder(), "MagicMOTD");
-        String url = "jdbc:h2:" + db_path.getAbsolutePath() + ";mode=MySQL";
+        // H2 only shrinks the file when the database closes, for up to MAX_COMPACT_TIME, and reuses its free space until then
+        File db_path = new File(this.plugin.getDataFolder(), DB_NAME);
+        String url = "jdbc:h2:" + db_path.getAbsolutePath() + ";mode=MySQL;MAX_COMPACT_TIME=" + config.getCompactTime();
 
         try {
             Class.forName("org.h2.Driver");
@@ -55,7 +526,7 @@ public class PlayerDB {
         }
 
         // create the connection pool
-        this.pool = JdbcConnectionPool.create(url, "", "");
+        this.pool = new DBConnectionPool(url, config.getDBPoolSize(), TimeUnit.SECONDS.toMillis(config.getDBPoolTimeout()));
     }
 
 
@@ -68,6 +539,15 @@ public class PlayerDB {
         return this.pool != null;
     }
 
+    /**
+     * Gets the file the database is stored in.
+     *
+     * @return the database file
+     */
+    public @NotNull File getDatabaseFile() {
+        return new File(this.plugin.getDataFolder(), DB_NAME + ".mv.db");
+    }
+
     /**
      * Destroys the connection pool.
      *
@@ -80,13 +560,15 @@ public class PlayerDB {
 
         this.pool.dispose();
         this.pool = null;
+        this.known_ips.set(null);
     }
 
 
     /**
-     * Creates the database and its table if they don't exist.
+     * Creates the database and its tables if they don't exist, and migrates them to the current schema.<br>
+     * Migrations that copy data are only started by {@link #startMigrations()}.
      *
-     * @throws SQLException          if an error occurs while creating the database or table
+     * @throws SQLException          if an error occurs while creating or migrating the database
      * @throws RuntimeException      if the connection fails
      * @throws IllegalStateException if the database is not ready
      */
@@ -95,28 +577,86 @@ public class PlayerDB {
             throw new IllegalStateException("Database is not ready!");
         }
 
-        try (Connection conn = this.pool.getConnection()) {
-            if (conn == null) {
-                throw new RuntimeException("Connection is null!");
-            }
-
+        try (Connection conn = this.pool.openConnection()) {
             DatabaseMetaData metadata = conn.getMetaData();
             this.plugin.getLogger().info("DB using driver: " + metadata.getDriverName());
 
-            // create table if it doesn't exist
-            // the table is a simple KV store of ip -> name
-            Statement statement = conn.createStatement();
-            statement.execute("CREATE TABLE IF NOT EXISTS PLAYERS (ip TEXT PRIMARY KEY, name TEXT NOT NULL)");
+            this.migrator.migrate(conn);
+            this.plugin.getLogger().info("DB schema version: " + this.migrator.getVersion());
+        }
+    }
+
+    /**
+     * Starts copying data in the background for any migration that needs it, carrying on from where the last run stopped.
+     *
+     * @throws IllegalStateException if the database is not ready
+     */
+    public void startMigrations() {
+        if (!isReady()) {
+            throw new IllegalStateException("Database is not ready!");
+        }
+
+        if (this.migrator.getMigratingVersion() != 0) {
+            this.plugin.getLogger().info("Copying data for schema version " + this.migrator.getMigratingVersion() + " in the background.");
+        }
+
+        this.migrator.start(this.pool::openConnection);
+    }
+
+    /**
+     * Stops copying data for migrations, waiting for the current batch to finish. The copy resumes on the next start.
+     */
+    public void stopMigrations() {
+        this.migrator.stop();
+    }
+
+    /**
+     * Gets the schema migrator.
+     *
+     * @return the schema migrator
+     */
+    public @NotNull SchemaMigrator getSchemaMigrator() {
+        return this.migrator;
+    }
+
+
+    /**
+     * Adds a listener that is called after a record is stored or erased, with the IP whose name changed (as returned
+     * by {@link #fromKey}), or null if the names of any number of IPs may have changed (e.g. when a name or prefix is
+     * erased). Listeners run on the thread that made the change.
+     *
+     * @param listener the listener
+     * @throws IllegalArgumentException if the listener is null
+     */
+    public void addChangeListener(@NotNull Consumer<String> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null!");
+        }
+
+        this.change_listeners.add(listener);
+    }
+
+    /**
+     * Calls the change listeners.
+     *
+     * @param ip the IP whose name changed, or null if any number of IPs may have changed
+     */
+    private void notifyChanged(String ip) {
+        for (Consumer<String> listener : this.change_listeners) {
+            listener.accept(ip);
         }
     }
 
     /**
-     * Updates the player name for the given IP address.
+     * Updates the player name for the given IP address.<br>
+     * If the config groups the address's family by prefix, the name is only stored for the whole prefix, so a client
+     * that keeps changing its address within the prefix keeps a single record. Every address in the prefix then shares
+     * the name of the latest login from it.
      *
-     * @param ip   the player's IP address
+     * @param ip   the player's IP address (or an address prefix in CIDR notation)
      * @param name the player name
      * @throws SQLException             if an error occurs while updating the player name
-     * @throws IllegalArgumentException if the IP or name is null
+     * @throws IllegalArgumentException if the IP or name is null, the IP isn't a valid IP address or the name is too long
      * @throws IllegalStateException    if the database is not ready
      * @throws RuntimeException         if the connection fails
      */
@@ -129,30 +669,56 @@ public class PlayerDB {
             throw new IllegalArgumentException("Name cannot be null!");
         }
 
+        if (name.length() > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name cannot be longer than " + MAX_NAME_LENGTH + " characters!");
+        }
+
+        byte[] key = toKey(ip);
+
+        if (key == null) {
+            throw new IllegalArgumentException("IP is not a valid IP address!");
+        }
+
         if (!isReady()) {
             throw new IllegalStateException("Database is not ready!");
         }
 
 
-        try (Connection conn = this.pool.getConnection()) {
-            if (conn == null) {
-                throw new RuntimeException("Connection is null!");
-            }
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("setNameForIP") : null;
+        int rows = 0;
+        boolean success = false;
+
+        try {
+            byte[] group_key = toGroupKey(key);
 
-            try (PreparedStatement statement = conn.prepareStatement("INSERT INTO PLAYERS (ip, name) VALUES (?, ?) ON DUPLICATE KEY UPDATE name = ?")) {
-                statement.setString(1, ip);
+            rows = this.pool.execute(handle -> {
+                PreparedStatement statement = handle.prepare("INSERT INTO PLAYERS (ip, name) VALUES (?, ?) ON DUPLICATE KEY UPDATE name = ?");
+                statement.setBytes(1, group_key);
                 statement.setString(2, name);
                 statement.setString(3, name);
-                statement.execute();
+                return statement.executeUpdate();
+            });
+
+            success = true;
+
+            // only after the write, so a build that started before it either sees the row or is added to here
+            addKnownIP(group_key);
+
+            notifyChanged(fromKey(key));
+        } finally {
+            if (db_event != null) {
+                db_event.finish(rows, success);
             }
         }
     }
 
     /**
-     * Returns the player name for the given IP address, or null if the IP address is not in the database.
+     * Returns the player name for the given IP address, or null if the IP address is not in the database.<br>
+     * If the config groups the address's family by prefix, the name stored for its prefix is returned, or the name
+     * stored for the exact address before the family was grouped if the prefix has no record yet.
      *
-     * @param ip the player's IP address
-     * @return the player name, or null if the IP address is not in the database
+     * @param ip the player's IP address (or an address prefix in CIDR notation)
+     * @return the player name, or null if the IP address is not in the database (or isn't a valid IP address)
      */
     public @Nullable String getNameForIP(@NotNull String ip) {
         if (ip == null) {
@@ -163,29 +729,80 @@ public class PlayerDB {
             throw new IllegalStateException("Database is not ready!");
         }
 
-        try (Connection conn = this.pool.getConnection()) {
-            if (conn == null) {
-                throw new RuntimeException("Connection is null!");
-            }
+        byte[] key = toKey(ip);
+
+        if (key == null) {
+            return null;
+        }
+
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("getNameForIP") : null;
+        String name = null;
+        boolean success = false;
+
+        try {
+            byte[] group_key = toGroupKey(key);
 
-            try (PreparedStatement statement = conn.prepareStatement("SELECT name FROM PLAYERS WHERE ip = ?")) {
-                statement.setString(1, ip);
+            name = this.pool.execute(handle -> {
+                PreparedStatement statement;
+
+                if (group_key == key) {
+                    statement = handle.prepare("SELECT name FROM PLAYERS WHERE ip = ?");
+                    statement.setBytes(1, key);
+                } else {
+                    // a prefix key is a byte longer than an address key, so the prefix record (which is newer) comes first
+                    statement = handle.prepare("SELECT name FROM PLAYERS WHERE ip IN (?, ?) ORDER BY OCTET_LENGTH(ip) DESC LIMIT 1");
+                    statement.setBytes(1, key);
+                    statement.setBytes(2, group_key);
+                }
 
                 try (ResultSet result = statement.executeQuery()) {
                     if (result.next()) {
                         return result.getString("name");
                     }
                 }
-            }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
 
-        return null;
-    }
+                // the record might not have been copied yet
+                if (isMigratingKeys()) {
+                    PreparedStatement old_statement = handle.prepare("SELECT name FROM PLAYERS_V1 WHERE ip IN (?, ?) LIMIT 1");
+                    old_statement.setString(1, ip);
+                    old_statement.setString(2, fromKey(key));
 
-    /**
-     * Returns a list of IPs known for the given player name.
+                    try (ResultSet result = old_statement.executeQuery()) {
+                        if (result.next()) {
+                            return result.getString("name");
+                        }
+                    }
+                }
+
+                // the old table only has exact records, as prefixes are only stored in the widened table
+                if (isWideningKeys()) {
+                    PreparedStatement old_statement = handle.prepare("SELECT name FROM PLAYERS_V2 WHERE ip = ?");
+                    old_statement.setBytes(1, key);
+
+                    try (ResultSet result = old_statement.executeQuery()) {
+                        if (result.next()) {
+                            return result.getString("name");
+                        }
+                    }
+                }
+
+                return null;
+            });
+
+            success = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (db_event != null) {
+                db_event.finish(name == null ? 0 : 1, success);
+            }
+        }
+
+        return name;
+    }
+
+    /**
+     * Returns a list of IPs known for the given player name, ignoring case.
      *
      * @param name the player name
      * @return a list of IPs for the given player name
@@ -202,40 +819,240 @@ public class PlayerDB {
             throw new IllegalStateException("Database is not ready!");
         }
 
-        // TODO: the try-with chaining kinda sucks, perhaps we could encapsulate the process in a method?
-        try (Connection conn = this.pool.getConnection()) {
-            if (conn == null) {
-                throw new RuntimeException("Connection is null!");
-            }
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("getIPsForName") : null;
+        List<String> ips = new ArrayList<>();
+        boolean success = false;
+
+        try {
+            ips = this.pool.execute(handle -> {
+                List<String> found = new ArrayList<>();
+
+                if (isMigratingKeys() || isWideningKeys()) {
+                    for (byte[] key : readNameRecords(handle, name, isWideningKeys()).keySet()) {
+                        found.add(fromKey(key));
+                    }
 
-            try (PreparedStatement statement = conn.prepareStatement("SELECT ip FROM PLAYERS WHERE name = ?")) {
+                    return found;
+                }
+
+                PreparedStatement statement = handle.prepare("SELECT ip FROM PLAYERS WHERE name_lower = LOWER(?)");
                 statement.setString(1, name);
 
                 try (ResultSet result = statement.executeQuery()) {
 
                     // convert result set to list
-                    List<String> ips = new ArrayList<>();
                     while (result.next()) {
-                        ips.add(result.getString("ip"));
+                        found.add(fromKey(result.getBytes("ip")));
+                    }
+                }
+
+                return found;
+            });
+
+            success = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (db_event != null) {
+                db_event.finish(ips.size(), success);
+            }
+        }
+
+        return ips;
+    }
+
+    /**
+     * Returns a page of the IPs known for the given player name, ignoring case, along with the name stored for each.<br>
+     * Pages are sorted by IP, and each page starts after the last IP of the page before it. The name index holds the
+     * records of each name in IP order, so a page is read by seeking straight to its first record, and is as cheap as
+     * the first page however deep into the records it is.
+     *
+     * @param name     the player name
+     * @param after_ip the last IP of the page before, as returned by this, or null for the first page
+     * @param limit    the most IPs to return
+     * @return the IPs, sorted, mapped to their stored player names
+     * @throws IllegalArgumentException if the name is null, the IP to start after isn't a valid IP or the limit isn't positive
+     * @throws IllegalStateException    if the database is not ready
+     * @throws RuntimeException         if the connection fails
+     */
+    public @NotNull Map<String, String> getIPsForName(@NotNull String name, @Nullable String after_ip, int limit) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null!");
+        }
+
+        // every key sorts after the empty key, so the first page needs no separate query
+        byte[] after_key = after_ip == null ? new byte[0] : toKey(after_ip);
+
+        if (after_key == null) {
+            throw new IllegalArgumentException("Invalid IP to start after!");
+        }
+
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive!");
+        }
+
+        if (!isReady()) {
+            throw new IllegalStateException("Database is not ready!");
+        }
+
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("getIPsForNamePage") : null;
+        Map<String, String> ips = new LinkedHashMap<>();
+        boolean success = false;
+
+        try {
+            ips = this.pool.execute(handle -> {
+                Map<String, String> found = new LinkedHashMap<>();
+
+                if (isMigratingKeys() || isWideningKeys()) {
+                    // both tables have to be read in full to page them together, but only until the copy finishes
+                    for (Map.Entry<byte[], String> entry : readNameRecords(handle, name, isWideningKeys()).tailMap(after_key, false).entrySet()) {
+                        if (found.size() >= limit) {
+                            break;
+                        }
+
+                        found.put(fromKey(entry.getKey()), entry.getValue());
                     }
 
-                    return ips;
+                    return found;
+                }
+
+                PreparedStatement statement = handle.prepare("SELECT ip, name FROM PLAYERS WHERE name_lower = LOWER(?) AND ip > ? ORDER BY ip LIMIT ?");
+                statement.setString(1, name);
+                statement.setBytes(2, after_key);
+                statement.setInt(3, limit);
+
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        found.put(fromKey(result.getBytes("ip")), result.getString("name"));
+                    }
                 }
+
+                return found;
+            });
+
+            success = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (db_event != null) {
+                db_event.finish(ips.size(), success);
             }
+        }
+
+        return ips;
+    }
+
+    /**
+     * Returns the number of IPs known for the given player name, ignoring case.
+     *
+     * @param name the player name
+     * @return the number of IPs
+     * @throws IllegalArgumentException if the name is null
+     * @throws IllegalStateException    if the database is not ready
+     * @throws RuntimeException         if the connection fails
+     */
+    public int countIPsForName(@NotNull String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null!");
+        }
+
+        if (!isReady()) {
+            throw new IllegalStateException("Database is not ready!");
+        }
+
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("countIPsForName") : null;
+        int count = 0;
+        boolean success = false;
+
+        try {
+            count = this.pool.execute(handle -> {
+                if (isMigratingKeys() || isWideningKeys()) {
+                    return readNameRecords(handle, name, isWideningKeys()).size();
+                }
+
+                PreparedStatement statement = handle.prepare("SELECT COUNT(*) FROM PLAYERS WHERE name_lower = LOWER(?)");
+                statement.setString(1, name);
+
+                try (ResultSet result = statement.executeQuery()) {
+                    return result.next() ? result.getInt(1) : 0;
+                }
+            });
+
+            success = true;
         } catch (SQLException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (db_event != null) {
+                db_event.finish(1, success);
+            }
         }
+
+        return count;
     }
 
     /**
-     * Erases the given IP address from the database.
+     * Reads every record for the player name from both tables while the binary key or prefix key migration is copying
+     * between them. Records that can't be converted are left out, as they won't be copied.
      *
-     * @param ip the IP address to erase
+     * @param handle   the pooled connection
+     * @param name     the player name
+     * @param widening true if the prefix key migration is copying from PLAYERS_V2, false if the binary key migration is
+     *                 copying from PLAYERS_V1
+     * @return the stored names, keyed and sorted by IP key, leaving out old records the new table has replaced
+     * @throws SQLException if the read fails
+     */
+    private static TreeMap<byte[], String> readNameRecords(DBConnectionPool.Handle handle, String name, boolean widening) throws SQLException {
+        TreeMap<byte[], String> records = new TreeMap<>(KEY_ORDER);
+
+        PreparedStatement statement = handle.prepare(widening ? "SELECT ip, name FROM PLAYERS_V2 WHERE name_lower = LOWER(?)" : "SELECT ip, name FROM PLAYERS_V1 WHERE name_lower = LOWER(?)");
+        PreparedStatement copied = handle.prepare("SELECT 1 FROM PLAYERS WHERE ip = ?");
+        statement.setString(1, name);
+
+        try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+                // the IPs in PLAYERS_V2 are already keys
+                byte[] key = widening ? result.getBytes("ip") : toKey(result.getString("ip"));
+                String stored_name = result.getString("name");
+
+                if (key == null || stored_name.length() > MAX_NAME_LENGTH) {
+                    continue;
+                }
+
+                // the IP may have been stored under a different name since the migration started
+                copied.setBytes(1, key);
+
+                try (ResultSet copied_result = copied.executeQuery()) {
+                    if (!copied_result.next()) {
+                        records.put(key, stored_name);
+                    }
+                }
+            }
+        }
+
+        statement = handle.prepare("SELECT ip, name FROM PLAYERS WHERE name_lower = LOWER(?)");
+        statement.setString(1, name);
+
+        try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+                records.put(result.getBytes("ip"), result.getString("name"));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Erases the given IP address from the database.<br>
+     * If the config groups the address's family by prefix, the prefix record is erased too, as that is where the
+     * address's name is stored (shared with every other address in the prefix).
+     *
+     * @param ip the IP address (or address prefix in CIDR notation) to erase
+     * @return the number of records erased (0 if the IP isn't a valid IP address or prefix)
      * @throws IllegalArgumentException if the IP is null
      * @throws IllegalStateException    if the database is not ready
      * @throws RuntimeException         if the connection fails
      */
-    public void eraseIP(@NotNull String ip) {
+    public int eraseIP(@NotNull String ip) {
         if (ip == null) {
             throw new IllegalArgumentException("IP cannot be null!");
         }
@@ -244,29 +1061,88 @@ public class PlayerDB {
             throw new IllegalStateException("Database is not ready!");
         }
 
-        try (Connection conn = this.pool.getConnection()) {
-            if (conn == null) {
-                throw new RuntimeException("Connection is null!");
-            }
+        byte[] key = toKey(ip);
+
+        if (key == null) {
+            return 0;
+        }
+
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("eraseIP") : null;
+        int rows = 0;
+        boolean success = false;
+
+        try {
+            byte[] group_key = toGroupKey(key);
+
+            rows = this.pool.execute(handle -> {
+                if (isMigratingKeys()) {
+                    // keep batches out, so the record can't be copied back in after it is erased
+                    synchronized (this.migrator) {
+                        PreparedStatement statement = handle.prepare("DELETE FROM PLAYERS_V1 WHERE ip IN (?, ?)");
+                        statement.setString(1, ip);
+                        statement.setString(2, fromKey(key));
+
+                        return statement.executeUpdate() + deleteByKeys(handle, key, group_key);
+                    }
+                }
+
+                if (isWideningKeys()) {
+                    synchronized (this.migrator) {
+                        PreparedStatement statement = handle.prepare("DELETE FROM PLAYERS_V2 WHERE ip = ?");
+                        statement.setBytes(1, key);
+
+                        return statement.executeUpdate() + deleteByKeys(handle, key, group_key);
+                    }
+                }
+
+                return deleteByKeys(handle, key, group_key);
+            });
+
+            if (rows > 0) {
+                this.known_ips_stale.set(true);
 
-            try (PreparedStatement statement = conn.prepareStatement("DELETE FROM PLAYERS WHERE ip = ?")) {
-                statement.setString(1, ip);
-                statement.execute();
+                // a prefix covers many addresses
+                notifyChanged(isPrefixKey(group_key) ? null : fromKey(key));
             }
+
+            success = true;
         } catch (SQLException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (db_event != null) {
+                db_event.finish(rows, success);
+            }
         }
+
+        return rows;
     }
 
     /**
-     * Erases all records (IP addresses) for the given player name.
+     * Deletes the records of an IP key and the key of its prefix from the players table.
+     *
+     * @param handle    the pooled connection
+     * @param key       the IP key
+     * @param group_key the key of its prefix, or the IP key itself if its family isn't grouped
+     * @return the number of records deleted
+     * @throws SQLException if the delete fails
+     */
+    private static int deleteByKeys(DBConnectionPool.Handle handle, byte[] key, byte[] group_key) throws SQLException {
+        PreparedStatement statement = handle.prepare("DELETE FROM PLAYERS WHERE ip IN (?, ?)");
+        statement.setBytes(1, key);
+        statement.setBytes(2, group_key);
+        return statement.executeUpdate();
+    }
+
+    /**
+     * Erases all records (IP addresses) for the given player name, ignoring case.
      *
      * @param name the player name
+     * @return the number of records erased
      * @throws IllegalArgumentException if the name is null
      * @throws IllegalStateException    if the database is not ready
      * @throws RuntimeException         if the connection fails
      */
-    public void eraseName(@NotNull String name) {
+    public int eraseName(@NotNull String name) {
         if (name == null) {
             throw new IllegalArgumentException("Name cannot be null!");
         }
@@ -275,15 +1151,649 @@ public class PlayerDB {
             throw new IllegalStateException("Database is not ready!");
         }
 
-        try (Connection conn = this.pool.getConnection()) {
-            if (conn == null) {
-                throw new RuntimeException("Connection is null!");
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("eraseName") : null;
+        int rows = 0;
+        boolean success = false;
+
+        try {
+            rows = this.pool.execute(handle -> {
+                if (!isMigratingKeys() && !isWideningKeys()) {
+                    return deleteByName(handle, name);
+                }
+
+                // keep batches out, so the records can't be copied back in after they are erased
+                synchronized (this.migrator) {
+                    PreparedStatement statement = handle.prepare(isWideningKeys() ? "DELETE FROM PLAYERS_V2 WHERE name_lower = LOWER(?)" : "DELETE FROM PLAYERS_V1 WHERE name_lower = LOWER(?)");
+                    statement.setString(1, name);
+
+                    return statement.executeUpdate() + deleteByName(handle, name);
+                }
+            });
+
+            // the erased IPs aren't known without another query, and erasing is rare
+            if (rows > 0) {
+                this.known_ips_stale.set(true);
+                notifyChanged(null);
             }
 
-            try (PreparedStatement statement = conn.prepareStatement("DELETE FROM PLAYERS WHERE name = ?")) {
-                statement.setString(1, name);
-                statement.execute();
+            success = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (db_event != null) {
+                db_event.finish(rows, success);
             }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Deletes every record for the player name from the players table, ignoring case.
+     *
+     * @param handle the pooled connection
+     * @param name   the player name
+     * @return the number of records deleted
+     * @throws SQLException if the delete fails
+     */
+    private static int deleteByName(DBConnectionPool.Handle handle, String name) throws SQLException {
+        PreparedStatement statement = handle.prepare("DELETE FROM PLAYERS WHERE name_lower = LOWER(?)");
+        statement.setString(1, name);
+        return statement.executeUpdate();
+    }
+
+    /**
+     * Returns whether the IP address might be in the database.<br>
+     * If this returns false, neither the IP nor its prefix is in the database, so {@link #getNameForIP(String)} would
+     * return null.
+     *
+     * @param ip the IP address
+     * @return false if the IP is definitely not in the database, true if it might be (or the filter isn't built yet)
+     * @throws IllegalArgumentException if the IP is null
+     */
+    public boolean isKnownIP(@NotNull String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
+        }
+
+        byte[] key = toKey(ip);
+
+        if (key == null) {
+            return false;
+        }
+
+        KnownIPFilter filter = this.known_ips.get();
+
+        if (filter == null || filter.mightContain(key)) {
+            return true;
+        }
+
+        byte[] group_key = toGroupKey(key);
+        return group_key != key && filter.mightContain(group_key);
+    }
+
+    /**
+     * Gets the filter of the IP addresses in the database.
+     *
+     * @return the filter, or null if it hasn't been built yet
+     */
+    public @Nullable KnownIPFilter getKnownIPFilter() {
+        return this.known_ips.get();
+    }
+
+    /**
+     * Adds the IP address to the known IP filter, and to the filter being built if there is one.
+     *
+     * @param key the IP address key
+     */
+    private void addKnownIP(byte[] key) {
+        KnownIPFilter building = this.building_known_ips;
+
+        if (building != null) {
+            building.add(key);
+        }
+
+        KnownIPFilter filter = this.known_ips.get();
+
+        if (filter != null) {
+            filter.add(key);
+        }
+    }
+
+    /**
+     * Rebuilds the known IP filter with a streaming scan of every IP in the database, then replaces the old filter.<br>
+     * Lookups keep using the old filter (or the database, on the first build) until the scan finishes.
+     *
+     * @throws IllegalStateException if the database is not ready
+     * @throws RuntimeException      if the connection fails
+     */
+    public synchronized void rebuildKnownIPs() {
+        if (!isReady()) {
+            throw new IllegalStateException("Database is not ready!");
+        }
+
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("rebuildKnownIPs") : null;
+        int rows = 0;
+        boolean success = false;
+
+        // clear first, so an erase during the scan marks the new filter stale
+        this.known_ips_stale.set(false);
+
+        // the scan can take a while, so it doesn't hold a pooled connection
+        try (Connection conn = this.pool.openConnection()) {
+            boolean migrating = isMigratingKeys();
+            boolean widening = isWideningKeys();
+            int expected_ips;
+
+            try (Statement statement = conn.createStatement(); ResultSet result = statement.executeQuery(migrating
+                    ? "SELECT (SELECT COUNT(*) FROM PLAYERS) + (SELECT COUNT(*) FROM PLAYERS_V1)"
+                    : widening ? "SELECT (SELECT COUNT(*) FROM PLAYERS) + (SELECT COUNT(*) FROM PLAYERS_V2)" : "SELECT COUNT(*) FROM PLAYERS")) {
+                expected_ips = result.next() ? result.getInt(1) : 0;
+            }
+
+            KnownIPFilter filter = new KnownIPFilter(expected_ips);
+            this.building_known_ips = filter;
+
+            // stream the IPs rather than loading them all at once
+            try (PreparedStatement statement = conn.prepareStatement("SELECT ip FROM PLAYERS")) {
+                statement.setFetchSize(1000);
+
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        filter.add(result.getBytes(1));
+                        rows++;
+                    }
+                }
+            }
+
+            // include the records that haven't been copied yet
+            if (migrating) {
+                try (PreparedStatement statement = conn.prepareStatement("SELECT ip FROM PLAYERS_V1")) {
+                    statement.setFetchSize(1000);
+
+                    try (ResultSet result = statement.executeQuery()) {
+                        while (result.next()) {
+                            byte[] key = toKey(result.getString(1));
+
+                            if (key != null) {
+                                filter.add(key);
+                                rows++;
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (widening) {
+                try (PreparedStatement statement = conn.prepareStatement("SELECT ip FROM PLAYERS_V2")) {
+                    statement.setFetchSize(1000);
+
+                    try (ResultSet result = statement.executeQuery()) {
+                        while (result.next()) {
+                            filter.add(result.getBytes(1));
+                            rows++;
+                        }
+                    }
+                }
+            }
+
+            this.known_ips.set(filter);
+            success = true;
+        } catch (SQLException e) {
+            this.known_ips_stale.set(true);
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            this.known_ips_stale.set(true);
+            throw e;
+        } finally {
+            this.building_known_ips = null;
+
+            if (db_event != null) {
+                db_event.finish(rows, success);
+            }
+        }
+    }
+
+    /**
+     * Builds the known IP filter in the background, then checks on the interval set in the config whether IPs have been
+     * erased since, rebuilding it if they have.
+     */
+    public synchronized void startKnownIPRebuilds() {
+        stopKnownIPRebuilds();
+
+        long interval = this.plugin.getConfigLoader().getParsedConfig().getKnownIPsRebuildInterval();
+        boolean built = this.known_ips.get() != null;
+
+        this.known_ips_task = this.plugin.getTimer().schedule("known-ips-rebuild", () -> {
+            if (!isReady() || (this.known_ips.get() != null && !this.known_ips_stale.get())) {
+                return;
+            }
+
+            try {
+                rebuildKnownIPs();
+
+                KnownIPFilter filter = this.known_ips.get();
+                this.plugin.getLogger().info(String.format("Built the known IP filter (%d IPs, %d KiB).", filter.size(), filter.getSizeBytes() / 1024));
+            } catch (RuntimeException e) {
+                this.plugin.getLogger().warning("Could not build the known IP filter, it will be retried: " + e.getMessage());
+            }
+        }, built ? interval : 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops checking whether the known IP filter needs rebuilding.
+     */
+    public synchronized void stopKnownIPRebuilds() {
+        if (this.known_ips_task != null) {
+            this.known_ips_task.cancel();
+            this.known_ips_task = null;
+        }
+    }
+
+
+    /**
+     * Writes an SQL dump of the database to a gzipped file while the database stays online.<br>
+     * The schema is dumped first, then each table's rows in chunks. Each chunk is read by its own statement rather than
+     * in one long transaction, so the database never has to keep old versions of rows around for the whole dump, and
+     * lookups and writes carry on as normal while it runs. Rows written during the backup may be dumped as they were
+     * before or after the write, but every row is dumped once. The schema info is dumped before the tables, so an
+     * unfinished migration resumes from no later than the rows that were dumped, and copies any it missed again.<br>
+     * The throttle pauses between chunks, so it slows the reads from the database as well as the writes to the file.
+     * The dump can be restored with {@code RUNSCRIPT FROM ... COMPRESSION GZIP}.<br>
+     * The file is only put in place once the dump is complete, so a failed backup never leaves a partial file behind.
+     *
+     * @param target               the file to write the backup to
+     * @param max_bytes_per_second the most (compressed) bytes to write per second, or 0 for no limit
+     * @return the size of the backup file in bytes
+     * @throws IOException              if the backup file can't be written
+     * @throws IllegalArgumentException if the target is null or the rate is negative
+     * @throws IllegalStateException    if the database is not ready
+     * @throws RuntimeException         if the connection fails
+     */
+    public long backup(@NotNull File target, long max_bytes_per_second) throws IOException {
+        if (target == null) {
+            throw new IllegalArgumentException("Target cannot be null!");
+        }
+
+        if (max_bytes_per_second < 0) {
+            throw new IllegalArgumentException("Max bytes per second cannot be negative!");
+        }
+
+        if (!isReady()) {
+            throw new IllegalStateException("Database is not ready!");
+        }
+
+        DBEvent db_event = Profiling.JFR_AVAILABLE ? DBEvent.start("backup") : null;
+        File partial = new File(target.getPath() + ".part");
+        long bytes = 0;
+        int rows = 0;
+        boolean success = false;
+
+        try (Connection conn = this.pool.openConnection()) {
+            try (FileOutputStream file = new FileOutputStream(partial);
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(file), StandardCharsets.UTF_8))) {
+                BackupThrottle throttle = new BackupThrottle(file, max_bytes_per_second);
+
+                try (Statement statement = conn.createStatement();
+                     ResultSet result = statement.executeQuery("SCRIPT NODATA")) {
+                    while (result.next()) {
+                        writer.write(result.getString(1));
+                        writer.write('\n');
+                    }
+                }
+
+                List<String> tables = new ArrayList<>();
+
+                try (Statement statement = conn.createStatement();
+                     ResultSet result = statement.executeQuery("SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_TYPE = 'BASE TABLE' ORDER BY TABLE_NAME <> 'SCHEMA_INFO', TABLE_NAME")) {
+                    while (result.next()) {
+                        tables.add(result.getString(1));
+                    }
+                }
+
+                for (String table : tables) {
+                    rows += backupTable(conn, table, writer, throttle);
+                }
+            }
+
+            if (!partial.renameTo(target)) {
+                throw new IOException("Could not move the backup to " + target.getPath());
+            }
+
+            bytes = target.length();
+            success = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Backup was interrupted!");
+        } finally {
+            if (!success) {
+                partial.delete();
+            }
+
+            if (db_event != null) {
+                db_event.finish(rows, success);
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Paces a backup to its max rate, going by the bytes that have actually reached the file.
+     */
+    private static final class BackupThrottle {
+        private final FileOutputStream file;
+        private final long max_bytes_per_second;
+        private final long start = System.nanoTime();
+
+        private BackupThrottle(FileOutputStream file, long max_bytes_per_second) {
+            this.file = file;
+            this.max_bytes_per_second = max_bytes_per_second;
+        }
+
+        /**
+         * Sleeps for as long as the backup is ahead of its max rate. Called between chunks, so the database rests too.
+         *
+         * @throws IOException          if the file position can't be read
+         * @throws InterruptedException if interrupted while sleeping
+         */
+        private void pause() throws IOException, InterruptedException {
+            if (this.max_bytes_per_second == 0) {
+                return;
+            }
+
+            long written = this.file.getChannel().position();
+            long ahead_ms = written * 1000 / this.max_bytes_per_second - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.start);
+
+            if (ahead_ms > 0) {
+                Thread.sleep(ahead_ms);
+            }
+        }
+    }
+
+    /**
+     * Writes the rows of a table to a backup as INSERT statements of up to {@link #BACKUP_CHUNK_ROWS} rows each.<br>
+     * Tables with a single column primary key are read a chunk at a time, resuming after the last key, and the throttle
+     * pauses between chunks. Generated columns are left out, as the database fills them in again on restore.
+     *
+     * @param conn     the connection
+     * @param table    the table name, as stored in the information schema
+     * @param writer   the backup writer
+     * @param throttle the backup throttle
+     * @return the number of rows written
+     * @throws SQLException         if the table can't be read
+     * @throws IOException          if the backup can't be written
+     * @throws InterruptedException if interrupted while throttled
+     */
+    private static int backupTable(Connection conn, String table, Writer writer, BackupThrottle throttle) throws SQLException, IOException, InterruptedException {
+        List<String> columns = new ArrayList<>();
+        List<String> key_columns = new ArrayList<>();
+
+        try (PreparedStatement statement = conn.prepareStatement("SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = ? AND IS_GENERATED = 'NEVER' ORDER BY ORDINAL_POSITION")) {
+            statement.setString(1, table);
+
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    columns.add(quoteIdentifier(result.getString(1)));
+                }
+            }
+        }
+
+        try (PreparedStatement statement = conn.prepareStatement("SELECT k.COLUMN_NAME FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS c JOIN INFORMATION_SCHEMA.KEY_COLUMN_USAGE k ON k.CONSTRAINT_SCHEMA = c.CONSTRAINT_SCHEMA AND k.CONSTRAINT_NAME = c.CONSTRAINT_NAME WHERE c.TABLE_SCHEMA = 'PUBLIC' AND c.TABLE_NAME = ? AND c.CONSTRAINT_TYPE = 'PRIMARY KEY'")) {
+            statement.setString(1, table);
+
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    key_columns.add(quoteIdentifier(result.getString(1)));
+                }
+            }
+        }
+
+        String select = "SELECT " + String.join(", ", columns) + " FROM \"PUBLIC\"." + quoteIdentifier(table);
+        String insert = "INSERT INTO \"PUBLIC\"." + quoteIdentifier(table) + "(" + String.join(", ", columns) + ") VALUES";
+
+        // without a single key to resume from, the table is read in one go
+        if (key_columns.size() != 1 || !columns.contains(key_columns.get(0))) {
+            try (Statement statement = conn.createStatement();
+                 ResultSet result = statement.executeQuery(select)) {
+                return writeInserts(result, insert, columns.size(), -1, writer, throttle, null);
+            }
+        }
+
+        String key = key_columns.get(0);
+        int key_index = columns.indexOf(key);
+        int rows = 0;
+        Object[] last_key = new Object[1];
+
+        try (PreparedStatement first = conn.prepareStatement(select + " ORDER BY " + key + " LIMIT " + BACKUP_CHUNK_ROWS);
+             PreparedStatement next = conn.prepareStatement(select + " WHERE " + key + " > ? ORDER BY " + key + " LIMIT " + BACKUP_CHUNK_ROWS)) {
+            PreparedStatement statement = first;
+
+            while (true) {
+                int chunk;
+
+                try (ResultSet result = statement.executeQuery()) {
+                    chunk = writeInserts(result, insert, columns.size(), key_index, writer, throttle, last_key);
+                }
+
+                rows += chunk;
+
+                if (chunk < BACKUP_CHUNK_ROWS) {
+                    return rows;
+                }
+
+                next.setObject(1, last_key[0]);
+                statement = next;
+            }
+        }
+    }
+
+    /**
+     * Writes rows as INSERT statements of up to {@link #BACKUP_CHUNK_ROWS} rows each, pausing for the throttle after each.
+     *
+     * @param result    the rows
+     * @param insert    the start of the INSERT statement, up to VALUES
+     * @param columns   the number of columns
+     * @param key_index the index of the key column, or -1 if the last key isn't needed
+     * @param writer    the backup writer
+     * @param throttle  the backup throttle
+     * @param last_key  holds the key of the last row written (at index 0), or null if not needed
+     * @return the number of rows written
+     * @throws SQLException         if the rows can't be read
+     * @throws IOException          if the backup can't be written
+     * @throws InterruptedException if interrupted while throttled
+     */
+    private static int writeInserts(ResultSet result, String insert, int columns, int key_index, Writer writer, BackupThrottle throttle, Object[] last_key) throws SQLException, IOException, InterruptedException {
+        int rows = 0;
+
+        while (result.next()) {
+            writer.write(rows % BACKUP_CHUNK_ROWS == 0 ? insert + "\n(" : ",\n(");
+
+            for (int i = 1; i <= columns; i++) {
+                if (i > 1) {
+                    writer.write(", ");
+                }
+
+                writer.write(toSQLLiteral(result.getObject(i)));
+            }
+
+            writer.write(')');
+            rows++;
+
+            if (last_key != null) {
+                last_key[0] = result.getObject(key_index + 1);
+            }
+
+            if (rows % BACKUP_CHUNK_ROWS == 0) {
+                writer.write(";\n");
+                throttle.pause();
+            }
+        }
+
+        if (rows % BACKUP_CHUNK_ROWS != 0) {
+            writer.write(";\n");
+            throttle.pause();
+        }
+
+        return rows;
+    }
+
+    /**
+     * Writes a value as an SQL literal, for the backup.
+     *
+     * @param value the value, as returned by {@link ResultSet#getObject(int)}
+     * @return the literal
+     */
+    private static String toSQLLiteral(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+
+        if (value instanceof byte[]) {
+            StringBuilder sb = new StringBuilder("X'");
+
+            for (byte b : (byte[]) value) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+
+            return sb.append('\'').toString();
+        }
+
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+
+        if (value instanceof Timestamp) {
+            return "TIMESTAMP '" + value + "'";
+        }
+
+        return "'" + value.toString().replace("'", "''") + "'";
+    }
+
+    /**
+     * Quotes an identifier for SQL, keeping its case.
+     *
+     * @param identifier the identifier
+     * @return the quoted identifier
+     */
+    private static String quoteIdentifier(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Gets how much of the database file is free space, left behind by rows that have since been updated or deleted.<br>
+     * H2 reuses free space for new writes while the database is open, and gives it back by shrinking the file when the
+     * database closes (for up to the compact time set in the config).
+     *
+     * @return the free space in bytes
+     * @throws IllegalStateException if the database is not ready
+     * @throws RuntimeException      if the connection fails
+     */
+    public long getFreeSpace() {
+        if (!isReady()) {
+            throw new IllegalStateException("Database is not ready!");
+        }
+
+        long file_size = 0;
+        int fill_rate = 100;
+
+        try (Connection conn = this.pool.openConnection();
+             Statement statement = conn.createStatement();
+             ResultSet result = statement.executeQuery("SELECT SETTING_NAME, SETTING_VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE SETTING_NAME IN ('info.FILE_SIZE', 'info.FILL_RATE')")) {
+            while (result.next()) {
+                if (result.getString(1).equals("info.FILE_SIZE")) {
+                    file_size = Long.parseLong(result.getString(2));
+                } else {
+                    fill_rate = Integer.parseInt(result.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        // the fill rate is the percentage of the file in use
+        return file_size * (100 - fill_rate) / 100;
+    }
+
+
+    /**
+     * Adds the given impression and conversion counts to the stored MOTD stats in a single batch.
+     *
+     * @param deltas the impressions (index 0) and conversions (index 1) to add, keyed by parsed MOTD
+     * @throws SQLException             if an error occurs while updating the stats
+     * @throws IllegalArgumentException if the deltas are null
+     * @throws IllegalStateException    if the database is not ready
+     * @throws RuntimeException         if the connection fails
+     */
+    public void addMOTDStats(@NotNull Map<String, long[]> deltas) throws SQLException {
+        if (deltas == null) {
+            throw new IllegalArgumentException("Deltas cannot be null!");
+        }
+
+        if (!isReady()) {
+            throw new IllegalStateException("Database is not ready!");
+        }
+
+        // adding is not safe to repeat, as part of a failed batch may have been applied
+        this.pool.executeOnce(handle -> {
+            PreparedStatement statement = handle.prepare("INSERT INTO MOTD_STATS (motd, impressions, conversions) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE impressions = impressions + ?, conversions = conversions + ?");
+
+            try {
+                for (Map.Entry<String, long[]> entry : deltas.entrySet()) {
+                    statement.setString(1, entry.getKey());
+                    statement.setLong(2, entry.getValue()[0]);
+                    statement.setLong(3, entry.getValue()[1]);
+                    statement.setLong(4, entry.getValue()[0]);
+                    statement.setLong(5, entry.getValue()[1]);
+                    statement.addBatch();
+                }
+
+                return statement.executeBatch();
+            } finally {
+                // the statement is kept, so don't leave a failed batch behind for the next flush
+                statement.clearBatch();
+            }
+        });
+    }
+
+    /**
+     * Returns the stored impression and conversion counts of the given MOTDs, e.g. a page of them.
+     *
+     * @param motds the parsed MOTDs
+     * @return the impressions (index 0) and conversions (index 1), keyed by parsed MOTD, leaving out MOTDs with no
+     * stored counts
+     * @throws IllegalArgumentException if the MOTDs are null
+     * @throws IllegalStateException    if the database is not ready
+     * @throws RuntimeException         if the connection fails
+     */
+    public @NotNull Map<String, long[]> getMOTDStats(@NotNull Collection<String> motds) {
+        if (motds == null) {
+            throw new IllegalArgumentException("MOTDs cannot be null!");
+        }
+
+        if (!isReady()) {
+            throw new IllegalStateException("Database is not ready!");
+        }
+
+        try {
+            return this.pool.execute(handle -> {
+                PreparedStatement statement = handle.prepare("SELECT impressions, conversions FROM MOTD_STATS WHERE motd = ?");
+                Map<String, long[]> stats = new HashMap<>();
+
+                for (String motd : motds) {
+                    statement.setString(1, motd);
+
+                    try (ResultSet result = statement.executeQuery()) {
+                        if (result.next()) {
+                            stats.put(motd, new long[]{result.getLong("impressions"), result.getLong("conversions")});
+                        }
+                    }
+                }
+
+                return stats;
+            });
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,223 @@
+package codes.ollieg.magicmotd;
+
+import codes.ollieg.magicmotd.handlers.PingHandler;
+import codes.ollieg.magicmotd.handlers.PostLoginHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A bounded cache of the MOTDs of recently logged in players, rendered ahead of time for their IP.<br>
+ * Names only change when a player logs in, so the {@link PostLoginHandler} has the {@link PingHandler} render every
+ * MOTD that uses the player's name there and then, in the background. Pings from that IP then skip the name lookup,
+ * and only patch in the live player counts. The entries are kept in a {@link StripedLRUCache}, so pings on different
+ * threads rarely wait on each other, and the least recently pinged IPs are evicted once the cache is full.
+ */
+public class PreRenderCache {
+    private final MagicMOTD plugin;
+
+    /**
+     * The MOTDs rendered ahead of time for a single IP.
+     */
+    public static final class Entry {
+        private final long config_generation;
+        private final String name;
+        private final String[] motds;
+
+        /**
+         * Constructs a new {@link Entry}.<br>
+         * Only the generation of the config is kept, so entries never keep an old config alive after a reload.
+         *
+         * @param config the parsed config the MOTDs were rendered from
+         * @param name   the player's name
+         * @param motds  the rendered MOTDs by index, with null for MOTDs that weren't rendered ahead of time
+         * @throws IllegalArgumentException if any argument is null
+         */
+        public Entry(@NotNull ConfigLoader.ParsedConfig config, @NotNull String name, @NotNull String[] motds) {
+            if (config == null) {
+                throw new IllegalArgumentException("Config cannot be null!");
+            }
+
+            if (name == null) {
+                throw new IllegalArgumentException("Name cannot be null!");
+            }
+
+            if (motds == null) {
+                throw new IllegalArgumentException("MOTDs cannot be null!");
+            }
+
+            this.config_generation = config.getGeneration();
+            this.name = name;
+            this.motds = motds;
+        }
+
+        /**
+         * Checks whether the MOTDs were rendered from the given parsed config. After a reload, only the name can be used.
+         *
+         * @param config the parsed config
+         * @return true if rendered from the config, false otherwise
+         */
+        public boolean isFrom(@NotNull ConfigLoader.ParsedConfig config) {
+            return config.getGeneration() == this.config_generation;
+        }
+
+        @NotNull
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets the MOTD at the index, as rendered ahead of time.
+         *
+         * @param index the index of the MOTD
+         * @return the rendered MOTD, or null if it wasn't rendered ahead of time
+         */
+        @Nullable
+        public String getMOTD(int index) {
+            return index >= 0 && index < this.motds.length ? this.motds[index] : null;
+        }
+    }
+
+    // replaced (never resized) when the configured size changes, or null if disabled
+    private volatile StripedLRUCache<String, Entry> entries;
+    private int max_entries = 0;
+
+
+    /**
+     * Constructs a new {@link PreRenderCache}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public PreRenderCache(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Resizes the cache to match the config, emptying it if the size changed.
+     */
+    public synchronized void applyConfig() {
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+        int max_entries = config_loader.isParsed() ? config_loader.getParsedConfig().getPreRenderCacheSize() : 0;
+
+        if (max_entries == this.max_entries) {
+            return;
+        }
+
+        this.max_entries = max_entries;
+
+        if (max_entries == 0) {
+            this.entries = null;
+            return;
+        }
+
+        this.entries = new StripedLRUCache<>(max_entries);
+    }
+
+    /**
+     * Returns whether the cache is enabled in the config.
+     *
+     * @return true if enabled, false otherwise
+     */
+    public boolean isEnabled() {
+        return this.entries != null;
+    }
+
+
+    /**
+     * Gets the MOTDs rendered for the IP.
+     *
+     * @param ip the IP, as it is stored in the database
+     * @return the entry, or null if there isn't one
+     * @throws IllegalArgumentException if the IP is null
+     */
+    @Nullable
+    public Entry get(@NotNull String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
+        }
+
+        StripedLRUCache<String, Entry> entries = this.entries;
+        return entries == null ? null : entries.get(ip);
+    }
+
+    /**
+     * Stores the MOTDs rendered for the IP, replacing any already stored. Does nothing if the cache is disabled.
+     *
+     * @param ip    the IP, as it is stored in the database
+     * @param entry the entry
+     * @throws IllegalArgumentException if the IP or entry is null
+     */
+    public void put(@NotNull String ip, @NotNull Entry entry) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
+        }
+
+        if (entry == null) {
+            throw new IllegalArgumentException("Entry cannot be null!");
+        }
+
+        StripedLRUCache<String, Entry> entries = this.entries;
+
+        if (entries != null) {
+            entries.put(ip, entry);
+        }
+    }
+
+    /**
+     * Removes the MOTDs rendered for the IP, e.g. when its record is erased or changed outside of a login.
+     *
+     * @param ip the IP, as it is stored in the database
+     * @throws IllegalArgumentException if the IP is null
+     */
+    public void invalidate(@NotNull String ip) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
+        }
+
+        StripedLRUCache<String, Entry> entries = this.entries;
+
+        if (entries != null) {
+            entries.remove(ip);
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        StripedLRUCache<String, Entry> entries = this.entries;
+
+        if (entries != null) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Removes the MOTDs rendered for an IP whose record changed in the {@link PlayerDB}, as a change listener.<br>
+     * Logins render the new name's MOTDs again themselves, after the change.
+     *
+     * @param ip the IP, as it is stored in the database, or null to remove every entry
+     */
+    public void onRecordChanged(@Nullable String ip) {
+        if (ip == null) {
+            clear();
+        } else {
+            invalidate(ip);
+        }
+    }
+
+    /**
+     * Gets the number of IPs with rendered MOTDs.
+     *
+     * @return the number of IPs
+     */
+    public int size() {
+        StripedLRUCache<String, Entry> entries = this.entries;
+        return entries == null ? 0 : entries.size();
+    }
+}
@@ -0,0 +1,414 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A compressed binary radix trie of IPv4 and IPv6 prefixes (CIDR ranges) to integer values.<br>
+ * Lookups find the value of the longest matching prefix in O(address bits), without allocating.<br>
+ * The trie is built once (when the config is parsed) and is safe to read from many threads once published.
+ */
+public class PrefixTrie {
+    /**
+     * The value returned by lookups when no prefix matches.
+     */
+    public static final int NO_MATCH = -1;
+
+    /**
+     * A node in the trie.<br>
+     * Each node stores its full key (with bits past its length zeroed), so chains of single-child nodes are skipped.
+     */
+    private static final class Node {
+        private final byte[] key;
+        private final int length;
+        private Node zero;
+        private Node one;
+        private int value = NO_MATCH;
+
+        private Node(byte[] key, int length) {
+            this.key = key;
+            this.length = length;
+        }
+    }
+
+    private Node root_v4;
+    private Node root_v6;
+    private int size = 0;
+
+
+    /**
+     * Gets the number of prefixes in the trie.
+     *
+     * @return the number of prefixes
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Inserts a prefix, replacing the value of an identical prefix if it already exists.
+     *
+     * @param address       the address bytes (4 for IPv4, 16 for IPv6)
+     * @param prefix_length the number of leading bits that make up the prefix
+     * @param value         the value, which must not be negative
+     * @throws IllegalArgumentException if the address is null or the wrong length, or the prefix length or value is out of range
+     */
+    public void insert(@NotNull byte[] address, int prefix_length, int value) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address cannot be null!");
+        }
+
+        if (address.length != 4 && address.length != 16) {
+            throw new IllegalArgumentException("Address must be 4 or 16 bytes long!");
+        }
+
+        if (prefix_length < 0 || prefix_length > address.length * 8) {
+            throw new IllegalArgumentException("Prefix length must be between 0 and " + (address.length * 8) + "!");
+        }
+
+        if (value < 0) {
+            throw new IllegalArgumentException("Value cannot be negative!");
+        }
+
+        byte[] key = mask(address, prefix_length);
+        Node root = address.length == 4 ? this.root_v4 : this.root_v6;
+
+        Node inserted = insert(root, key, prefix_length, value);
+
+        if (address.length == 4) {
+            this.root_v4 = inserted;
+        } else {
+            this.root_v6 = inserted;
+        }
+    }
+
+    /**
+     * Inserts a key into the subtree at the given node.
+     *
+     * @param node   the root of the subtree, or null if empty
+     * @param key    the masked key
+     * @param length the key length in bits
+     * @param value  the value
+     * @return the new root of the subtree
+     */
+    private Node insert(Node node, byte[] key, int length, int value) {
+        if (node == null) {
+            Node leaf = new Node(key, length);
+            leaf.value = value;
+            this.size++;
+            return leaf;
+        }
+
+        int common = commonPrefixLength(node.key, key, Math.min(node.length, length));
+
+        // the keys diverge before the end of this node, so split it
+        if (common < node.length) {
+            Node split = new Node(mask(key, common), common);
+            setChild(split, node, bit(node.key, common));
+
+            if (common == length) {
+                split.value = value;
+                this.size++;
+            } else {
+                Node leaf = new Node(key, length);
+                leaf.value = value;
+                setChild(split, leaf, bit(key, common));
+                this.size++;
+            }
+
+            return split;
+        }
+
+        // this node is the key
+        if (length == node.length) {
+            if (node.value == NO_MATCH) {
+                this.size++;
+            }
+
+            node.value = value;
+            return node;
+        }
+
+        // this node is a prefix of the key, so continue down
+        int direction = bit(key, node.length);
+        setChild(node, insert(direction == 0 ? node.zero : node.one, key, length, value), direction);
+
+        return node;
+    }
+
+    /**
+     * Finds the value of the longest prefix containing the address.
+     *
+     * @param address the address bytes (4 for IPv4, 16 for IPv6)
+     * @return the value, or {@link #NO_MATCH} if no prefix contains the address
+     */
+    public int lookup(@NotNull byte[] address) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address cannot be null!");
+        }
+
+        Node node = address.length == 4 ? this.root_v4 : this.root_v6;
+        int bits = address.length * 8;
+        int checked = 0;
+        int best = NO_MATCH;
+
+        while (node != null) {
+            // only the bits skipped since the last node need to be compared
+            if (node.length > bits || !bitsMatch(node.key, address, checked, node.length)) {
+                break;
+            }
+
+            if (node.value != NO_MATCH) {
+                best = node.value;
+            }
+
+            if (node.length == bits) {
+                break;
+            }
+
+            checked = node.length;
+            node = bit(address, node.length) == 0 ? node.zero : node.one;
+        }
+
+        return best;
+    }
+
+    /**
+     * Finds the value of the longest prefix containing the address.
+     *
+     * @param address the address
+     * @return the value, or {@link #NO_MATCH} if no prefix contains the address
+     */
+    public int lookup(@NotNull InetAddress address) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address cannot be null!");
+        }
+
+        // skip the copy of the address bytes when there is nothing to find
+        if ((address instanceof Inet4Address ? this.root_v4 : this.root_v6) == null) {
+            return NO_MATCH;
+        }
+
+        return lookup(address.getAddress());
+    }
+
+
+    /**
+     * Parses a CIDR range (e.g. 10.0.0.0/8 or 2001:db8::/32) into its address and prefix length.<br>
+     * A bare address is treated as a single-address range. Hostnames are rejected, so this never does a DNS lookup.
+     *
+     * @param cidr the CIDR range
+     * @param out  the array to put the prefix length into (at index 0)
+     * @return the address bytes
+     * @throws IllegalArgumentException if the range is invalid
+     */
+    @NotNull
+    public static byte[] parseCIDR(@NotNull String cidr, @NotNull int[] out) {
+        if (cidr == null) {
+            throw new IllegalArgumentException("CIDR cannot be null!");
+        }
+
+        if (out == null || out.length < 1) {
+            throw new IllegalArgumentException("Out array must have room for the prefix length!");
+        }
+
+        String[] parts = cidr.trim().split("/", 2);
+        String literal = parts[0];
+
+        byte[] address = parseAddress(literal);
+
+        if (address == null) {
+            throw new IllegalArgumentException("Invalid IP address \"" + literal + "\"!");
+        }
+
+        int prefix_length = address.length * 8;
+
+        if (parts.length == 2) {
+            try {
+                prefix_length = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid prefix length in \"" + cidr + "\"!");
+            }
+
+            if (prefix_length < 0 || prefix_length > address.length * 8) {
+                throw new IllegalArgumentException("Prefix length out of range in \"" + cidr + "\"!");
+            }
+        }
+
+        out[0] = prefix_length;
+        return address;
+    }
+
+    /**
+     * Parses a literal IPv4 or IPv6 address. Hostnames are rejected, so this never does a DNS lookup.
+     *
+     * @param literal the address
+     * @return the 4 or 16 bytes of the address, or null if it isn't a valid IP address
+     */
+    @Nullable
+    static byte[] parseAddress(@NotNull String literal) {
+        if (literal.indexOf(':') == -1) {
+            return parseIPv4(literal);
+        }
+
+        // a bracketed address is always parsed as an IPv6 literal, never looked up
+        try {
+            return InetAddress.getByName(literal.startsWith("[") ? literal : "[" + literal + "]").getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a dotted decimal IPv4 address.
+     *
+     * @param literal the address
+     * @return the 4 bytes of the address, or null if it isn't a valid IPv4 address
+     */
+    private static byte[] parseIPv4(String literal) {
+        byte[] key = new byte[4];
+        int octet = 0;
+        int value = -1;
+
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+
+            if (c == '.') {
+                if (value == -1 || octet == 3) {
+                    return null;
+                }
+
+                key[octet++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value == -1 ? 0 : value * 10) + (c - '0');
+
+                if (value > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        if (value == -1 || octet != 3) {
+            return null;
+        }
+
+        key[3] = (byte) value;
+        return key;
+    }
+
+
+    /**
+     * Sets the child of the parent in the given direction.
+     *
+     * @param parent    the parent
+     * @param child     the child
+     * @param direction 0 or 1
+     */
+    private static void setChild(Node parent, Node child, int direction) {
+        if (direction == 0) {
+            parent.zero = child;
+        } else {
+            parent.one = child;
+        }
+    }
+
+    /**
+     * Gets the bit at the index, counting from the most significant bit of the first byte.
+     *
+     * @param bytes the bytes
+     * @param index the bit index
+     * @return 0 or 1
+     */
+    private static int bit(byte[] bytes, int index) {
+        return (bytes[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    /**
+     * Copies the bytes, zeroing all bits past the length.
+     *
+     * @param bytes  the bytes
+     * @param length the number of bits to keep
+     * @return the masked copy
+     */
+    private static byte[] mask(byte[] bytes, int length) {
+        byte[] masked = new byte[bytes.length];
+
+        for (int i = 0; i < bytes.length; i++) {
+            int remaining = length - i * 8;
+
+            if (remaining >= 8) {
+                masked[i] = bytes[i];
+            } else if (remaining > 0) {
+                masked[i] = (byte) (bytes[i] & (0xFF << (8 - remaining)));
+            }
+        }
+
+        return masked;
+    }
+
+    /**
+     * Counts how many leading bits the two keys share, up to the limit.
+     *
+     * @param a     the first key
+     * @param b     the second key
+     * @param limit the maximum number of bits to compare
+     * @return the number of shared leading bits
+     */
+    private static int commonPrefixLength(byte[] a, byte[] b, int limit) {
+        int common = 0;
+
+        while (common < limit) {
+            int diff = (a[common >>> 3] ^ b[common >>> 3]) & 0xFF;
+
+            // compare a whole byte at a time where possible
+            if ((common & 7) == 0 && diff == 0 && common + 8 <= limit) {
+                common += 8;
+                continue;
+            }
+
+            if (bit(a, common) != bit(b, common)) {
+                break;
+            }
+
+            common++;
+        }
+
+        return common;
+    }
+
+    /**
+     * Checks whether the bits between from (inclusive) and to (exclusive) are the same in both arrays.
+     *
+     * @param key     the node key
+     * @param address the address
+     * @param from    the first bit to compare
+     * @param to      the bit to stop at
+     * @return true if they match, false otherwise
+     */
+    private static boolean bitsMatch(byte[] key, byte[] address, int from, int to) {
+        for (int i = from; i < to; i++) {
+            // compare a whole byte at a time where possible
+            if ((i & 7) == 0 && i + 8 <= to) {
+                if (key[i >>> 3] != address[i >>> 3]) {
+                    return false;
+                }
+
+                i += 7;
+                continue;
+            }
+
+            if (bit(key, i) != bit(address, i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
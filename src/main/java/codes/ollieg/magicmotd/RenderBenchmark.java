@@ -0,0 +1,339 @@
+package codes.ollieg.magicmotd;
+
+import codes.ollieg.magicmotd.handlers.PingHandler;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how expensive each MOTD is to render, by rendering it many times through the same path the
+ * {@link PingHandler} uses for real pings, and how long {@link PlayerDB} name lookups take.<br>
+ * Also compares the virtual and platform thread {@link AsyncExecutors executors} under a burst of concurrent lookups.
+ * Used to find slow MOTDs (long gradients, many centered lines, big templates) on the proxy they will run on.
+ */
+public class RenderBenchmark {
+    // a share of the iterations run first without being measured, so the JIT has compiled the render path
+    private static final int WARMUP_DIVISOR = 10;
+
+    // the number of concurrent lookups to run through each executor
+    private static final int EXECUTOR_TASKS = 10000;
+
+    // in TEST-NET-1, which is never routed, so they never belong to real players
+    private static final String BENCH_IP = "192.0.2.1";
+    private static final String MISSING_IP = "192.0.2.2";
+    private static final String RENDER_IP = "192.0.2.3";
+    private static final String BENCH_NAME = "MOTDBench";
+
+    // written with each render's result, so the JIT can't skip the work
+    private static volatile int sink;
+
+    private final MagicMOTD plugin;
+
+    /**
+     * The measured cost of rendering a single MOTD.
+     */
+    public static final class MOTDResult {
+        private final int index;
+        private final String motd;
+        private final long nanos_per_op;
+        private final long bytes_per_op;
+
+        private MOTDResult(int index, String motd, long nanos_per_op, long bytes_per_op) {
+            this.index = index;
+            this.motd = motd;
+            this.nanos_per_op = nanos_per_op;
+            this.bytes_per_op = bytes_per_op;
+        }
+
+        public int getIndex() {
+            return this.index;
+        }
+
+        public String getMOTD() {
+            return this.motd;
+        }
+
+        public long getNanosPerOp() {
+            return this.nanos_per_op;
+        }
+
+        /**
+         * Gets the bytes allocated per render.
+         *
+         * @return the bytes, or -1 if the JVM can't measure allocations
+         */
+        public long getBytesPerOp() {
+            return this.bytes_per_op;
+        }
+    }
+
+    /**
+     * The outcome of a benchmark.
+     */
+    public static final class Result {
+        private final List<MOTDResult> motds = new ArrayList<>();
+        private long lookup_hit_nanos = -1;
+        private long lookup_miss_nanos = -1;
+        private long platform_executor_ms = -1;
+        private long virtual_executor_ms = -1;
+        private int platform_threads;
+
+        /**
+         * Gets the results for each MOTD, slowest first.
+         *
+         * @return the results
+         */
+        @NotNull
+        public List<MOTDResult> getMOTDs() {
+            return Collections.unmodifiableList(this.motds);
+        }
+
+        /**
+         * Gets the average time taken to look up an IP that is in the database.
+         *
+         * @return the time in nanoseconds, or -1 if lookups were skipped
+         */
+        public long getLookupHitNanos() {
+            return this.lookup_hit_nanos;
+        }
+
+        /**
+         * Gets the average time taken to look up an IP that isn't in the database.
+         *
+         * @return the time in nanoseconds, or -1 if lookups were skipped
+         */
+        public long getLookupMissNanos() {
+            return this.lookup_miss_nanos;
+        }
+
+        /**
+         * Gets how long the platform thread executor took to run the concurrent lookups.
+         *
+         * @return the time in milliseconds, or -1 if lookups were skipped
+         */
+        public long getPlatformExecutorMs() {
+            return this.platform_executor_ms;
+        }
+
+        /**
+         * Gets how long the virtual thread executor took to run the concurrent lookups.
+         *
+         * @return the time in milliseconds, or -1 if lookups were skipped or virtual threads aren't supported
+         */
+        public long getVirtualExecutorMs() {
+            return this.virtual_executor_ms;
+        }
+
+        public int getPlatformThreads() {
+            return this.platform_threads;
+        }
+
+        public int getExecutorTasks() {
+            return EXECUTOR_TASKS;
+        }
+    }
+
+
+    /**
+     * Constructs a new {@link RenderBenchmark}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public RenderBenchmark(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Runs the benchmark, blocking until it finishes. Must not be called on the main thread.<br>
+     * Lookups are only measured if the database is ready and the circuit breaker is closed, and the benchmark's
+     * own record is erased from the database afterwards.
+     *
+     * @param iterations how many times to render each MOTD, and to look up each IP
+     * @return the result
+     * @throws IllegalArgumentException if the iterations are not positive
+     * @throws IllegalStateException    if the config has not been parsed yet
+     */
+    @NotNull
+    public Result run(int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iterations must be positive!");
+        }
+
+        // use the same parsed config throughout, like a ping does
+        ConfigLoader.ParsedConfig config = this.plugin.getConfigLoader().getParsedConfig();
+        PingHandler ping_handler = this.plugin.getPingHandler();
+        Result result = new Result();
+
+        List<String> motds = config.getMOTDs();
+
+        for (int i = 0; i < motds.size(); i++) {
+            result.motds.add(benchmarkMOTD(config, ping_handler, i, iterations));
+        }
+
+        result.motds.sort((a, b) -> Long.compare(b.nanos_per_op, a.nanos_per_op));
+
+        PlayerDB player_db = this.plugin.getPlayerDB();
+
+        // don't add load to a database that is already struggling
+        if (player_db.isReady() && this.plugin.getDBCircuitBreaker().getState() == DBCircuitBreaker.State.CLOSED) {
+            try {
+                benchmarkLookups(player_db, iterations, config.getAsyncThreads(), result);
+            } finally {
+                player_db.eraseIP(BENCH_IP);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Renders a single MOTD many times, measuring the time and memory allocated per render.
+     *
+     * @param config       the parsed config
+     * @param ping_handler the ping handler
+     * @param index        the index of the MOTD
+     * @param iterations   how many times to render it
+     * @return the result
+     */
+    private static MOTDResult benchmarkMOTD(ConfigLoader.ParsedConfig config, PingHandler ping_handler, int index, int iterations) {
+        // the render IP is never stored, so rendering doesn't touch the database (which is measured separately)
+        for (int i = 0; i < Math.max(1, iterations / WARMUP_DIVISOR); i++) {
+            PingHandler.buildDescription(ping_handler.renderMOTD(config, index, RENDER_IP, 1, 100, null));
+        }
+
+        long bytes_before = getAllocatedBytes();
+        long start = System.nanoTime();
+
+        int extra = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            // an empty MOTD has no extra components
+            if (PingHandler.buildDescription(ping_handler.renderMOTD(config, index, RENDER_IP, 1, 100, null)).getExtra() != null) {
+                extra++;
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long bytes_after = getAllocatedBytes();
+        sink = extra;
+
+        long bytes_per_op = bytes_before < 0 || bytes_after < 0 ? -1 : (bytes_after - bytes_before) / iterations;
+        return new MOTDResult(index, config.getMOTDs().get(index), elapsed / iterations, bytes_per_op);
+    }
+
+    /**
+     * Measures name lookups for an IP that is in the database and one that isn't, then compares the executors by
+     * running a burst of concurrent lookups through each.
+     *
+     * @param player_db        the database
+     * @param iterations       how many times to look up each IP
+     * @param platform_threads the number of threads in the platform executor
+     * @param result           the result to record the timings in
+     */
+    private void benchmarkLookups(PlayerDB player_db, int iterations, int platform_threads, Result result) {
+        try {
+            player_db.setNameForIP(BENCH_IP, BENCH_NAME);
+        } catch (SQLException e) {
+            this.plugin.getLogger().warning("Could not write the benchmark record: " + e.getMessage());
+            return;
+        }
+
+        result.lookup_hit_nanos = timeLookups(player_db, BENCH_IP, iterations);
+        result.lookup_miss_nanos = timeLookups(player_db, MISSING_IP, iterations);
+
+        result.platform_threads = platform_threads;
+        result.platform_executor_ms = timeExecutor(AsyncExecutors.newPlatformExecutor("MagicMOTD-bench", platform_threads, new ThreadPoolExecutor.CallerRunsPolicy()), player_db);
+
+        ExecutorService virtual = VirtualThreads.newExecutor("MagicMOTD-bench");
+
+        if (virtual != null) {
+            result.virtual_executor_ms = timeExecutor(virtual, player_db);
+        }
+    }
+
+    /**
+     * Looks up an IP many times.
+     *
+     * @param player_db  the database
+     * @param ip         the IP
+     * @param iterations how many times to look it up
+     * @return the average time per lookup in nanoseconds
+     */
+    private static long timeLookups(PlayerDB player_db, String ip, int iterations) {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+            player_db.getNameForIP(ip);
+        }
+
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * Runs a burst of concurrent lookups through an executor, then shuts it down.
+     *
+     * @param executor  the executor
+     * @param player_db the database
+     * @return the time taken for every lookup to finish, in milliseconds
+     */
+    private long timeExecutor(ExecutorService executor, PlayerDB player_db) {
+        CountDownLatch done = new CountDownLatch(EXECUTOR_TASKS);
+        long start = System.nanoTime();
+
+        try {
+            for (int i = 0; i < EXECUTOR_TASKS; i++) {
+                executor.execute(() -> {
+                    try {
+                        player_db.getNameForIP(BENCH_IP);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Gets the bytes allocated by the current thread so far.
+     *
+     * @return the bytes, or -1 if the JVM can't measure allocations
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean hotspot_bean = (com.sun.management.ThreadMXBean) bean;
+
+        if (!hotspot_bean.isThreadAllocatedMemorySupported() || !hotspot_bean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+
+        return hotspot_bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,358 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the {@link PlayerDB database} schema up to date, by running each {@link Migration} newer than the database's
+ * schema version in order.<br>
+ * Schema changes run when the database is opened. Migrations that have to move data then copy it in small batches in
+ * the background, recording how far they got after each batch in the same transaction, so the proxy stays online
+ * while they run and a restart carries on where the last run stopped.
+ */
+public class SchemaMigrator {
+    // the rows copied per batch, and the pause between batches so lookups and writes get a turn
+    private static final int BATCH_SIZE = 500;
+    private static final long BATCH_PAUSE_MS = 50;
+
+    // failed batches are retried after a pause that doubles with each failure in a row, up to this long
+    private static final long MAX_RETRY_PAUSE_MS = 60000;
+
+    /**
+     * A single change to the database schema.
+     */
+    public interface Migration {
+        /**
+         * Gets the schema version the migration moves the database to. Versions start at 1 and go up by 1.
+         *
+         * @return the version
+         */
+        int getVersion();
+
+        /**
+         * Gets a short description of the migration, for the log.
+         *
+         * @return the description
+         */
+        @NotNull
+        String getDescription();
+
+        /**
+         * Makes the schema changes. Must be safe to run again if the proxy stopped part way through,
+         * as most schema changes commit straight away.
+         *
+         * @param conn the connection
+         * @throws SQLException if the changes fail
+         */
+        void prepare(@NotNull Connection conn) throws SQLException;
+
+        /**
+         * Gets whether the migration copies data after its schema changes.
+         *
+         * @return true if it copies data, false otherwise
+         */
+        default boolean copiesData() {
+            return false;
+        }
+
+        /**
+         * Copies the next batch of data. Must be safe to run again for a batch that didn't commit.
+         *
+         * @param conn       the connection, in the transaction the cursor is saved in
+         * @param cursor     where the last batch stopped, or an empty string for the first batch
+         * @param batch_size the most rows to copy
+         * @return where this batch stopped, or null if there was nothing left to copy
+         * @throws SQLException if the copy fails
+         */
+        @Nullable
+        default String copyBatch(@NotNull Connection conn, @NotNull String cursor, int batch_size) throws SQLException {
+            return null;
+        }
+
+        /**
+         * Cleans up once all the data has been copied (e.g. dropping the old tables).
+         *
+         * @param conn the connection
+         * @throws SQLException if the clean up fails
+         */
+        default void finish(@NotNull Connection conn) throws SQLException {
+        }
+    }
+
+    private final MagicMOTD plugin;
+    private final List<Migration> migrations = new ArrayList<>();
+
+    private volatile int version = 0;
+
+    // the version whose data is being copied, or 0 if none
+    private volatile int migrating_version = 0;
+    private String cursor;
+
+    private volatile boolean running = false;
+
+
+    /**
+     * Constructs a new {@link SchemaMigrator}.
+     *
+     * @param plugin     the plugin
+     * @param migrations the migrations, in version order starting from 1
+     * @throws IllegalArgumentException if the plugin or migrations are null, or the versions aren't in order
+     */
+    public SchemaMigrator(@NotNull MagicMOTD plugin, @NotNull List<Migration> migrations) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        if (migrations == null) {
+            throw new IllegalArgumentException("Migrations cannot be null!");
+        }
+
+        for (int i = 0; i < migrations.size(); i++) {
+            if (migrations.get(i).getVersion() != i + 1) {
+                throw new IllegalArgumentException("Migration versions must start at 1 and go up by 1!");
+            }
+        }
+
+        this.plugin = plugin;
+        this.migrations.addAll(migrations);
+    }
+
+
+    /**
+     * Reads the schema version and makes the schema changes of every newer migration, stopping at the first one that
+     * copies data (later migrations run once it finishes).<br>
+     * Databases from before versions were recorded start at version 0, so the first migration must bring any of them
+     * up to date.
+     *
+     * @param conn the connection
+     * @throws SQLException if reading the version or a migration fails
+     */
+    public synchronized void migrate(@NotNull Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS SCHEMA_INFO (id INT PRIMARY KEY, version INT NOT NULL, migrating_version INT NOT NULL, migration_cursor VARCHAR)");
+
+            try (ResultSet result = statement.executeQuery("SELECT version, migrating_version, migration_cursor FROM SCHEMA_INFO WHERE id = 1")) {
+                if (result.next()) {
+                    this.version = result.getInt(1);
+                    this.migrating_version = result.getInt(2);
+                    this.cursor = result.getString(3);
+                } else {
+                    this.version = 0;
+                    this.migrating_version = 0;
+                    this.cursor = null;
+                    statement.execute("INSERT INTO SCHEMA_INFO (id, version, migrating_version) VALUES (1, 0, 0)");
+                }
+            }
+        }
+
+        if (this.version > this.migrations.size()) {
+            throw new SQLException("The database is from a newer version of MagicMOTD (schema version " + this.version + ")!");
+        }
+
+        prepareNext(conn);
+    }
+
+    /**
+     * Makes the schema changes of every migration newer than the current version, stopping at one that copies data.
+     *
+     * @param conn the connection
+     * @throws SQLException if a migration fails
+     */
+    private void prepareNext(Connection conn) throws SQLException {
+        while (this.migrating_version == 0 && this.version < this.migrations.size()) {
+            Migration migration = this.migrations.get(this.version);
+
+            this.plugin.getLogger().info("Migrating the database to schema version " + migration.getVersion() + ": " + migration.getDescription());
+            migration.prepare(conn);
+
+            int migrating_version = migration.copiesData() ? migration.getVersion() : 0;
+            saveState(conn, migration.getVersion(), migrating_version, migrating_version == 0 ? null : "");
+
+            this.version = migration.getVersion();
+            this.migrating_version = migrating_version;
+            this.cursor = migrating_version == 0 ? null : "";
+        }
+    }
+
+    /**
+     * Saves the schema version and migration progress.
+     *
+     * @param conn              the connection
+     * @param version           the schema version
+     * @param migrating_version the version whose data is being copied, or 0 if none
+     * @param cursor            where the copy got to, or null if not copying
+     * @throws SQLException if saving fails
+     */
+    private static void saveState(Connection conn, int version, int migrating_version, String cursor) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("UPDATE SCHEMA_INFO SET version = ?, migrating_version = ?, migration_cursor = ? WHERE id = 1")) {
+            statement.setInt(1, version);
+            statement.setInt(2, migrating_version);
+            statement.setString(3, cursor);
+            statement.executeUpdate();
+        }
+    }
+
+
+    /**
+     * Copies the next batch of data for the migration in progress, finishing it (and making the schema changes of any
+     * later migrations) once there is nothing left to copy.<br>
+     * Batches hold the migrator's lock, so callers can synchronize on the migrator to keep batches out while they
+     * change data that is being copied.
+     *
+     * @param connections supplies a connection to the database
+     * @return true if there is more to copy, false if no migration is in progress
+     * @throws SQLException if the batch fails, in which case it is rolled back and can be retried
+     */
+    public synchronized boolean runBatch(@NotNull ConnectionSupplier connections) throws SQLException {
+        if (this.migrating_version == 0) {
+            return false;
+        }
+
+        Migration migration = this.migrations.get(this.migrating_version - 1);
+
+        try (Connection conn = connections.get()) {
+            conn.setAutoCommit(false);
+
+            try {
+                String next = migration.copyBatch(conn, this.cursor, BATCH_SIZE);
+
+                if (next != null) {
+                    saveState(conn, this.version, this.migrating_version, next);
+                    conn.commit();
+                    this.cursor = next;
+                    return true;
+                }
+
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            migration.finish(conn);
+            saveState(conn, this.version, 0, null);
+
+            this.migrating_version = 0;
+            this.cursor = null;
+            this.plugin.getLogger().info("Finished migrating the database to schema version " + migration.getVersion() + ".");
+
+            prepareNext(conn);
+        }
+
+        return this.migrating_version != 0;
+    }
+
+    /**
+     * Runs batches in the background until every migration has finished or {@link #stop()} is called.<br>
+     * Failed batches are retried after a pause that doubles with each failure in a row (up to a minute), so a database
+     * that stays down isn't hammered, and the failures are logged through the {@link HotPathLogger} so they don't
+     * flood the log.
+     *
+     * @param connections supplies a connection to the database
+     */
+    public void start(@NotNull ConnectionSupplier connections) {
+        if (this.migrating_version == 0 || this.running) {
+            return;
+        }
+
+        this.running = true;
+
+        this.plugin.getProxy().getScheduler().runAsync(this.plugin, () -> {
+            int failures = 0;
+
+            while (this.running) {
+                long pause = BATCH_PAUSE_MS;
+
+                try {
+                    if (!runBatch(connections)) {
+                        break;
+                    }
+
+                    failures = 0;
+                } catch (SQLException | RuntimeException e) {
+                    failures++;
+                    pause = Math.min(MAX_RETRY_PAUSE_MS, BATCH_PAUSE_MS << Math.min(failures, 20));
+
+                    this.plugin.getHotPathLogger().warning("Database migration batch failed, it will be retried",
+                            String.format("%s (%d in a row, retrying in %dms)", e.getMessage(), failures, pause));
+                }
+
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            this.running = false;
+        });
+    }
+
+    /**
+     * Stops running batches, waiting for the current batch (if any) to finish. Progress is kept for the next start.
+     */
+    public void stop() {
+        this.running = false;
+
+        // batches hold the lock, so taking it waits for the batch in progress
+        synchronized (this) {
+            this.plugin.getLogger().fine("Stopped database migration batches.");
+        }
+    }
+
+
+    /**
+     * Gets the current schema version. While a migration is copying data, this is already its version.
+     *
+     * @return the version
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Gets the version of the migration that is copying data.
+     *
+     * @return the version, or 0 if no migration is copying data
+     */
+    public int getMigratingVersion() {
+        return this.migrating_version;
+    }
+
+    /**
+     * Gets the migrations, in version order.
+     *
+     * @return the migrations
+     */
+    @NotNull
+    public List<Migration> getMigrations() {
+        return Collections.unmodifiableList(this.migrations);
+    }
+
+    /**
+     * Supplies connections to the database.
+     */
+    @FunctionalInterface
+    public interface ConnectionSupplier {
+        /**
+         * Gets a connection, which the caller closes.
+         *
+         * @return the connection
+         * @throws SQLException if a connection can't be made
+         */
+        @NotNull
+        Connection get() throws SQLException;
+    }
+}
@@ -0,0 +1,171 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache that evicts the least recently used entries, split into stripes that each have their own lock.<br>
+ * Each key always maps to the same stripe, and each stripe is an access ordered map holding its share of the entries,
+ * so threads reading different keys (e.g. pings on different Netty threads) rarely wait on each other. Eviction is per
+ * stripe, so it is only an approximation of evicting the least recently used entry of the whole cache.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class StripedLRUCache<K, V> {
+    // the most stripes to split the cache into, must be a power of 2
+    private static final int MAX_STRIPES = 16;
+
+    private final List<Map<K, V>> stripes;
+    private final int max_entries;
+
+
+    /**
+     * Constructs a new, empty {@link StripedLRUCache}.
+     *
+     * @param max_entries the most entries to keep, rounded up to a whole number per stripe
+     * @throws IllegalArgumentException if the max entries isn't positive
+     */
+    public StripedLRUCache(int max_entries) {
+        if (max_entries <= 0) {
+            throw new IllegalArgumentException("Max entries must be positive!");
+        }
+
+        // small caches get fewer stripes, so each stripe still holds a few entries
+        int stripe_count = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, max_entries / 4)));
+        int stripe_entries = (max_entries + stripe_count - 1) / stripe_count;
+
+        this.stripes = new ArrayList<>(stripe_count);
+        this.max_entries = stripe_entries * stripe_count;
+
+        for (int i = 0; i < stripe_count; i++) {
+            // an access ordered map evicts the least recently used entry
+            this.stripes.add(new LinkedHashMap<K, V>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    return size() > stripe_entries;
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Gets the stripe that holds the key.
+     *
+     * @param key the key
+     * @return the stripe
+     */
+    private Map<K, V> stripe(Object key) {
+        // spread the high bits down, as sequential keys (e.g. indexes) only differ in the low bits
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+
+        return this.stripes.get(hash & (this.stripes.size() - 1));
+    }
+
+    /**
+     * Gets the value for the key, marking it as recently used.
+     *
+     * @param key the key
+     * @return the value, or null if it isn't cached
+     * @throws IllegalArgumentException if the key is null
+     */
+    @Nullable
+    public V get(@NotNull K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+
+        Map<K, V> stripe = stripe(key);
+
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    /**
+     * Stores the value for the key, replacing any already stored and evicting the least recently used entry of the
+     * key's stripe if it is full.
+     *
+     * @param key   the key
+     * @param value the value
+     * @throws IllegalArgumentException if the key or value is null
+     */
+    public void put(@NotNull K key, @NotNull V value) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null!");
+        }
+
+        Map<K, V> stripe = stripe(key);
+
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+
+    /**
+     * Removes the value for the key.
+     *
+     * @param key the key
+     * @throws IllegalArgumentException if the key is null
+     */
+    public void remove(@NotNull K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+
+        Map<K, V> stripe = stripe(key);
+
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        for (Map<K, V> stripe : this.stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries. Stripes are counted one at a time, so this is only a snapshot while the cache is in use.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int size = 0;
+
+        for (Map<K, V> stripe : this.stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the most entries the cache keeps, which is the size it was constructed with rounded up to a whole number per
+     * stripe.
+     *
+     * @return the max entries
+     */
+    public int getMaxEntries() {
+        return this.max_entries;
+    }
+}
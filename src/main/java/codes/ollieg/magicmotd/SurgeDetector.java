@@ -0,0 +1,211 @@
+package codes.ollieg.magicmotd;
+
+import codes.ollieg.magicmotd.handlers.PingHandler;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Detects ping surges (e.g. a ping flood), so the {@link PingHandler} can fall back to a cheap static MOTD until they pass.<br>
+ * Pings are counted in a ring of 100ms slots without locks, and the rate over the last second is checked on a timer.
+ * Degraded mode starts once the rate reaches the surge threshold, and only ends once it has stayed below the (lower)
+ * exit threshold for a while, so a rate hovering around the threshold doesn't flip the mode back and forth.
+ */
+public class SurgeDetector {
+    // the rate is measured over SLOTS full slots, which make up one second
+    private static final long SLOT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int SLOTS = 10;
+
+    // each slot packs the slot number above the count, so a slot is claimed and counted in one compare and set
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private static final long CHECK_INTERVAL_MS = 250;
+
+    // how long the rate must stay below the exit threshold before leaving degraded mode
+    private static final long EXIT_DELAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final MagicMOTD plugin;
+
+    // slot numbers count from here, so they are never negative
+    private final long origin = System.nanoTime();
+    private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+    private volatile boolean degraded = false;
+    private volatile long last_rate = 0;
+    private volatile long last_entry_time = 0;
+    private volatile long entry_count = 0;
+
+    // when the rate was last at or above the exit threshold, only touched by the check timer
+    private long last_busy = 0;
+
+    private HashedWheelTimer.Job check_task;
+
+
+    /**
+     * Constructs a new {@link SurgeDetector}.
+     *
+     * @param plugin the plugin
+     * @throws IllegalArgumentException if the plugin is null
+     */
+    public SurgeDetector(@NotNull MagicMOTD plugin) {
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+    }
+
+
+    /**
+     * Counts a ping. Never blocks.
+     */
+    public void recordPing() {
+        long slot = (System.nanoTime() - this.origin) / SLOT_NANOS;
+        int i = (int) (slot % SLOTS);
+
+        while (true) {
+            long packed = this.slots.get(i);
+
+            // the first ping of a new slot resets the count left over from SLOTS slots ago
+            long next = packed >>> COUNT_BITS == slot
+                    ? packed + ((packed & COUNT_MASK) == COUNT_MASK ? 0 : 1)
+                    : slot << COUNT_BITS | 1;
+
+            if (this.slots.compareAndSet(i, packed, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Measures the ping rate over the last full second, not counting the slot in progress.
+     *
+     * @return the rate in pings per second
+     */
+    public long measureRate() {
+        long current = (System.nanoTime() - this.origin) / SLOT_NANOS;
+        long total = 0;
+
+        for (int i = 0; i < SLOTS; i++) {
+            long packed = this.slots.get(i);
+            long slot = packed >>> COUNT_BITS;
+
+            if (slot < current && slot >= current - SLOTS) {
+                total += packed & COUNT_MASK;
+            }
+        }
+
+        return total;
+    }
+
+
+    /**
+     * Measures the rate and enters or leaves degraded mode if needed. Called on a timer.
+     */
+    public void check() {
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+
+        if (!config_loader.isParsed()) {
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = config_loader.getParsedConfig();
+        long threshold = config.getSurgeThreshold();
+        long rate = measureRate();
+        long now = System.nanoTime();
+
+        this.last_rate = rate;
+
+        if (threshold == 0) {
+            if (this.degraded) {
+                this.degraded = false;
+                this.plugin.getLogger().info("Ping surge detection was disabled, so MOTDs are being rendered normally again.");
+            }
+
+            return;
+        }
+
+        if (rate >= config.getSurgeExitThreshold()) {
+            this.last_busy = now;
+        }
+
+        if (!this.degraded && rate >= threshold) {
+            this.degraded = true;
+            this.last_entry_time = System.currentTimeMillis();
+            this.entry_count++;
+            this.plugin.getLogger().warning("Ping surge detected (" + rate + " pings/s), serving the surge MOTD until it passes.");
+        } else if (this.degraded && now - this.last_busy >= EXIT_DELAY_NANOS) {
+            this.degraded = false;
+            this.plugin.getLogger().info("Ping surge has passed (" + rate + " pings/s), MOTDs are being rendered normally again.");
+        }
+    }
+
+    /**
+     * Starts or stops the check timer to match the config. Leaving the timer stopped when disabled means
+     * pings aren't counted either, as the {@link PingHandler} only counts them while enabled.
+     */
+    public synchronized void applyConfig() {
+        ConfigLoader config_loader = this.plugin.getConfigLoader();
+        boolean enabled = config_loader.isParsed() && config_loader.getParsedConfig().getSurgeThreshold() > 0;
+
+        if (enabled && this.check_task == null) {
+            this.check_task = this.plugin.getTimer().schedule("surge-check", this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } else if (!enabled && this.check_task != null) {
+            stop();
+        }
+    }
+
+    /**
+     * Stops the check timer and leaves degraded mode.
+     */
+    public synchronized void stop() {
+        if (this.check_task != null) {
+            this.check_task.cancel();
+            this.check_task = null;
+        }
+
+        if (this.degraded) {
+            this.degraded = false;
+            this.plugin.getLogger().info("Stopped ping surge detection, MOTDs are being rendered normally again.");
+        }
+    }
+
+
+    /**
+     * Returns whether a surge is in progress, so the static surge MOTD should be served.
+     *
+     * @return true if in degraded mode, false otherwise
+     */
+    public boolean isDegraded() {
+        return this.degraded;
+    }
+
+    /**
+     * Gets the ping rate measured by the last check.
+     *
+     * @return the rate in pings per second
+     */
+    public long getLastRate() {
+        return this.last_rate;
+    }
+
+    /**
+     * Gets when degraded mode was last entered.
+     *
+     * @return the time in milliseconds since the epoch, or 0 if never
+     */
+    public long getLastEntryTime() {
+        return this.last_entry_time;
+    }
+
+    /**
+     * Gets how many times degraded mode has been entered since the plugin was enabled.
+     *
+     * @return the number of times
+     */
+    public long getEntryCount() {
+        return this.entry_count;
+    }
+}
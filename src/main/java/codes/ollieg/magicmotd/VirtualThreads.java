@@ -0,0 +1,37 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads, which need Java 21.<br>
+ * This is the version used on older runtimes, where virtual threads aren't supported. The plugin is a multi-release JAR,
+ * so on Java 21+ the version in src/main/java21 is loaded instead.
+ */
+public final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+
+    /**
+     * Checks whether virtual threads are supported by the runtime.
+     *
+     * @return false, as this runtime is older than Java 21
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread.
+     *
+     * @param name the prefix of the thread names
+     * @return null, as this runtime is older than Java 21
+     */
+    @Nullable
+    public static ExecutorService newExecutor(@NotNull String name) {
+        return null;
+    }
+}
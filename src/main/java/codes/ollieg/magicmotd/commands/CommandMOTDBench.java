@@ -0,0 +1,149 @@
+package codes.ollieg.magicmotd.commands;
+
+import codes.ollieg.magicmotd.ConfigLoader;
+import codes.ollieg.magicmotd.MagicMOTD;
+import codes.ollieg.magicmotd.RenderBenchmark;
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.plugin.Command;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The /motdbench command.
+ */
+public class CommandMOTDBench extends Command {
+    private static final int DEFAULT_ITERATIONS = 1000;
+    private static final int MAX_ITERATIONS = 100000;
+
+    // the most MOTDs to show, slowest first, as catalogs can hold thousands
+    private static final int MAX_LINES = 10;
+
+    private final MagicMOTD plugin;
+    private final ConfigLoader config_loader;
+    private final RenderBenchmark benchmark;
+
+    // only one benchmark can run at a time, so they don't skew each other
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    public CommandMOTDBench(@NotNull MagicMOTD plugin) {
+        super("motdbench", "magicmotd.bench", "mbench");
+
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+        this.config_loader = plugin.getConfigLoader();
+        this.benchmark = new RenderBenchmark(plugin);
+    }
+
+    @Override
+    public void execute(@NotNull CommandSender sender, @NotNull String[] args) {
+        if (sender == null) {
+            throw new IllegalArgumentException("Sender cannot be null!");
+        }
+
+        if (args == null) {
+            throw new IllegalArgumentException("Args cannot be null!");
+        }
+
+
+        if (!this.config_loader.isParsed()) {
+            // we can't make this message customisable since the config hasn't been parsed yet
+            sender.sendMessage(new ComponentBuilder("The config has not been parsed yet! Please contact the proxy administrator.").color(ChatColor.RED).create());
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = this.config_loader.getParsedConfig();
+
+        if (!config.areDiagnosticCommandsEnabled()) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("diagnostics-disabled")).color(ChatColor.RED).create());
+            return;
+        }
+
+        if (args.length > 1) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("too-many-args")).color(ChatColor.RED).create());
+            sender.sendMessage(new ComponentBuilder("Usage: /motdbench [iterations]").color(ChatColor.RED).create());
+            return;
+        }
+
+        int iterations = DEFAULT_ITERATIONS;
+
+        if (args.length == 1) {
+            try {
+                iterations = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                iterations = -1;
+            }
+
+            if (iterations < 1 || iterations > MAX_ITERATIONS) {
+                sender.sendMessage(new ComponentBuilder(config.getMessage("bench.invalid-iterations")
+                        .replaceAll("(?i)%max%", String.valueOf(MAX_ITERATIONS))
+                ).color(ChatColor.RED).create());
+                return;
+            }
+        }
+
+        if (!this.running.compareAndSet(false, true)) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("bench.already-running")).color(ChatColor.RED).create());
+            return;
+        }
+
+        sender.sendMessage(new ComponentBuilder(config.getMessage("bench.running")
+                .replaceAll("(?i)%count%", String.valueOf(config.getMOTDs().size()))
+                .replaceAll("(?i)%iterations%", String.valueOf(iterations))
+        ).color(ChatColor.GREEN).create());
+
+        int final_iterations = iterations;
+
+        // rendering thousands of times blocks for a while, so run it off the main thread
+        this.plugin.getProxy().getScheduler().runAsync(this.plugin, () -> {
+            try {
+                RenderBenchmark.Result result = this.benchmark.run(final_iterations);
+                List<RenderBenchmark.MOTDResult> motds = result.getMOTDs();
+
+                sender.sendMessage(new ComponentBuilder(config.getMessage("bench.header")
+                        .replaceAll("(?i)%shown%", String.valueOf(Math.min(MAX_LINES, motds.size())))
+                ).color(ChatColor.GREEN).create());
+
+                for (int i = 0; i < Math.min(MAX_LINES, motds.size()); i++) {
+                    RenderBenchmark.MOTDResult motd = motds.get(i);
+
+                    sender.sendMessage(new ComponentBuilder(config.getMessage("bench.line")
+                            .replaceAll("(?i)%index%", String.valueOf(motd.getIndex() + 1))
+                            .replaceAll("(?i)%ns%", String.valueOf(motd.getNanosPerOp()))
+                            .replaceAll("(?i)%bytes%", motd.getBytesPerOp() < 0 ? "?" : String.valueOf(motd.getBytesPerOp()))
+                    ).color(ChatColor.GREEN).append(" ").append(TextComponent.fromLegacyText(motd.getMOTD().replace("\n", " "))).create());
+                }
+
+                if (result.getLookupHitNanos() < 0) {
+                    sender.sendMessage(new ComponentBuilder(config.getMessage("bench.lookup-skipped")).color(ChatColor.YELLOW).create());
+                    return;
+                }
+
+                sender.sendMessage(new ComponentBuilder(config.getMessage("bench.lookup")
+                        .replaceAll("(?i)%hit%", String.valueOf(result.getLookupHitNanos()))
+                        .replaceAll("(?i)%miss%", String.valueOf(result.getLookupMissNanos()))
+                ).color(ChatColor.GREEN).create());
+
+                String executors = config.getMessage(result.getVirtualExecutorMs() < 0 ? "bench.executors-platform" : "bench.executors")
+                        .replaceAll("(?i)%tasks%", String.valueOf(result.getExecutorTasks()))
+                        .replaceAll("(?i)%platform%", String.valueOf(result.getPlatformExecutorMs()))
+                        .replaceAll("(?i)%threads%", String.valueOf(result.getPlatformThreads()))
+                        .replaceAll("(?i)%virtual%", String.valueOf(result.getVirtualExecutorMs()));
+
+                sender.sendMessage(new ComponentBuilder(executors).color(ChatColor.GREEN).create());
+            } catch (RuntimeException e) {
+                this.plugin.getLogger().warning("MOTD benchmark failed: " + e.getMessage());
+                sender.sendMessage(new ComponentBuilder(config.getMessage("bench.fail")).color(ChatColor.RED).create());
+            } finally {
+                this.running.set(false);
+            }
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package codes.ollieg.magicmotd.commands;
+
+import codes.ollieg.magicmotd.ConfigLoader;
+import codes.ollieg.magicmotd.DBCircuitBreaker;
+import codes.ollieg.magicmotd.DBMaintenance;
+import codes.ollieg.magicmotd.HashedWheelTimer;
+import codes.ollieg.magicmotd.MagicMOTD;
+import codes.ollieg.magicmotd.SurgeDetector;
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.plugin.Command;
+import org.jetbrains.annotations.NotNull;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The /motdhealth command.
+ */
+public class CommandMOTDHealth extends Command {
+    private final ConfigLoader config_loader;
+    private final DBCircuitBreaker db_breaker;
+    private final DBMaintenance db_maintenance;
+    private final SurgeDetector surge_detector;
+    private final HashedWheelTimer timer;
+
+    public CommandMOTDHealth(@NotNull MagicMOTD plugin) {
+        super("motdhealth", "magicmotd.health", "mhealth");
+
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.config_loader = plugin.getConfigLoader();
+        this.db_breaker = plugin.getDBCircuitBreaker();
+        this.db_maintenance = plugin.getDBMaintenance();
+        this.surge_detector = plugin.getSurgeDetector();
+        this.timer = plugin.getTimer();
+    }
+
+    @Override
+    public void execute(@NotNull CommandSender sender, @NotNull String[] args) {
+        if (sender == null) {
+            throw new IllegalArgumentException("Sender cannot be null!");
+        }
+
+        if (args == null) {
+            throw new IllegalArgumentException("Args cannot be null!");
+        }
+
+
+        if (!this.config_loader.isParsed()) {
+            // we can't make this message customisable since the config hasn't been parsed yet
+            sender.sendMessage(new ComponentBuilder("The config has not been parsed yet! Please contact the proxy administrator.").color(ChatColor.RED).create());
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = this.config_loader.getParsedConfig();
+
+        if (args.length > 0) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("too-many-args")).color(ChatColor.RED).create());
+            sender.sendMessage(new ComponentBuilder("Usage: /motdhealth").color(ChatColor.RED).create());
+            return;
+        }
+
+        DBCircuitBreaker.State state = this.db_breaker.getState();
+        long last_trip = this.db_breaker.getLastTripTime();
+
+        sender.sendMessage(new ComponentBuilder(config.getMessage("health.breaker")
+                .replaceAll("(?i)%state%", state.name())
+                .replaceAll("(?i)%error_rate%", String.format("%.0f", this.db_breaker.getErrorRate() * 100))
+                .replaceAll("(?i)%latency%", String.format("%.1f", this.db_breaker.getAverageLatencyMs()))
+                .replaceAll("(?i)%trips%", String.valueOf(this.db_breaker.getTripCount()))
+                .replaceAll("(?i)%last_trip%", last_trip == 0 ? "never" : DateFormat.getDateTimeInstance().format(new Date(last_trip)))
+        ).color(state == DBCircuitBreaker.State.CLOSED ? ChatColor.GREEN : ChatColor.RED).create());
+
+        long last_run = this.db_maintenance.getLastRunTime();
+
+        if (last_run == 0) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("health.maintenance-never")).color(ChatColor.GREEN).create());
+        } else {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("health.maintenance")
+                    .replaceAll("(?i)%last_run%", DateFormat.getDateTimeInstance().format(new Date(last_run)))
+                    .replaceAll("(?i)%duration%", String.valueOf(this.db_maintenance.getLastDuration()))
+                    .replaceAll("(?i)%backup_size%", String.valueOf(this.db_maintenance.getLastBackupBytes() / 1024))
+                    .replaceAll("(?i)%free%", String.valueOf(this.db_maintenance.getLastFreeSpace() / 1024))
+            ).color(ChatColor.GREEN).create());
+        }
+
+        if (config.getSurgeThreshold() > 0) {
+            boolean degraded = this.surge_detector.isDegraded();
+            long last_entry = this.surge_detector.getLastEntryTime();
+
+            sender.sendMessage(new ComponentBuilder(config.getMessage("health.surge")
+                    .replaceAll("(?i)%state%", degraded ? "DEGRADED" : "NORMAL")
+                    .replaceAll("(?i)%rate%", String.valueOf(this.surge_detector.getLastRate()))
+                    .replaceAll("(?i)%threshold%", String.valueOf(config.getSurgeThreshold()))
+                    .replaceAll("(?i)%entries%", String.valueOf(this.surge_detector.getEntryCount()))
+                    .replaceAll("(?i)%last_entry%", last_entry == 0 ? "never" : DateFormat.getDateTimeInstance().format(new Date(last_entry)))
+            ).color(degraded ? ChatColor.RED : ChatColor.GREEN).create());
+        }
+
+        for (HashedWheelTimer.JobStats job : this.timer.getStats().values()) {
+            boolean healthy = job.getFailures() == 0 && job.getOverruns() == 0;
+
+            sender.sendMessage(new ComponentBuilder(config.getMessage("health.job")
+                    .replaceAll("(?i)%job%", job.getName())
+                    .replaceAll("(?i)%runs%", String.valueOf(job.getRuns()))
+                    .replaceAll("(?i)%average%", String.format("%.1f", job.getAverageRunNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1)))
+                    .replaceAll("(?i)%max%", String.format("%.1f", job.getMaxRunNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1)))
+                    .replaceAll("(?i)%overruns%", String.valueOf(job.getOverruns()))
+                    .replaceAll("(?i)%failures%", String.valueOf(job.getFailures()))
+            ).color(healthy ? ChatColor.GREEN : ChatColor.RED).create());
+        }
+    }
+}
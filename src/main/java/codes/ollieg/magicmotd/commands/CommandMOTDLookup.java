@@ -0,0 +1,173 @@
+package codes.ollieg.magicmotd.commands;
+
+import codes.ollieg.magicmotd.ConfigLoader;
+import codes.ollieg.magicmotd.MagicMOTD;
+import codes.ollieg.magicmotd.PlayerDB;
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.plugin.Command;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * The /motdlookup command.
+ */
+public class CommandMOTDLookup extends Command {
+    private static final int PAGE_SIZE = 10;
+    private static final String ERASE_PERMISSION = "magicmotd.lookup.erase";
+
+    private final MagicMOTD plugin;
+    private final ConfigLoader config_loader;
+    private final PlayerDB player_db;
+
+    public CommandMOTDLookup(@NotNull MagicMOTD plugin) {
+        super("motdlookup", "magicmotd.lookup", "mlookup");
+
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+        this.config_loader = plugin.getConfigLoader();
+        this.player_db = plugin.getPlayerDB();
+    }
+
+    /**
+     * Checks whether the query is an IP rather than a player name.<br>
+     * Player names can only contain letters, numbers and underscores, so anything with a dot or colon is an IP.
+     *
+     * @param query the query
+     * @return true if the query is an IP, false if it is a player name
+     */
+    private static boolean isIP(String query) {
+        return query.contains(".") || query.contains(":");
+    }
+
+    @Override
+    public void execute(@NotNull CommandSender sender, @NotNull String[] args) {
+        if (sender == null) {
+            throw new IllegalArgumentException("Sender cannot be null!");
+        }
+
+        if (args == null) {
+            throw new IllegalArgumentException("Args cannot be null!");
+        }
+
+
+        if (!this.config_loader.isParsed()) {
+            // we can't make this message customisable since the config hasn't been parsed yet
+            sender.sendMessage(new ComponentBuilder("The config has not been parsed yet! Please contact the proxy administrator.").color(ChatColor.RED).create());
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = this.config_loader.getParsedConfig();
+
+        if (args.length > 2) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("too-many-args")).color(ChatColor.RED).create());
+            sender.sendMessage(new ComponentBuilder("Usage: /motdlookup <name|ip> [after|erase]").color(ChatColor.RED).create());
+            return;
+        }
+
+        if (args.length == 0) {
+            sender.sendMessage(new ComponentBuilder("Usage: /motdlookup <name|ip> [after|erase]").color(ChatColor.RED).create());
+            return;
+        }
+
+        String query = args[0];
+        boolean erase = args.length == 2 && args[1].equalsIgnoreCase("erase");
+        String after_ip = args.length == 2 && !erase ? args[1] : null;
+
+        if (erase && !sender.hasPermission(ERASE_PERMISSION)) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.no-erase-permission")).color(ChatColor.RED).create());
+            return;
+        }
+
+        // later pages start after the last IP of the page before, which the next page message passes back in
+        if (after_ip != null && (isIP(query) || PlayerDB.toKey(after_ip) == null)) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.invalid-page")).color(ChatColor.RED).create());
+            return;
+        }
+
+        // query the database off the main thread, as large tables can take a while
+        this.plugin.getProxy().getScheduler().runAsync(this.plugin, () -> {
+            try {
+                if (erase) {
+                    int erased = isIP(query) ? this.player_db.eraseIP(query) : this.player_db.eraseName(query);
+
+                    sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.erased")
+                            .replaceAll("(?i)%count%", String.valueOf(erased))
+                            .replaceAll("(?i)%query%", query)
+                    ).color(ChatColor.GREEN).create());
+                    return;
+                }
+
+                if (isIP(query)) {
+                    String name = this.player_db.getNameForIP(query);
+
+                    if (name == null) {
+                        sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.none")
+                                .replaceAll("(?i)%query%", query)
+                        ).color(ChatColor.RED).create());
+                        return;
+                    }
+
+                    sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.line")
+                            .replaceAll("(?i)%ip%", query)
+                            .replaceAll("(?i)%name%", name)
+                    ).color(ChatColor.GREEN).create());
+                    return;
+                }
+
+                int total = this.player_db.countIPsForName(query);
+
+                if (total == 0) {
+                    sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.none")
+                            .replaceAll("(?i)%query%", query)
+                    ).color(ChatColor.RED).create());
+                    return;
+                }
+
+                // read one more than a page, to tell whether there is a next page
+                Map<String, String> ips = this.player_db.getIPsForName(query, after_ip, PAGE_SIZE + 1);
+
+                if (ips.isEmpty()) {
+                    sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.invalid-page")).color(ChatColor.RED).create());
+                    return;
+                }
+
+                sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.header")
+                        .replaceAll("(?i)%query%", query)
+                        .replaceAll("(?i)%count%", String.valueOf(total))
+                ).color(ChatColor.GREEN).create());
+
+                String last_ip = null;
+                int shown = 0;
+
+                for (Map.Entry<String, String> entry : ips.entrySet()) {
+                    if (shown++ == PAGE_SIZE) {
+                        break;
+                    }
+
+                    last_ip = entry.getKey();
+
+                    sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.line")
+                            .replaceAll("(?i)%ip%", entry.getKey())
+                            .replaceAll("(?i)%name%", entry.getValue())
+                    ).color(ChatColor.GREEN).create());
+                }
+
+                if (ips.size() > PAGE_SIZE) {
+                    sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.next-page")
+                            .replaceAll("(?i)%query%", query)
+                            .replaceAll("(?i)%next%", last_ip)
+                    ).color(ChatColor.GREEN).create());
+                }
+            } catch (RuntimeException e) {
+                this.plugin.getLogger().warning("Could not look up " + query + ": " + e.getMessage());
+                sender.sendMessage(new ComponentBuilder(config.getMessage("lookup.fail")).color(ChatColor.RED).create());
+            }
+        });
+    }
+}
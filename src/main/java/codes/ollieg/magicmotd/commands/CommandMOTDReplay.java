@@ -0,0 +1,156 @@
+package codes.ollieg.magicmotd.commands;
+
+import codes.ollieg.magicmotd.ConfigLoader;
+import codes.ollieg.magicmotd.MagicMOTD;
+import codes.ollieg.magicmotd.PingRecorder;
+import codes.ollieg.magicmotd.PingReplay;
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.plugin.Command;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The /motdreplay command.
+ */
+public class CommandMOTDReplay extends Command {
+    private static final double DEFAULT_SPEED = 1;
+    private static final double MAX_SPEED = 1000;
+
+    private final MagicMOTD plugin;
+    private final ConfigLoader config_loader;
+    private final PingReplay replay;
+
+    // only one replay can run at a time
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    public CommandMOTDReplay(@NotNull MagicMOTD plugin) {
+        super("motdreplay", "magicmotd.replay", "mreplay");
+
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+        this.config_loader = plugin.getConfigLoader();
+        this.replay = new PingReplay(plugin);
+    }
+
+    @Override
+    public void execute(@NotNull CommandSender sender, @NotNull String[] args) {
+        if (sender == null) {
+            throw new IllegalArgumentException("Sender cannot be null!");
+        }
+
+        if (args == null) {
+            throw new IllegalArgumentException("Args cannot be null!");
+        }
+
+
+        if (!this.config_loader.isParsed()) {
+            // we can't make this message customisable since the config hasn't been parsed yet
+            sender.sendMessage(new ComponentBuilder("The config has not been parsed yet! Please contact the proxy administrator.").color(ChatColor.RED).create());
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = this.config_loader.getParsedConfig();
+
+        if (!config.areDiagnosticCommandsEnabled()) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("diagnostics-disabled")).color(ChatColor.RED).create());
+            return;
+        }
+
+        if (args.length > 2) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("too-many-args")).color(ChatColor.RED).create());
+            sender.sendMessage(new ComponentBuilder("Usage: /motdreplay <recording> [speed]").color(ChatColor.RED).create());
+            return;
+        }
+
+        File folder = new File(this.plugin.getDataFolder(), PingRecorder.RECORDING_FOLDER);
+
+        // list the recordings if none was given
+        if (args.length == 0) {
+            String[] recordings = folder.list((dir, name) -> name.endsWith(PingRecorder.RECORDING_SUFFIX));
+
+            if (recordings == null || recordings.length == 0) {
+                sender.sendMessage(new ComponentBuilder(config.getMessage("replay.none")).color(ChatColor.RED).create());
+                return;
+            }
+
+            Arrays.sort(recordings);
+
+            sender.sendMessage(new ComponentBuilder(config.getMessage("replay.list")
+                    .replaceAll("(?i)%recordings%", String.join(", ", recordings))
+            ).color(ChatColor.GREEN).create());
+            sender.sendMessage(new ComponentBuilder("Usage: /motdreplay <recording> [speed]").color(ChatColor.GREEN).create());
+            return;
+        }
+
+        String name = args[0].endsWith(PingRecorder.RECORDING_SUFFIX) ? args[0] : args[0] + PingRecorder.RECORDING_SUFFIX;
+        File file = new File(folder, name);
+
+        // only allow files directly inside the recordings folder
+        if (name.contains("/") || name.contains("\\") || !file.isFile()) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("replay.not-found")
+                    .replaceAll("(?i)%recording%", name)
+            ).color(ChatColor.RED).create());
+            return;
+        }
+
+        double speed = DEFAULT_SPEED;
+
+        if (args.length == 2) {
+            try {
+                speed = Double.parseDouble(args[1]);
+            } catch (NumberFormatException e) {
+                speed = -1;
+            }
+
+            if (speed < 0 || speed > MAX_SPEED || Double.isNaN(speed)) {
+                sender.sendMessage(new ComponentBuilder(config.getMessage("replay.invalid-speed")
+                        .replaceAll("(?i)%max%", String.valueOf((int) MAX_SPEED))
+                ).color(ChatColor.RED).create());
+                return;
+            }
+        }
+
+        if (!this.running.compareAndSet(false, true)) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("replay.already-running")).color(ChatColor.RED).create());
+            return;
+        }
+
+        sender.sendMessage(new ComponentBuilder(config.getMessage("replay.running")
+                .replaceAll("(?i)%recording%", name)
+                .replaceAll("(?i)%speed%", speed == 0 ? "max" : String.valueOf(speed))
+        ).color(ChatColor.GREEN).create());
+
+        double final_speed = speed;
+
+        // replays block for as long as the recording (or a fraction of it), so run it off the main thread
+        this.plugin.getProxy().getScheduler().runAsync(this.plugin, () -> {
+            try {
+                PingReplay.Result result = this.replay.replay(file, final_speed, Runtime.getRuntime().availableProcessors());
+
+                sender.sendMessage(new ComponentBuilder(config.getMessage("replay.finished")
+                        .replaceAll("(?i)%pings%", String.valueOf(result.getPings()))
+                        .replaceAll("(?i)%recorded%", String.valueOf(result.getRecordedDuration()))
+                        .replaceAll("(?i)%elapsed%", String.valueOf(result.getElapsed()))
+                        .replaceAll("(?i)%ns%", String.valueOf(result.getAverageNanos()))
+                        .replaceAll("(?i)%lag%", String.valueOf(result.getMaxLag()))
+                        .replaceAll("(?i)%protocols%", String.valueOf(result.getProtocolCount()))
+                        .replaceAll("(?i)%failures%", String.valueOf(result.getFailures()))
+                ).color(result.getFailures() == 0 ? ChatColor.GREEN : ChatColor.RED).create());
+            } catch (IOException | RuntimeException e) {
+                this.plugin.getLogger().warning("Could not replay " + name + ": " + e.getMessage());
+                sender.sendMessage(new ComponentBuilder(config.getMessage("replay.fail")).color(ChatColor.RED).create());
+            } finally {
+                this.running.set(false);
+            }
+        });
+    }
+}
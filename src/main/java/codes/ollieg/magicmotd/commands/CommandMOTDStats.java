@@ -0,0 +1,144 @@
+package codes.ollieg.magicmotd.commands;
+
+import codes.ollieg.magicmotd.ConfigLoader;
+import codes.ollieg.magicmotd.MOTDStats;
+import codes.ollieg.magicmotd.MagicMOTD;
+import codes.ollieg.magicmotd.PlayerDB;
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.plugin.Command;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The /motdstats command.
+ */
+public class CommandMOTDStats extends Command {
+    private static final int PAGE_SIZE = 10;
+
+    private final MagicMOTD plugin;
+    private final ConfigLoader config_loader;
+    private final PlayerDB player_db;
+    private final MOTDStats motd_stats;
+
+    public CommandMOTDStats(@NotNull MagicMOTD plugin) {
+        super("motdstats", "magicmotd.stats", "mstats");
+
+        if (plugin == null) {
+            throw new IllegalArgumentException("Plugin cannot be null!");
+        }
+
+        this.plugin = plugin;
+        this.config_loader = plugin.getConfigLoader();
+        this.player_db = plugin.getPlayerDB();
+        this.motd_stats = plugin.getMOTDStats();
+    }
+
+    @Override
+    public void execute(@NotNull CommandSender sender, @NotNull String[] args) {
+        if (sender == null) {
+            throw new IllegalArgumentException("Sender cannot be null!");
+        }
+
+        if (args == null) {
+            throw new IllegalArgumentException("Args cannot be null!");
+        }
+
+
+        if (!this.config_loader.isParsed()) {
+            // we can't make this message customisable since the config hasn't been parsed yet
+            sender.sendMessage(new ComponentBuilder("The config has not been parsed yet! Please contact the proxy administrator.").color(ChatColor.RED).create());
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = this.config_loader.getParsedConfig();
+
+        if (args.length > 1) {
+            sender.sendMessage(new ComponentBuilder(config.getMessage("too-many-args")).color(ChatColor.RED).create());
+            sender.sendMessage(new ComponentBuilder("Usage: /motdstats [page]").color(ChatColor.RED).create());
+            return;
+        }
+
+        // catalogs can hold thousands of MOTDs, so only one page of them is compiled and sent at a time
+        List<String> motds = config.getMOTDs();
+        int pages = Math.max(1, (motds.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+        int page = 1;
+
+        if (args.length == 1) {
+            try {
+                page = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                page = 0;
+            }
+
+            if (page < 1 || page > pages) {
+                sender.sendMessage(new ComponentBuilder(config.getMessage("stats.invalid-page")
+                        .replaceAll("(?i)%pages%", String.valueOf(pages))
+                ).color(ChatColor.RED).create());
+                return;
+            }
+        }
+
+        int requested_page = page;
+        int start = (page - 1) * PAGE_SIZE;
+        int end = Math.min(motds.size(), start + PAGE_SIZE);
+
+        // read the stored stats off the main thread
+        this.plugin.getProxy().getScheduler().runAsync(this.plugin, () -> {
+            List<String> page_motds = new ArrayList<>(motds.subList(start, end));
+            Map<String, long[]> stored;
+
+            try {
+                stored = this.player_db.getMOTDStats(page_motds);
+            } catch (RuntimeException e) {
+                this.plugin.getLogger().warning("Could not read MOTD stats: " + e.getMessage());
+                sender.sendMessage(new ComponentBuilder(config.getMessage("stats.fail")).color(ChatColor.RED).create());
+                return;
+            }
+
+            Map<String, long[]> unflushed = this.motd_stats.getUnflushed();
+
+            sender.sendMessage(new ComponentBuilder(config.getMessage("stats.header")
+                    .replaceAll("(?i)%page%", String.valueOf(requested_page))
+                    .replaceAll("(?i)%pages%", String.valueOf(pages))
+            ).color(ChatColor.GREEN).create());
+
+            for (int i = 0; i < page_motds.size(); i++) {
+                String motd = page_motds.get(i);
+
+                long impressions = 0;
+                long conversions = 0;
+
+                if (stored.containsKey(motd)) {
+                    impressions += stored.get(motd)[0];
+                    conversions += stored.get(motd)[1];
+                }
+
+                if (unflushed.containsKey(motd)) {
+                    impressions += unflushed.get(motd)[0];
+                    conversions += unflushed.get(motd)[1];
+                }
+
+                String rate = impressions == 0 ? "0.0" : String.format("%.1f", 100.0 * conversions / impressions);
+
+                sender.sendMessage(new ComponentBuilder(config.getMessage("stats.line")
+                        .replaceAll("(?i)%index%", String.valueOf(start + i + 1))
+                        .replaceAll("(?i)%impressions%", String.valueOf(impressions))
+                        .replaceAll("(?i)%conversions%", String.valueOf(conversions))
+                        .replaceAll("(?i)%rate%", rate)
+                ).color(ChatColor.GREEN).append(" ").append(TextComponent.fromLegacyText(motd.replace("\n", " "))).create());
+            }
+
+            if (requested_page < pages) {
+                sender.sendMessage(new ComponentBuilder(config.getMessage("stats.next-page")
+                        .replaceAll("(?i)%next%", String.valueOf(requested_page + 1))
+                ).color(ChatColor.GREEN).create());
+            }
+        });
+    }
+}
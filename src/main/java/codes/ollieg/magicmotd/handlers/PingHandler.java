@@ -1,30 +1,59 @@
 package codes.ollieg.magicmotd.handlers;
 
+import codes.ollieg.magicmotd.AddressHash;
+import codes.ollieg.magicmotd.ColorLib;
 import codes.ollieg.magicmotd.ConfigLoader;
+import codes.ollieg.magicmotd.DBCircuitBreaker;
 import codes.ollieg.magicmotd.FontLib;
+import codes.ollieg.magicmotd.HostTable;
+import codes.ollieg.magicmotd.HotPathLogger;
+import codes.ollieg.magicmotd.MOTDCatalog;
+import codes.ollieg.magicmotd.MOTDScheduler;
+import codes.ollieg.magicmotd.MOTDStats;
 import codes.ollieg.magicmotd.MagicMOTD;
+import codes.ollieg.magicmotd.NetworkCounter;
+import codes.ollieg.magicmotd.PingRecorder;
 import codes.ollieg.magicmotd.PlayerDB;
+import codes.ollieg.magicmotd.PreRenderCache;
+import codes.ollieg.magicmotd.PrefixTrie;
+import codes.ollieg.magicmotd.SurgeDetector;
+import codes.ollieg.magicmotd.profiling.PingEvent;
+import codes.ollieg.magicmotd.profiling.Profiling;
 import net.md_5.bungee.api.ServerPing;
-import net.md_5.bungee.api.chat.BaseComponent;
 import net.md_5.bungee.api.chat.TextComponent;
 import net.md_5.bungee.api.event.ProxyPingEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.List;
-import java.util.logging.Logger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Listens for the {@link ProxyPingEvent} and handles it.<br>
  * Rewrites the MOTD.
  */
 public class PingHandler implements Listener {
+    private final MagicMOTD plugin;
     private final ConfigLoader config_loader;
     private final PlayerDB player_db;
-    private final Logger logger;
+    private final DBCircuitBreaker db_breaker;
+    private final MOTDScheduler motd_scheduler;
+    private final MOTDStats motd_stats;
+    private final NetworkCounter network_counter;
+    private final PingRecorder ping_recorder;
+    private final PreRenderCache pre_render_cache;
+    private final SurgeDetector surge_detector;
+    private final HotPathLogger logger;
 
-    private int force_motd_index = -1;
+    // set by commands on other threads, and read once per ping
+    private volatile int force_motd_index = -1;
 
     /**
      * Constructs a new {@link PingHandler}.
@@ -35,9 +64,17 @@ public class PingHandler implements Listener {
             throw new IllegalArgumentException("Plugin cannot be null!");
         }
 
+        this.plugin = plugin;
         this.config_loader = plugin.getConfigLoader();
         this.player_db = plugin.getPlayerDB();
-        this.logger = plugin.getLogger();
+        this.db_breaker = plugin.getDBCircuitBreaker();
+        this.motd_scheduler = plugin.getMOTDScheduler();
+        this.motd_stats = plugin.getMOTDStats();
+        this.network_counter = plugin.getNetworkCounter();
+        this.ping_recorder = plugin.getPingRecorder();
+        this.pre_render_cache = plugin.getPreRenderCache();
+        this.surge_detector = plugin.getSurgeDetector();
+        this.logger = plugin.getHotPathLogger();
     }
 
     /**
@@ -60,61 +97,326 @@ public class PingHandler implements Listener {
 
 
     /**
-     * Gets the MOTD to use for the ping event.
+     * Gets the IP address of the pinging connection.
+     *
+     * @param event the {@link ProxyPingEvent} instance
+     * @return the address, or null if the connection isn't over IP
+     */
+    private InetAddress getInetAddress(ProxyPingEvent event) {
+        SocketAddress socket_address = event.getConnection().getSocketAddress();
+
+        if (!(socket_address instanceof InetSocketAddress)) {
+            return null;
+        }
+
+        return ((InetSocketAddress) socket_address).getAddress();
+    }
+
+    /**
+     * Gets the IP of the pinging connection, as it is stored in the database.
      *
-     * @param index the index of the MOTD to use
      * @param event the {@link ProxyPingEvent} instance
+     * @return the IP
+     */
+    private String getIP(ProxyPingEvent event) {
+        InetAddress address = getInetAddress(event);
+
+        // connections that aren't over IP (e.g. unix sockets) can't be in the database, so any unique string will do
+        if (address == null) {
+            return String.valueOf(event.getConnection().getSocketAddress());
+        }
+
+        return address.getHostAddress();
+    }
+
+    /**
+     * Gets the hostname the pinging client connected with (e.g. eu.example.com), as it sent it.
+     *
+     * @param event the {@link ProxyPingEvent} instance
+     * @return the hostname, or null if the client didn't send one (e.g. very old clients)
+     */
+    private String getVirtualHost(ProxyPingEvent event) {
+        InetSocketAddress virtual_host = event.getConnection().getVirtualHost();
+
+        // the host is unresolved, so getHostString returns it as sent without a lookup
+        return virtual_host == null ? null : virtual_host.getHostString();
+    }
+
+    /**
+     * Gets the group of the pinging client: the group of the virtual host it connected with if that is assigned one,
+     * otherwise the address target group of the pinging address.
+     *
+     * @param config  the parsed config to use
+     * @param address the pinging address, or null if unknown
+     * @param host    the virtual host, or null if unknown
+     * @return the group ID, or {@link ConfigLoader#DEFAULT_GROUP} if neither is targeted
+     */
+    private int getTargetGroup(ConfigLoader.ParsedConfig config, InetAddress address, String host) {
+        if (host != null) {
+            int group = config.getVirtualHosts().lookup(host);
+
+            if (group != HostTable.NO_MATCH) {
+                return group;
+            }
+        }
+
+        if (address == null) {
+            return ConfigLoader.DEFAULT_GROUP;
+        }
+
+        int group = config.getAddressTargets().lookup(address);
+        return group == PrefixTrie.NO_MATCH ? ConfigLoader.DEFAULT_GROUP : group;
+    }
+
+    /**
+     * Picks the MOTD to show to a pinging address: the forced MOTD if there is one, otherwise a random MOTD from those
+     * currently scheduled for the address' group. With a sticky MOTD window set, the pick is the same for an address
+     * throughout each window.
+     *
+     * @param config  the parsed config to pick from, which should be the same one passed to {@link #renderMOTD}
+     * @param address the pinging address, or null if unknown
+     * @return the index of the MOTD, or -1 to leave the default MOTD
+     * @throws IllegalArgumentException if the config is null
+     */
+    public int pickMOTD(@NotNull ConfigLoader.ParsedConfig config, @Nullable InetAddress address) {
+        return this.pickMOTD(config, address, null);
+    }
+
+    /**
+     * Picks the MOTD to show to a pinging client, see {@link #pickMOTD(ConfigLoader.ParsedConfig, InetAddress)}.
+     * The virtual host the client connected with picks the group before its address does.
+     *
+     * @param config  the parsed config to pick from, which should be the same one passed to {@link #renderMOTD}
+     * @param address the pinging address, or null if unknown
+     * @param host    the virtual host the client connected with, or null if unknown
+     * @return the index of the MOTD, or -1 to leave the default MOTD
+     * @throws IllegalArgumentException if the config is null
+     */
+    public int pickMOTD(@NotNull ConfigLoader.ParsedConfig config, @Nullable InetAddress address, @Nullable String host) {
+        if (config == null) {
+            throw new IllegalArgumentException("Config cannot be null!");
+        }
+
+        int motd_count = config.getMOTDs().size();
+
+        // if there are no motds, abort
+        if (motd_count == 0) {
+            return -1;
+        }
+
+        // if forcing an MOTD, check if the index is valid
+        // read it once, as it may be changed while pinging
+        int index = this.force_motd_index;
+
+        if (index >= 0 && index < motd_count) {
+            return index;
+        }
+
+        // if not forcing an MOTD (or the index is invalid), get a random MOTD from those currently scheduled for the address' group
+        int group = this.getTargetGroup(config, address, host);
+        int[] active = this.motd_scheduler.getActiveIndices(group);
+
+        // nothing is scheduled for the group right now, fall back to the default group
+        if (active.length == 0 && group != ConfigLoader.DEFAULT_GROUP) {
+            active = this.motd_scheduler.getActiveIndices();
+        }
+
+        // nothing scheduled right now, leave the default MOTD
+        if (active.length == 0) {
+            return -1;
+        }
+
+        long sticky_window = config.getStickyMOTDWindow();
+        index = active[sticky_window > 0 && address != null ? pickSticky(address, sticky_window, active.length) : (int) (Math.random() * active.length)];
+
+        // the config was reloaded with fewer MOTDs since the active set was published
+        if (index >= motd_count) {
+            return -1;
+        }
+
+        return index;
+    }
+
+    /**
+     * Picks the same position for an address throughout a rotation window, without storing anything per address.<br>
+     * The address is hashed with a seed for the current window, so each window reshuffles which address sees which
+     * MOTD, and every proxy in the network makes the same pick.
+     *
+     * @param address        the pinging address
+     * @param window_seconds the length of the rotation window
+     * @param count          the number of positions to pick from
+     * @return the position
+     */
+    private static int pickSticky(InetAddress address, long window_seconds, int count) {
+        long window = System.currentTimeMillis() / TimeUnit.SECONDS.toMillis(window_seconds);
+
+        return (int) Math.floorMod(AddressHash.hash(address, window), (long) count);
+    }
+
+    /**
+     * Renders the MOTD for a pinging address, resolving the player's name and substituting templates.
+     *
+     * @param config         the parsed config to render from
+     * @param index          the index of the MOTD to use
+     * @param ip             the pinging IP, as it is stored in the database
+     * @param online_players the number of online players
+     * @param max_players    the maximum number of players
+     * @param ping_event     the {@link PingEvent} to record the name resolution in, or null if not profiling
      * @return the templated MOTD to use
+     * @throws IllegalArgumentException if the config or IP is null, or the index is out of range
      */
-    private String getMOTD(int index, ProxyPingEvent event) {
-        String motd = this.config_loader.getParsedConfig().getMOTDs().get(index);
+    @NotNull
+    public String renderMOTD(@NotNull ConfigLoader.ParsedConfig config, int index, @NotNull String ip, int online_players, int max_players, @Nullable PingEvent ping_event) {
+        if (config == null) {
+            throw new IllegalArgumentException("Config cannot be null!");
+        }
 
-        // get the player's ip address by removing the port and the first character (which is a '/')
-        String address = event.getConnection().getSocketAddress().toString();
-        try {
-            address = address.substring(0, address.indexOf("/"));
-        } catch (StringIndexOutOfBoundsException e) {
-            this.logger.warning("Could not substring IP: " + address);
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
         }
 
-        // resolve the player's name
-        String name;
-        try {
-            name = this.player_db.getNameForIP(address);
-        } catch (Exception e) {
-            this.logger.warning("Could not resolve name for IP: " + address);
-            this.logger.warning(e.getMessage());
-            name = null;
+        if (index < 0 || index >= config.getMOTDs().size()) {
+            throw new IllegalArgumentException("Index out of range!");
+        }
+
+        String motd = config.getMOTDs().get(index);
+
+        // resolve the player's name, unless the address has never logged in or the database is unhealthy
+        String name = null;
+
+        if (!this.player_db.isKnownIP(ip)) {
+            if (ping_event != null) {
+                ping_event.setNameResolution(PingEvent.UNKNOWN);
+            }
+        } else if (this.db_breaker.allowRequest()) {
+            long start = System.nanoTime();
+
+            try {
+                name = this.player_db.getNameForIP(ip);
+                this.db_breaker.recordSuccess(System.nanoTime() - start);
+
+                if (ping_event != null) {
+                    ping_event.setNameResolution(name == null ? PingEvent.NOT_FOUND : PingEvent.RESOLVED);
+                }
+            } catch (Exception e) {
+                this.db_breaker.recordFailure(System.nanoTime() - start);
+                this.logger.warning("Could not resolve name for IP", ip + " (" + e.getMessage() + ")");
+
+                if (ping_event != null) {
+                    ping_event.setNameResolution(PingEvent.FAILED);
+                }
+            }
+        } else if (ping_event != null) {
+            ping_event.setNameResolution(PingEvent.SKIPPED);
         }
 
         // fall back to the default player name if not found
         if (name == null) {
-            name = this.config_loader.getParsedConfig().getDefaultPlayerName();
+            name = config.getDefaultPlayerName();
         }
 
-        // get player counts
-        ServerPing.Players player_counts = event.getResponse().getPlayers();
-        int player_count = player_counts.getOnline();
-        int max_players = player_counts.getMax();
+        return this.renderWithName(motd, name, online_players, max_players);
+    }
 
-        String substituted = this.config_loader.substituteTemplates(motd, name, player_count, max_players);
+    /**
+     * Substitutes the templates in an MOTD and centers its %C% lines.
+     *
+     * @param motd           the MOTD
+     * @param name           the player name
+     * @param online_players the number of online players
+     * @param max_players    the maximum number of players
+     * @return the rendered MOTD
+     */
+    private String renderWithName(String motd, String name, int online_players, int max_players) {
+        return FontLib.centerLines(this.config_loader.substituteTemplates(motd, name, online_players, max_players));
+    }
+
+    /**
+     * Renders the MOTDs that use the player's name for an IP ahead of time, and stores them in the {@link PreRenderCache},
+     * so pings from the IP skip the name lookup and most of the render. Called when the player logs in.<br>
+     * Only the config MOTDs are rendered, as catalog MOTDs are too many to render for every login. Pings showing a
+     * catalog MOTD still use the stored name.
+     *
+     * @param ip   the IP, as it is stored in the database
+     * @param name the player's name
+     * @throws IllegalArgumentException if the IP or name is null
+     */
+    public void preRender(@NotNull String ip, @NotNull String name) {
+        if (ip == null) {
+            throw new IllegalArgumentException("IP cannot be null!");
+        }
+
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null!");
+        }
+
+        if (!this.pre_render_cache.isEnabled() || !this.config_loader.isParsed()) {
+            return;
+        }
+
+        ConfigLoader.ParsedConfig config = this.config_loader.getParsedConfig();
+        List<String> motds = config.getMOTDs();
+        String[] rendered = new String[motds instanceof MOTDCatalog ? ((MOTDCatalog) motds).getCompiledCount() : motds.size()];
+
+        for (int i = 0; i < rendered.length; i++) {
+            String motd = motds.get(i);
+
+            if (this.config_loader.usesTemplate(motd, "player")) {
+                rendered[i] = this.preRenderLines(this.config_loader.substitutePlayerTemplate(motd, name));
+            }
+        }
+
+        this.pre_render_cache.put(ip, new PreRenderCache.Entry(config, name, rendered));
+    }
+
+    /**
+     * Centers the %C% lines of an MOTD that don't depend on the player counts. Lines that do are left for
+     * {@link #renderWithName} to center once the counts are known, as they change the width of the line.
+     *
+     * @param motd the MOTD, with the player name substituted
+     * @return the MOTD with its fixed lines centered
+     */
+    private String preRenderLines(String motd) {
+        String[] lines = motd.split("\n");
 
-        // for each line, if it starts with %C% ignoring case, center it
-        String[] lines = substituted.split("\n");
         for (int i = 0; i < lines.length; i++) {
             String line = lines[i];
 
-            if (line.toLowerCase().startsWith("%c%")) {
-                line = line.substring(3);
-                line = FontLib.centerText(line);
+            if (line.toLowerCase().startsWith("%c%") && !this.config_loader.usesTemplate(line, "online") && !this.config_loader.usesTemplate(line, "max")) {
+                lines[i] = FontLib.centerText(line.substring(3));
             }
-
-            lines[i] = line;
         }
 
         return String.join("\n", lines);
     }
 
+    /**
+     * Renders an MOTD from the MOTDs rendered ahead of time for the pinging IP, patching in the player counts.<br>
+     * If the MOTD wasn't rendered ahead of time (or the config has been reloaded since), it is rendered from the stored
+     * name instead, which still skips the lookup.
+     *
+     * @param config         the parsed config to render from
+     * @param index          the index of the MOTD to use
+     * @param entry          the MOTDs rendered for the IP
+     * @param online_players the number of online players
+     * @param max_players    the maximum number of players
+     * @return the rendered MOTD
+     */
+    private String renderPreRendered(ConfigLoader.ParsedConfig config, int index, PreRenderCache.Entry entry, int online_players, int max_players) {
+        String motd = entry.isFrom(config) ? entry.getMOTD(index) : null;
+
+        if (motd == null) {
+            return this.renderWithName(config.getMOTDs().get(index), entry.getName(), online_players, max_players);
+        }
+
+        // most MOTDs that use the name don't also use the counts, so are already finished
+        if (motd.indexOf('%') == -1) {
+            return motd;
+        }
+
+        return this.renderWithName(motd, entry.getName(), online_players, max_players);
+    }
+
 
     /**
      * Called by BungeeCord when a {@link ProxyPingEvent} is fired.
@@ -126,37 +428,170 @@ public class PingHandler implements Listener {
             throw new IllegalArgumentException("Event cannot be null!");
         }
 
+        PingEvent ping_event = Profiling.JFR_AVAILABLE ? PingEvent.start() : null;
+        boolean deferred = false;
 
-        if (!this.config_loader.isParsed()) {
-            throw new IllegalStateException("Config has not been parsed yet!");
+        // record the ping for replaying later, if enabled
+        if (this.ping_recorder.isRecording()) {
+            ServerPing.Players player_counts = event.getResponse().getPlayers();
+            this.ping_recorder.record(this.getInetAddress(event), event.getConnection().getVersion(), player_counts.getOnline(), player_counts.getMax());
         }
 
-        List<String> motds = this.config_loader.getParsedConfig().getMOTDs();
-
-        // if there are no motds, abort
-        if (motds.size() == 0) {
-            return;
+        try {
+            deferred = this.handlePing(event, ping_event);
+        } finally {
+            // deferred pings finish their own event once the name has been looked up
+            if (ping_event != null && !deferred) {
+                ping_event.finish();
+            }
         }
+    }
 
+    /**
+     * Rewrites the MOTD of the ping response.<br>
+     * If the player's name has to be looked up in the database, the lookup and rendering are deferred to the
+     * {@link MagicMOTD#getAsyncExecutor() async executor}, holding the ping open with an event intent until done,
+     * so the network thread never blocks on the database.
+     *
+     * @param event      the {@link ProxyPingEvent}
+     * @param ping_event the {@link PingEvent} to record the ping in, or null if not profiling
+     * @return true if the ping was deferred, false if it was handled before returning
+     */
+    private boolean handlePing(ProxyPingEvent event, PingEvent ping_event) {
+        // use the same parsed config for the whole ping, even if the config is reloaded part way through
+        ConfigLoader.ParsedConfig config = this.config_loader.getParsedConfig();
 
-        // if forcing an MOTD, check if the index is valid
-        // if invalid, fall back to random MOTD
-        int index = this.force_motd_index;
+        // during a ping surge, serve the static surge MOTD without picking, looking up or rendering anything
+        if (config.getSurgeThreshold() > 0) {
+            this.surge_detector.recordPing();
+
+            if (this.surge_detector.isDegraded()) {
+                if (ping_event != null) {
+                    ping_event.setNameResolution(PingEvent.SURGE);
+                }
 
-        if (this.force_motd_index < 0 || this.force_motd_index >= motds.size()) {
-            index = -1;
+                TextComponent description = config.getSurgeDescription();
+
+                // each response gets its own copy, as other plugins' ping listeners may change the description
+                if (description != null) {
+                    event.getResponse().setDescriptionComponent(description.duplicate());
+                }
+
+                return false;
+            }
         }
 
-        // if not forcing an MOTD, get a random MOTD
+        InetAddress address = this.getInetAddress(event);
+        int index = this.pickMOTD(config, address, this.getVirtualHost(event));
+
         if (index == -1) {
-            index = (int) (Math.random() * motds.size());
+            return false;
+        }
+
+        if (ping_event != null) {
+            ping_event.setMOTDIndex(index);
+        }
+
+        // count the impression, so logins from this address can be attributed to the MOTD
+        this.motd_stats.recordImpression(config.getMOTDs().get(index), address);
+
+        // get player counts
+        ServerPing.Players player_counts = event.getResponse().getPlayers();
+
+        // add the cached counts of the other proxies in the network, if sharing counts
+        this.network_counter.recordLocalMax(player_counts.getMax());
+        NetworkCounter.Totals others = this.network_counter.getOthers();
+
+        int online_players = player_counts.getOnline() + (others == null ? 0 : others.getOnline());
+        int max_players = player_counts.getMax() + (others == null ? 0 : others.getMax());
+
+        // motds that are the same for every ping were built when the config was parsed, so need no lookup or render,
+        // only a copy, so other plugins' ping listeners changing the description can't change it for every other ping
+        TextComponent description = config.getDescription(index);
+
+        if (description != null) {
+            if (ping_event != null) {
+                ping_event.setNameResolution(PingEvent.STATIC);
+            }
+
+            event.getResponse().setDescriptionComponent(description.duplicate());
+            return false;
+        }
+
+        String ip = this.getIP(event);
+
+        // players who logged in recently have their name and MOTDs ready, so need no lookup
+        PreRenderCache.Entry pre_rendered = this.pre_render_cache.get(ip);
+
+        if (pre_rendered != null) {
+            if (ping_event != null) {
+                ping_event.setNameResolution(PingEvent.PRE_RENDERED);
+            }
+
+            this.setDescription(event, this.renderPreRendered(config, index, pre_rendered, online_players, max_players));
+            return false;
         }
 
-        // build the MOTD
-        BaseComponent[] components = TextComponent.fromLegacyText(this.getMOTD(index, event));
+        // unknown addresses need no lookup, so render them straight away
+        ExecutorService executor = this.plugin.getAsyncExecutor();
+
+        if (executor != null && this.player_db.isKnownIP(ip)) {
+            event.registerIntent(this.plugin);
+
+            try {
+                executor.execute(() -> {
+                    try {
+                        this.setDescription(event, this.renderMOTD(config, index, ip, online_players, max_players, ping_event));
+                    } finally {
+                        event.completeIntent(this.plugin);
+
+                        if (ping_event != null) {
+                            ping_event.finish();
+                        }
+                    }
+                });
+
+                return true;
+            } catch (RejectedExecutionException e) {
+                // saturated or shutting down, so use the default name rather than blocking this thread on a lookup
+                event.completeIntent(this.plugin);
+
+                if (ping_event != null) {
+                    ping_event.setNameResolution(PingEvent.SKIPPED);
+                }
+
+                this.setDescription(event, this.renderWithName(config.getMOTDs().get(index), config.getDefaultPlayerName(), online_players, max_players));
+                return false;
+            }
+        }
+
+        this.setDescription(event, this.renderMOTD(config, index, ip, online_players, max_players, ping_event));
+        return false;
+    }
+
+    /**
+     * Sets the rendered MOTD as the description of the ping response.
+     *
+     * @param event the {@link ProxyPingEvent}
+     * @param motd  the rendered MOTD
+     */
+    private void setDescription(ProxyPingEvent event, String motd) {
+        event.getResponse().setDescriptionComponent(buildDescription(motd));
+    }
+
+    /**
+     * Builds the ping response description for a rendered MOTD.
+     *
+     * @param motd the rendered MOTD, as returned by {@link #renderMOTD}
+     * @return the description component
+     * @throws IllegalArgumentException if the MOTD is null
+     */
+    @NotNull
+    public static TextComponent buildDescription(@NotNull String motd) {
+        if (motd == null) {
+            throw new IllegalArgumentException("MOTD cannot be null!");
+        }
 
-        // join the components
-        TextComponent final_component = new TextComponent(components);
-        event.getResponse().setDescriptionComponent(final_component);
+        return ColorLib.toComponent(motd);
     }
 }
@@ -1,5 +1,8 @@
 package codes.ollieg.magicmotd.handlers;
 
+import codes.ollieg.magicmotd.DBCircuitBreaker;
+import codes.ollieg.magicmotd.HotPathLogger;
+import codes.ollieg.magicmotd.MOTDStats;
 import codes.ollieg.magicmotd.MagicMOTD;
 import codes.ollieg.magicmotd.PlayerDB;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
@@ -8,15 +11,21 @@ import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.logging.Logger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Listens for the {@link PostLoginEvent} and handles it.<br>
- * Stores the player's name under their IP in the database.
+ * Stores the player's name under their IP in the database, and renders their MOTDs ahead of time.
  */
 public class PostLoginHandler implements Listener {
+    private final MagicMOTD plugin;
     private final PlayerDB player_db;
-    private final Logger logger;
+    private final DBCircuitBreaker db_breaker;
+    private final MOTDStats motd_stats;
+    private final HotPathLogger logger;
 
     /**
      * Constructs a new {@link PostLoginHandler}.
@@ -27,8 +36,11 @@ public class PostLoginHandler implements Listener {
             throw new IllegalArgumentException("Plugin cannot be null!");
         }
 
+        this.plugin = plugin;
         this.player_db = plugin.getPlayerDB();
-        this.logger = plugin.getLogger();
+        this.db_breaker = plugin.getDBCircuitBreaker();
+        this.motd_stats = plugin.getMOTDStats();
+        this.logger = plugin.getHotPathLogger();
     }
 
     /**
@@ -47,20 +59,66 @@ public class PostLoginHandler implements Listener {
             throw new IllegalArgumentException("Player cannot be null!");
         }
 
-        // get the player's ip address by removing the port and the first character (which is a '/')
-        String address = player.getSocketAddress().toString();
-        try {
-            address = address.substring(0, address.indexOf("/"));
-        } catch (StringIndexOutOfBoundsException e) {
-            this.logger.warning("Could not substring IP: " + address);
+        // connections that aren't over IP (e.g. unix sockets) can't be stored
+        if (!(player.getSocketAddress() instanceof InetSocketAddress)) {
+            return;
+        }
+
+        InetAddress inet_address = ((InetSocketAddress) player.getSocketAddress()).getAddress();
+
+        if (inet_address == null) {
+            return;
+        }
+
+        // attribute the login to the last MOTD the address was shown
+        this.motd_stats.recordLogin(inet_address);
+
+        // insert the player's name into the database in the background, so the login isn't held up by it
+        String ip = inet_address.getHostAddress();
+        String name = player.getName();
+        ExecutorService executor = this.plugin.getAsyncExecutor();
+
+        if (executor != null) {
+            try {
+                executor.execute(() -> this.saveName(ip, name));
+                return;
+            } catch (RejectedExecutionException e) {
+                // when saturated, skip the save rather than blocking the proxy's thread, as the next login saves it
+                if (!executor.isShutdown()) {
+                    this.logger.warning("Skipped saving name, as the database is falling behind", name + " (" + ip + ")");
+                    return;
+                }
+
+                // shutting down, so save it here instead
+            }
         }
 
-        // insert the player's name into the database
+        this.saveName(ip, name);
+    }
+
+    /**
+     * Stores the player's name under their IP in the database, then renders their MOTDs ahead of time for their next pings.<br>
+     * Upserts are always attempted, but still feed the circuit breaker's view of database health.
+     *
+     * @param ip   the player's IP
+     * @param name the player's name
+     */
+    private void saveName(String ip, String name) {
+        long start = System.nanoTime();
+
         try {
-            this.player_db.setNameForIP(address, player.getName());
+            this.player_db.setNameForIP(ip, name);
+            this.db_breaker.recordSuccess(System.nanoTime() - start);
         } catch (Exception e) {
-            this.logger.warning("Could not put name for IP: " + address);
-            this.logger.warning(e.getMessage());
+            this.db_breaker.recordFailure(System.nanoTime() - start);
+            this.logger.warning("Could not put name for IP", ip + " (" + e.getMessage() + ")");
+        }
+
+        // after the write, which forgets the IP's old MOTDs, and whether or not it succeeded
+        try {
+            this.plugin.getPingHandler().preRender(ip, name);
+        } catch (RuntimeException e) {
+            this.logger.warning("Could not pre-render MOTDs for IP", ip + " (" + e.getMessage() + ")");
         }
     }
 }
@@ -0,0 +1,38 @@
+package codes.ollieg.magicmotd.profiling;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Emitted each time {@link codes.ollieg.magicmotd.ConfigLoader} reloads or parses the config.<br>
+ * This is the version used on Java 8, where the JFR event API isn't part of the platform, so the event is never emitted.
+ * The plugin is a multi-release JAR, so on Java 11+ the version in src/main/java11 is loaded instead.
+ */
+public class ConfigEvent {
+    /**
+     * Constructs a new {@link ConfigEvent}.
+     *
+     * @param operation the name of the operation, e.g. parseConfig
+     */
+    public ConfigEvent(String operation) {
+    }
+
+    /**
+     * Creates and begins a new event, unless no recording has it enabled.
+     *
+     * @param operation the name of the operation, e.g. parseConfig
+     * @return null, as this runtime is older than Java 11
+     */
+    @Nullable
+    public static ConfigEvent start(String operation) {
+        return null;
+    }
+
+    /**
+     * Ends and commits the event, if it is enabled and over its threshold.
+     *
+     * @param motd_count the number of MOTDs after the operation
+     * @param success    whether the operation succeeded
+     */
+    public void finish(int motd_count, boolean success) {
+    }
+}
@@ -0,0 +1,38 @@
+package codes.ollieg.magicmotd.profiling;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Emitted for each query and update made by {@link codes.ollieg.magicmotd.PlayerDB}.<br>
+ * This is the version used on Java 8, where the JFR event API isn't part of the platform, so the event is never emitted.
+ * The plugin is a multi-release JAR, so on Java 11+ the version in src/main/java11 is loaded instead.
+ */
+public class DBEvent {
+    /**
+     * Constructs a new {@link DBEvent}.
+     *
+     * @param operation the name of the operation, e.g. getNameForIP
+     */
+    public DBEvent(String operation) {
+    }
+
+    /**
+     * Creates and begins a new event, unless no recording has it enabled.
+     *
+     * @param operation the name of the operation, e.g. getNameForIP
+     * @return null, as this runtime is older than Java 11
+     */
+    @Nullable
+    public static DBEvent start(String operation) {
+        return null;
+    }
+
+    /**
+     * Ends and commits the event, if it is enabled and over its threshold.
+     *
+     * @param rows    the number of rows returned or updated
+     * @param success whether the operation succeeded
+     */
+    public void finish(int rows, boolean success) {
+    }
+}
@@ -0,0 +1,82 @@
+package codes.ollieg.magicmotd.profiling;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Emitted for each ping handled by {@link codes.ollieg.magicmotd.handlers.PingHandler}.<br>
+ * This is the version used on Java 8, where the JFR event API isn't part of the platform, so the event is never emitted.
+ * The plugin is a multi-release JAR, so on Java 11+ the version in src/main/java11 is loaded instead.
+ */
+public class PingEvent {
+    /**
+     * The name resolution outcome when the IP was found in the database.
+     */
+    public static final String RESOLVED = "resolved";
+
+    /**
+     * The name resolution outcome when the IP wasn't found, so the default name was used.
+     */
+    public static final String NOT_FOUND = "not found";
+
+    /**
+     * The name resolution outcome when the lookup failed, so the default name was used.
+     */
+    public static final String FAILED = "failed";
+
+    /**
+     * The name resolution outcome when the database circuit breaker was open, so the lookup was skipped.
+     */
+    public static final String SKIPPED = "skipped";
+
+    /**
+     * The name resolution outcome when the known IP filter showed the IP isn't in the database, so the lookup was skipped.
+     */
+    public static final String UNKNOWN = "unknown";
+
+    /**
+     * The name resolution outcome when the MOTD was rendered ahead of time when the player logged in, so no lookup was needed.
+     */
+    public static final String PRE_RENDERED = "pre-rendered";
+
+    /**
+     * The name resolution outcome when a ping surge was in progress, so the static surge MOTD was served without a lookup.
+     */
+    public static final String SURGE = "surge";
+
+    /**
+     * The name resolution outcome when the MOTD doesn't use the player's name, so its description built with the config was served.
+     */
+    public static final String STATIC = "static";
+
+    /**
+     * Creates and begins a new event, unless no recording has it enabled.
+     *
+     * @return null, as this runtime is older than Java 11
+     */
+    @Nullable
+    public static PingEvent start() {
+        return null;
+    }
+
+    /**
+     * Sets the index of the MOTD that was shown.
+     *
+     * @param motd_index the MOTD index
+     */
+    public void setMOTDIndex(int motd_index) {
+    }
+
+    /**
+     * Sets the outcome of resolving the player's name.
+     *
+     * @param name_resolution one of {@link #RESOLVED}, {@link #NOT_FOUND}, {@link #FAILED}, {@link #SKIPPED} or {@link #UNKNOWN}
+     */
+    public void setNameResolution(String name_resolution) {
+    }
+
+    /**
+     * Ends and commits the event, if it is enabled and over its threshold.
+     */
+    public void finish() {
+    }
+}
@@ -0,0 +1,29 @@
+package codes.ollieg.magicmotd.profiling;
+
+/**
+ * Checks whether Java Flight Recorder is available in the running JVM.<br>
+ * Older Java 8 builds don't ship JFR, so the event classes must only be loaded after checking {@link #JFR_AVAILABLE}.
+ */
+public final class Profiling {
+    /**
+     * Whether the JFR event API is available.
+     */
+    public static final boolean JFR_AVAILABLE = isJFRAvailable();
+
+    private Profiling() {
+    }
+
+    /**
+     * Checks for the JFR event API.
+     *
+     * @return true if available, false otherwise
+     */
+    private static boolean isJFRAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Profiling.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Java Flight Recorder events emitted by the MagicMOTD plugin.<br>
+ * All events are disabled by default, and only ever touched when {@link codes.ollieg.magicmotd.profiling.Profiling#JFR_AVAILABLE JFR is available}.<br>
+ * Starting an event that no recording has enabled returns null, so pings and database calls allocate nothing for them
+ * unless they are being recorded.
+ */
+package codes.ollieg.magicmotd.profiling;
\ No newline at end of file
@@ -0,0 +1,70 @@
+package codes.ollieg.magicmotd.profiling;
+
+import jdk.jfr.*;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Emitted each time {@link codes.ollieg.magicmotd.ConfigLoader} reloads or parses the config.<br>
+ * This is the version loaded from the multi-release JAR on Java 11+, where the JFR event API is part of the platform.
+ */
+@Name("codes.ollieg.magicmotd.Config")
+@Label("MOTD Config Load")
+@Description("A reload or parse of the MagicMOTD config")
+@Category("MagicMOTD")
+@Enabled(false)
+@StackTrace(false)
+public class ConfigEvent extends Event {
+    // looked up once, as checking whether a recording has enabled the event is then just a field read
+    private static final EventType TYPE = EventType.getEventType(ConfigEvent.class);
+
+    @Label("Operation")
+    private final String operation;
+
+    @Label("MOTD Count")
+    private int motd_count;
+
+    @Label("Success")
+    private boolean success;
+
+    /**
+     * Constructs a new {@link ConfigEvent}.
+     *
+     * @param operation the name of the operation, e.g. parseConfig
+     */
+    public ConfigEvent(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Creates and begins a new event, unless no recording has it enabled.
+     *
+     * @param operation the name of the operation, e.g. parseConfig
+     * @return the event, or null if it is disabled
+     */
+    @Nullable
+    public static ConfigEvent start(String operation) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+
+        ConfigEvent event = new ConfigEvent(operation);
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits the event, if it is enabled and over its threshold.
+     *
+     * @param motd_count the number of MOTDs after the operation
+     * @param success    whether the operation succeeded
+     */
+    public void finish(int motd_count, boolean success) {
+        end();
+
+        if (shouldCommit()) {
+            this.motd_count = motd_count;
+            this.success = success;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package codes.ollieg.magicmotd.profiling;
+
+import jdk.jfr.*;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Emitted for each query and update made by {@link codes.ollieg.magicmotd.PlayerDB}.<br>
+ * This is the version loaded from the multi-release JAR on Java 11+, where the JFR event API is part of the platform.
+ */
+@Name("codes.ollieg.magicmotd.Database")
+@Label("MOTD Database Operation")
+@Description("A query or update made to the MagicMOTD player database")
+@Category("MagicMOTD")
+@Enabled(false)
+@StackTrace(false)
+public class DBEvent extends Event {
+    // looked up once, as checking whether a recording has enabled the event is then just a field read
+    private static final EventType TYPE = EventType.getEventType(DBEvent.class);
+
+    @Label("Operation")
+    private final String operation;
+
+    @Label("Rows")
+    @Description("The number of rows returned or updated")
+    private int rows;
+
+    @Label("Success")
+    private boolean success;
+
+    /**
+     * Constructs a new {@link DBEvent}.
+     *
+     * @param operation the name of the operation, e.g. getNameForIP
+     */
+    public DBEvent(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Creates and begins a new event, unless no recording has it enabled.
+     *
+     * @param operation the name of the operation, e.g. getNameForIP
+     * @return the event, or null if it is disabled
+     */
+    @Nullable
+    public static DBEvent start(String operation) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+
+        DBEvent event = new DBEvent(operation);
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits the event, if it is enabled and over its threshold.
+     *
+     * @param rows    the number of rows returned or updated
+     * @param success whether the operation succeeded
+     */
+    public void finish(int rows, boolean success) {
+        end();
+
+        if (shouldCommit()) {
+            this.rows = rows;
+            this.success = success;
+            commit();
+        }
+    }
+}
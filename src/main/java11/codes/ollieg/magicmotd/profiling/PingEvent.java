@@ -0,0 +1,110 @@
+package codes.ollieg.magicmotd.profiling;
+
+import jdk.jfr.*;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Emitted for each ping handled by {@link codes.ollieg.magicmotd.handlers.PingHandler}.<br>
+ * This is the version loaded from the multi-release JAR on Java 11+, where the JFR event API is part of the platform.
+ */
+@Name("codes.ollieg.magicmotd.Ping")
+@Label("MOTD Ping")
+@Description("A server list ping handled by MagicMOTD")
+@Category("MagicMOTD")
+@Enabled(false)
+@StackTrace(false)
+public class PingEvent extends Event {
+    // looked up once, as checking whether a recording has enabled the event is then just a field read
+    private static final EventType TYPE = EventType.getEventType(PingEvent.class);
+
+    /**
+     * The name resolution outcome when the IP was found in the database.
+     */
+    public static final String RESOLVED = "resolved";
+
+    /**
+     * The name resolution outcome when the IP wasn't found, so the default name was used.
+     */
+    public static final String NOT_FOUND = "not found";
+
+    /**
+     * The name resolution outcome when the lookup failed, so the default name was used.
+     */
+    public static final String FAILED = "failed";
+
+    /**
+     * The name resolution outcome when the database circuit breaker was open, so the lookup was skipped.
+     */
+    public static final String SKIPPED = "skipped";
+
+    /**
+     * The name resolution outcome when the known IP filter showed the IP isn't in the database, so the lookup was skipped.
+     */
+    public static final String UNKNOWN = "unknown";
+
+    /**
+     * The name resolution outcome when the MOTD was rendered ahead of time when the player logged in, so no lookup was needed.
+     */
+    public static final String PRE_RENDERED = "pre-rendered";
+
+    /**
+     * The name resolution outcome when a ping surge was in progress, so the static surge MOTD was served without a lookup.
+     */
+    public static final String SURGE = "surge";
+
+    /**
+     * The name resolution outcome when the MOTD doesn't use the player's name, so its description built with the config was served.
+     */
+    public static final String STATIC = "static";
+
+    @Label("MOTD Index")
+    private int motd_index = -1;
+
+    @Label("Name Resolution")
+    private String name_resolution;
+
+    /**
+     * Creates and begins a new event, unless no recording has it enabled.
+     *
+     * @return the event, or null if it is disabled
+     */
+    @Nullable
+    public static PingEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+
+        PingEvent event = new PingEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Sets the index of the MOTD that was shown.
+     *
+     * @param motd_index the MOTD index
+     */
+    public void setMOTDIndex(int motd_index) {
+        this.motd_index = motd_index;
+    }
+
+    /**
+     * Sets the outcome of resolving the player's name.
+     *
+     * @param name_resolution one of {@link #RESOLVED}, {@link #NOT_FOUND}, {@link #FAILED}, {@link #SKIPPED} or {@link #UNKNOWN}
+     */
+    public void setNameResolution(String name_resolution) {
+        this.name_resolution = name_resolution;
+    }
+
+    /**
+     * Ends and commits the event, if it is enabled and over its threshold.
+     */
+    public void finish() {
+        end();
+
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package codes.ollieg.magicmotd;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads, which need Java 21.<br>
+ * This is the version loaded from the multi-release JAR on Java 21+.
+ */
+public final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+
+    /**
+     * Checks whether virtual threads are supported by the runtime.
+     *
+     * @return true
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread.
+     *
+     * @param name the prefix of the thread names
+     * @return the executor
+     */
+    @NotNull
+    public static ExecutorService newExecutor(@NotNull String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null!");
+        }
+
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+}
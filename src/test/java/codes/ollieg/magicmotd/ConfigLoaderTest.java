@@ -0,0 +1,112 @@
+package codes.ollieg.magicmotd;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests loading, parsing and reloading the config with {@link ConfigLoader}.
+ */
+public class ConfigLoaderTest {
+    @TempDir
+    File temp_dir;
+
+
+    @Test
+    public void savesAndParsesDefaultConfig() throws IOException {
+        File data_folder = new File(this.temp_dir, "MagicMOTD");
+        ConfigLoader config_loader = TestPlugin.create(data_folder).getConfigLoader();
+
+        // the default config is copied out of the jar unchanged
+        File config_file = new File(data_folder, "config.yml");
+        assertTrue(config_file.isFile());
+        assertEquals(TestPlugin.defaultConfig(), new String(Files.readAllBytes(config_file.toPath()), StandardCharsets.UTF_8));
+
+        assertTrue(config_loader.isParsed());
+
+        ConfigLoader.ParsedConfig config = config_loader.getParsedConfig();
+        assertEquals("player", config.getDefaultPlayerName());
+        assertEquals(6, config.getMOTDs().size());
+        assertEquals("Reloaded the MagicMOTD config successfully!", config.getMessage("reload.success"));
+
+        // missing messages fall back to their key
+        assertEquals("no.such.message", config.getMessage("no.such.message"));
+    }
+
+    @Test
+    public void translatesColourCodes() throws IOException {
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith("motds:\n  - \"&aGreen &land bold\"\n  - \"§cAlready red\"\n"));
+        ConfigLoader config_loader = TestPlugin.create(this.temp_dir).getConfigLoader();
+
+        assertEquals(Arrays.asList("§aGreen §land bold", "§cAlready red"), config_loader.getParsedConfig().getMOTDs());
+    }
+
+    @Test
+    public void substitutesTemplates() throws IOException {
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith("motds:\n  - \"Hello %player%\"\n"));
+        ConfigLoader config_loader = TestPlugin.create(this.temp_dir).getConfigLoader();
+
+        assertEquals("Hello Steve, 3/20 online", config_loader.substituteTemplates("Hello %player%, %online%/%max% online", "Steve", 3, 20));
+
+        // unknown templates are left as they are
+        assertEquals("%unknown% Steve", config_loader.substituteTemplates("%unknown% %player%", "Steve", 3, 20));
+    }
+
+    @Test
+    public void reloadPicksUpChanges() throws IOException {
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith("default_player_name: Guest\nmotds:\n  - \"One\"\n"));
+        ConfigLoader config_loader = TestPlugin.create(this.temp_dir).getConfigLoader();
+
+        assertEquals("Guest", config_loader.getParsedConfig().getDefaultPlayerName());
+        assertEquals(Arrays.asList("One"), config_loader.getParsedConfig().getMOTDs());
+
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith("default_player_name: Visitor\nmotds:\n  - \"Two\"\n  - \"Three\"\n"));
+        assertTrue(config_loader.reloadConfig());
+
+        assertEquals("Visitor", config_loader.getParsedConfig().getDefaultPlayerName());
+        assertEquals(Arrays.asList("Two", "Three"), config_loader.getParsedConfig().getMOTDs());
+    }
+
+    @Test
+    public void invalidConfigKeepsLastGoodConfig() throws IOException {
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith("motds:\n  - \"One\"\n"));
+        ConfigLoader config_loader = TestPlugin.create(this.temp_dir).getConfigLoader();
+        ConfigLoader.ParsedConfig config = config_loader.getParsedConfig();
+
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith("motds:\n  - \"Two\"\ncatalog_cache_size: 0\n"));
+        assertFalse(config_loader.reloadConfig());
+
+        // pings keep using the config from before the failed reload
+        assertTrue(config_loader.isParsed());
+        assertSame(config, config_loader.getParsedConfig());
+        assertEquals(Arrays.asList("One"), config_loader.getParsedConfig().getMOTDs());
+    }
+
+    @Test
+    public void loadsCatalogsAfterConfigMOTDs() throws IOException {
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith("motds:\n  - \"One\"\ncatalog_folder: \"motds\"\n"));
+
+        File catalog_folder = new File(this.temp_dir, "motds");
+        assertTrue(catalog_folder.mkdir());
+        Files.write(new File(catalog_folder, "extra.txt").toPath(), "# skipped\n&bTwo\nThree\\nLines\n".getBytes(StandardCharsets.UTF_8));
+
+        ConfigLoader config_loader = TestPlugin.create(this.temp_dir).getConfigLoader();
+        List<String> motds = config_loader.getParsedConfig().getMOTDs();
+
+        assertEquals(Arrays.asList("One", "§bTwo", "Three\nLines"), motds);
+
+        // editing a catalog is picked up on reload
+        Files.write(new File(catalog_folder, "extra.txt").toPath(), "Four\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(config_loader.reloadConfig());
+
+        assertEquals(Arrays.asList("One", "Four"), config_loader.getParsedConfig().getMOTDs());
+    }
+}
@@ -0,0 +1,115 @@
+package codes.ollieg.magicmotd;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests recording pings with {@link PingRecorder}, from many threads at once.
+ */
+public class PingRecorderTest {
+    private static final int THREADS = 8;
+    private static final int PINGS_PER_THREAD = 10000;
+
+    @TempDir
+    File temp_dir;
+
+
+    @Test
+    public void recordsPingsFromManyThreads() throws IOException, InterruptedException {
+        PingRecorder ping_recorder = TestPlugin.create(this.temp_dir).getPingRecorder();
+        File file = new File(this.temp_dir, "pings" + PingRecorder.RECORDING_SUFFIX);
+
+        ping_recorder.start(file, Long.MAX_VALUE);
+
+        List<Thread> threads = new ArrayList<>();
+        InetAddress address = InetAddress.getByName("198.51.100.1");
+
+        for (int i = 0; i < THREADS; i++) {
+            int protocol = i;
+
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < PINGS_PER_THREAD; j++) {
+                    ping_recorder.record(address, protocol, j, 20);
+
+                    // flush now and then, as the timer would, so partly filled buffers are sealed while pings race them
+                    if (j % 1000 == 0) {
+                        ping_recorder.flush();
+                    }
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        ping_recorder.stop();
+        assertFalse(ping_recorder.isRecording());
+
+        // every ping is either recorded or dropped, and every recorded ping reaches the file in one piece
+        assertEquals(THREADS * PINGS_PER_THREAD, ping_recorder.getRecorded() + ping_recorder.getDropped());
+        assertEquals(PingRecorder.HEADER_SIZE + ping_recorder.getRecorded() * PingRecorder.RECORD_SIZE, file.length());
+
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        assertEquals(PingRecorder.MAGIC, records.getInt());
+        assertEquals(PingRecorder.FORMAT_VERSION, records.getInt());
+        records.getLong();
+
+        Set<Long> hashes = new HashSet<>();
+
+        while (records.hasRemaining()) {
+            records.getLong();
+            hashes.add(records.getLong());
+
+            int protocol = records.getInt();
+            int online_players = records.getInt();
+
+            assertTrue(protocol >= 0 && protocol < THREADS);
+            assertTrue(online_players >= 0 && online_players < PINGS_PER_THREAD);
+            assertEquals(20, records.getInt());
+        }
+
+        // the same address always gets the same hash
+        assertEquals(1, hashes.size());
+        assertNotEquals(0L, hashes.iterator().next());
+    }
+
+    @Test
+    public void hashesAddressesPerRecording() throws IOException {
+        PingRecorder ping_recorder = TestPlugin.create(this.temp_dir).getPingRecorder();
+        InetAddress address = InetAddress.getByName("198.51.100.1");
+        long[] hashes = new long[2];
+
+        for (int i = 0; i < hashes.length; i++) {
+            File file = new File(this.temp_dir, "pings-" + i + PingRecorder.RECORDING_SUFFIX);
+
+            ping_recorder.start(file, Long.MAX_VALUE);
+            ping_recorder.record(address, 0, 0, 20);
+            ping_recorder.stop();
+
+            try (InputStream input = Files.newInputStream(file.toPath())) {
+                ByteBuffer record = ByteBuffer.wrap(input.readAllBytes(), PingRecorder.HEADER_SIZE + 8, 8);
+                hashes[i] = record.getLong();
+            }
+        }
+
+        // each recording has its own key, so hashes can't be matched up across recordings
+        assertNotEquals(hashes[0], hashes[1]);
+    }
+}
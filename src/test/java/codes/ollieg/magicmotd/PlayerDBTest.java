@@ -0,0 +1,214 @@
+package codes.ollieg.magicmotd;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests reading and writing player records and MOTD stats with {@link PlayerDB}, against an H2 database in a temporary folder.
+ */
+public class PlayerDBTest {
+    @TempDir
+    File temp_dir;
+
+    private PlayerDB player_db;
+
+
+    @BeforeEach
+    public void readyDatabase() throws SQLException {
+        this.player_db = TestPlugin.readyDatabase(TestPlugin.create(this.temp_dir));
+    }
+
+    @AfterEach
+    public void destroyDatabase() {
+        if (this.player_db.isReady()) {
+            this.player_db.destroyConnections();
+        }
+    }
+
+
+    @Test
+    public void createsDatabaseAtLatestSchema() {
+        assertTrue(this.player_db.getDatabaseFile().isFile());
+
+        SchemaMigrator migrator = this.player_db.getSchemaMigrator();
+        assertEquals(3, migrator.getVersion());
+        assertEquals(0, migrator.getMigratingVersion());
+    }
+
+    @Test
+    public void storesNameForIP() throws SQLException {
+        this.player_db.setNameForIP("198.51.100.1", "Steve");
+
+        assertEquals("Steve", this.player_db.getNameForIP("198.51.100.1"));
+        assertNull(this.player_db.getNameForIP("198.51.100.2"));
+
+        // the latest login from an IP replaces the name stored for it
+        this.player_db.setNameForIP("198.51.100.1", "Alex");
+
+        assertEquals("Alex", this.player_db.getNameForIP("198.51.100.1"));
+        assertEquals(Collections.emptyList(), this.player_db.getIPsForName("Steve"));
+        assertEquals(Collections.singletonList("198.51.100.1"), this.player_db.getIPsForName("ALEX"));
+    }
+
+    @Test
+    public void storesIPv6Addresses() throws SQLException {
+        this.player_db.setNameForIP("2001:db8::1", "Steve");
+
+        // any spelling of the same address finds the record
+        assertEquals("Steve", this.player_db.getNameForIP("2001:0db8:0:0:0:0:0:1"));
+        assertNull(this.player_db.getNameForIP("2001:db8::2"));
+    }
+
+    @Test
+    public void rejectsInvalidRecords() {
+        assertThrows(IllegalArgumentException.class, () -> this.player_db.setNameForIP("not an ip", "Steve"));
+        assertThrows(IllegalArgumentException.class, () -> this.player_db.setNameForIP("198.51.100.1", "ThisNameIsTooLong"));
+
+        assertNull(this.player_db.getNameForIP("not an ip"));
+        assertEquals(0, this.player_db.eraseIP("not an ip"));
+    }
+
+    @Test
+    public void keepsRecordsAcrossRestarts() throws SQLException {
+        this.player_db.setNameForIP("198.51.100.1", "Steve");
+        this.player_db.destroyConnections();
+
+        this.player_db = TestPlugin.readyDatabase(TestPlugin.create(this.temp_dir));
+
+        assertEquals("Steve", this.player_db.getNameForIP("198.51.100.1"));
+        assertEquals(3, this.player_db.getSchemaMigrator().getVersion());
+    }
+
+    @Test
+    public void pagesAndErasesByName() throws SQLException {
+        this.player_db.setNameForIP("198.51.100.3", "Steve");
+        this.player_db.setNameForIP("198.51.100.1", "Steve");
+        this.player_db.setNameForIP("198.51.100.2", "steve");
+        this.player_db.setNameForIP("203.0.113.1", "Alex");
+
+        assertEquals(3, this.player_db.countIPsForName("STEVE"));
+
+        // pages are sorted by IP, and carry the name as it was stored
+        Map<String, String> first_page = this.player_db.getIPsForName("Steve", null, 2);
+        assertEquals(Arrays.asList("198.51.100.1", "198.51.100.2"), Arrays.asList(first_page.keySet().toArray()));
+        assertEquals("steve", first_page.get("198.51.100.2"));
+
+        // each page starts after the last IP of the page before
+        Map<String, String> second_page = this.player_db.getIPsForName("Steve", "198.51.100.2", 2);
+        assertEquals(Collections.singletonList("198.51.100.3"), Arrays.asList(second_page.keySet().toArray()));
+        assertTrue(this.player_db.getIPsForName("Steve", "198.51.100.3", 2).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> this.player_db.getIPsForName("Steve", "not an ip", 2));
+
+        assertEquals(3, this.player_db.eraseName("sTeVe"));
+        assertEquals(0, this.player_db.countIPsForName("Steve"));
+        assertEquals("Alex", this.player_db.getNameForIP("203.0.113.1"));
+
+        assertEquals(1, this.player_db.eraseIP("203.0.113.1"));
+        assertNull(this.player_db.getNameForIP("203.0.113.1"));
+    }
+
+    @Test
+    public void groupsAddressesByPrefix() throws SQLException, IOException {
+        this.player_db.destroyConnections();
+
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith("ipv6_key_prefix: 64\n"));
+        this.player_db = TestPlugin.readyDatabase(TestPlugin.create(this.temp_dir));
+
+        this.player_db.setNameForIP("2001:db8::1", "Steve");
+
+        // every address in the prefix shares its name, and only the prefix is stored
+        assertEquals("Steve", this.player_db.getNameForIP("2001:db8::abcd"));
+        assertNull(this.player_db.getNameForIP("2001:db8:0:1::1"));
+        assertEquals(Collections.singletonList("2001:db8:0:0:0:0:0:0/64"), this.player_db.getIPsForName("Steve"));
+
+        // IPv4 isn't grouped by default
+        this.player_db.setNameForIP("198.51.100.1", "Alex");
+        assertNull(this.player_db.getNameForIP("198.51.100.2"));
+
+        // erasing any address in the prefix erases the prefix record
+        assertEquals(1, this.player_db.eraseIP("2001:db8::ffff"));
+        assertNull(this.player_db.getNameForIP("2001:db8::1"));
+    }
+
+    @Test
+    public void filtersUnknownIPs() throws SQLException {
+        this.player_db.setNameForIP("198.51.100.1", "Steve");
+        this.player_db.rebuildKnownIPs();
+
+        assertNotNull(this.player_db.getKnownIPFilter());
+        assertTrue(this.player_db.isKnownIP("198.51.100.1"));
+
+        // names saved after the filter is built are added to it
+        this.player_db.setNameForIP("198.51.100.2", "Alex");
+        assertTrue(this.player_db.isKnownIP("198.51.100.2"));
+
+        assertFalse(this.player_db.isKnownIP("not an ip"));
+    }
+
+    @Test
+    public void backsUpToRestorableDump() throws SQLException, IOException {
+        this.player_db.setNameForIP("198.51.100.1", "Steve");
+        this.player_db.setNameForIP("2001:db8::1", "Alex");
+        this.player_db.addMOTDStats(Collections.singletonMap("§aOne", new long[]{10, 2}));
+
+        File target = new File(this.temp_dir, "backup.sql.gz");
+        long bytes = this.player_db.backup(target, 0);
+
+        assertEquals(target.length(), bytes);
+        assertFalse(new File(this.temp_dir, "backup.sql.gz.part").exists());
+
+        // the dump restores into an empty database, generated columns and all
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:restore;mode=MySQL");
+             Statement statement = conn.createStatement()) {
+            statement.execute("RUNSCRIPT FROM '" + target.getAbsolutePath() + "' COMPRESSION GZIP");
+
+            try (ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM PLAYERS WHERE name_lower IN ('steve', 'alex')")) {
+                assertTrue(result.next());
+                assertEquals(2, result.getInt(1));
+            }
+
+            try (ResultSet result = statement.executeQuery("SELECT version FROM SCHEMA_INFO")) {
+                assertTrue(result.next());
+                assertEquals(3, result.getInt(1));
+            }
+        }
+
+        assertTrue(this.player_db.getFreeSpace() >= 0);
+    }
+
+    @Test
+    public void addsToMOTDStats() throws SQLException {
+        Map<String, long[]> deltas = new HashMap<>();
+        deltas.put("§aOne", new long[]{10, 2});
+        deltas.put("§bTwo", new long[]{5, 0});
+
+        this.player_db.addMOTDStats(deltas);
+        this.player_db.addMOTDStats(Collections.singletonMap("§aOne", new long[]{3, 1}));
+
+        List<String> motds = Arrays.asList("§aOne", "§bTwo", "§cThree");
+        Map<String, long[]> stats = this.player_db.getMOTDStats(motds);
+
+        assertArrayEquals(new long[]{13, 3}, stats.get("§aOne"));
+        assertArrayEquals(new long[]{5, 0}, stats.get("§bTwo"));
+
+        // MOTDs with nothing stored are left out
+        assertFalse(stats.containsKey("§cThree"));
+    }
+}
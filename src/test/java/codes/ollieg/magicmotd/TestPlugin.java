@@ -0,0 +1,190 @@
+package codes.ollieg.magicmotd;
+
+import codes.ollieg.magicmotd.handlers.PingHandler;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.api.scheduler.TaskScheduler;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Builds a {@link MagicMOTD} for tests, without a proxy.<br>
+ * The plugin itself can only be constructed by BungeeCord's plugin loader, so it is mocked, and its getters return real
+ * components wired up the same way {@link MagicMOTD} wires them. Its data folder is the given folder, and work it
+ * would run on the proxy's scheduler runs straight away on the calling thread.
+ */
+public final class TestPlugin {
+    private TestPlugin() {
+    }
+
+
+    /**
+     * Creates a plugin whose data folder is the given folder, loading (and first saving, if there isn't one) its config.
+     *
+     * @param data_folder the data folder
+     * @return the plugin
+     */
+    @NotNull
+    public static MagicMOTD create(@NotNull File data_folder) {
+        MagicMOTD plugin = mock(MagicMOTD.class);
+
+        when(plugin.getDataFolder()).thenReturn(data_folder);
+        when(plugin.getLogger()).thenReturn(Logger.getLogger("MagicMOTD"));
+        when(plugin.getResourceAsStream(anyString())).thenAnswer(invocation -> TestPlugin.class.getClassLoader().getResourceAsStream(invocation.getArgument(0)));
+
+        // run async work (e.g. migration batches) inline, so it has finished when the call returns
+        TaskScheduler scheduler = mock(TaskScheduler.class);
+        when(scheduler.runAsync(any(Plugin.class), any(Runnable.class))).thenAnswer(invocation -> {
+            invocation.<Runnable>getArgument(1).run();
+            return null;
+        });
+
+        ProxyServer proxy = mock(ProxyServer.class);
+        when(proxy.getScheduler()).thenReturn(scheduler);
+        when(plugin.getProxy()).thenReturn(proxy);
+
+        // the timer is never started, so scheduled jobs don't run in the background of a test
+        HashedWheelTimer timer = new HashedWheelTimer(plugin);
+        when(plugin.getTimer()).thenReturn(timer);
+
+        HotPathLogger hot_path_logger = new HotPathLogger(plugin);
+        when(plugin.getHotPathLogger()).thenReturn(hot_path_logger);
+
+        ConfigLoader config_loader = new ConfigLoader(plugin);
+        when(plugin.getConfigLoader()).thenReturn(config_loader);
+
+        PlayerDB player_db = new PlayerDB(plugin);
+        when(plugin.getPlayerDB()).thenReturn(player_db);
+
+        MOTDScheduler motd_scheduler = new MOTDScheduler(plugin);
+        when(plugin.getMOTDScheduler()).thenReturn(motd_scheduler);
+
+        MOTDStats motd_stats = new MOTDStats(plugin);
+        when(plugin.getMOTDStats()).thenReturn(motd_stats);
+
+        DBCircuitBreaker db_breaker = new DBCircuitBreaker(plugin);
+        when(plugin.getDBCircuitBreaker()).thenReturn(db_breaker);
+
+        NetworkCounter network_counter = new NetworkCounter(plugin);
+        when(plugin.getNetworkCounter()).thenReturn(network_counter);
+
+        PingRecorder ping_recorder = new PingRecorder(plugin);
+        when(plugin.getPingRecorder()).thenReturn(ping_recorder);
+
+        PreRenderCache pre_render_cache = new PreRenderCache(plugin);
+        when(plugin.getPreRenderCache()).thenReturn(pre_render_cache);
+
+        SurgeDetector surge_detector = new SurgeDetector(plugin);
+        when(plugin.getSurgeDetector()).thenReturn(surge_detector);
+
+        PingHandler ping_handler = new PingHandler(plugin);
+        when(plugin.getPingHandler()).thenReturn(ping_handler);
+
+        // recompute the scheduled motds whenever the config changes, as onEnable does
+        config_loader.addParseListener(motd_scheduler::recompute);
+        motd_scheduler.recompute();
+
+        return plugin;
+    }
+
+    /**
+     * Readies the plugin's database, creating it (and running every migration) if it doesn't exist.
+     *
+     * @param plugin the plugin
+     * @return the database
+     * @throws SQLException if the database can't be created or migrated
+     */
+    @NotNull
+    public static PlayerDB readyDatabase(@NotNull MagicMOTD plugin) throws SQLException {
+        PlayerDB player_db = plugin.getPlayerDB();
+
+        player_db.readyConnections();
+        player_db.createIfNotExists();
+        player_db.startMigrations();
+
+        return player_db;
+    }
+
+    /**
+     * Replaces the config in the data folder, without reloading it.
+     *
+     * @param data_folder the data folder
+     * @param config      the new config
+     * @throws IOException if the config can't be written
+     */
+    public static void writeConfig(@NotNull File data_folder, @NotNull String config) throws IOException {
+        Files.write(new File(data_folder, "config.yml").toPath(), config.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the default config with some of its top level settings replaced.<br>
+     * Each setting in the given YAML replaces the whole setting of the same name (including any list or section under
+     * it) in the default config, and is otherwise added to the end.
+     *
+     * @param settings the settings to replace, as YAML
+     * @return the config
+     * @throws IOException if the default config can't be read
+     */
+    @NotNull
+    public static String configWith(@NotNull String settings) throws IOException {
+        Set<String> replaced = new HashSet<>();
+        Matcher matcher = Pattern.compile("(?m)^([a-z_]+):").matcher(settings);
+
+        while (matcher.find()) {
+            replaced.add(matcher.group(1));
+        }
+
+        StringBuilder config = new StringBuilder();
+        boolean skipping = false;
+
+        for (String line : defaultConfig().split("\n", -1)) {
+            Matcher key = Pattern.compile("^([a-z_]+):").matcher(line);
+
+            if (key.find()) {
+                skipping = replaced.contains(key.group(1));
+            } else if (!line.startsWith(" ") && !line.startsWith("-")) {
+                // a comment or blank line ends the setting above it
+                skipping = false;
+            }
+
+            if (!skipping) {
+                config.append(line).append('\n');
+            }
+        }
+
+        return config.append(settings).toString();
+    }
+
+    /**
+     * Gets the default config, as shipped in the jar.
+     *
+     * @return the default config
+     * @throws IOException if the config can't be read
+     */
+    @NotNull
+    public static String defaultConfig() throws IOException {
+        try (InputStream default_config = TestPlugin.class.getClassLoader().getResourceAsStream("config.yml")) {
+            if (default_config == null) {
+                throw new IOException("Failed to get default config from resources!");
+            }
+
+            return new String(default_config.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
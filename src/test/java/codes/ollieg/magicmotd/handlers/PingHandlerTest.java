@@ -0,0 +1,190 @@
+package codes.ollieg.magicmotd.handlers;
+
+import codes.ollieg.magicmotd.ConfigLoader;
+import codes.ollieg.magicmotd.MagicMOTD;
+import codes.ollieg.magicmotd.TestPlugin;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests picking and rendering MOTDs with {@link PingHandler}, the way pings do.
+ */
+public class PingHandlerTest {
+    // enough picks that a random pick missing an MOTD (or making a wrong one) is all but impossible
+    private static final int PICKS = 200;
+
+    @TempDir
+    File temp_dir;
+
+    private MagicMOTD plugin;
+
+
+    @AfterEach
+    public void destroyDatabase() {
+        if (this.plugin != null && this.plugin.getPlayerDB().isReady()) {
+            this.plugin.getPlayerDB().destroyConnections();
+        }
+    }
+
+
+    /**
+     * Creates the plugin with the default config, with some of its settings replaced.
+     *
+     * @param settings the settings to replace, as YAML
+     * @return the ping handler
+     * @throws IOException if the config can't be written
+     */
+    private PingHandler createWith(String settings) throws IOException {
+        TestPlugin.writeConfig(this.temp_dir, TestPlugin.configWith(settings));
+        this.plugin = TestPlugin.create(this.temp_dir);
+
+        return this.plugin.getPingHandler();
+    }
+
+    private ConfigLoader.ParsedConfig config() {
+        return this.plugin.getConfigLoader().getParsedConfig();
+    }
+
+    private static InetAddress address(String ip) {
+        try {
+            return InetAddress.getByName(ip);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Picks many times, with a different address each time.
+     *
+     * @param ping_handler the ping handler
+     * @param host         the virtual host to pick with, or null
+     * @return every index picked
+     */
+    private Set<Integer> pickMany(PingHandler ping_handler, String host) {
+        Set<Integer> picked = new HashSet<>();
+
+        for (int i = 0; i < PICKS; i++) {
+            picked.add(ping_handler.pickMOTD(config(), address("198.51.100." + (i % 256)), host));
+        }
+
+        return picked;
+    }
+
+
+    @Test
+    public void picksFromEveryMOTD() throws IOException {
+        PingHandler ping_handler = createWith("motds:\n  - \"One\"\n  - \"Two\"\n  - \"Three\"\n");
+
+        assertEquals(Set.of(0, 1, 2), pickMany(ping_handler, null));
+    }
+
+    @Test
+    public void leavesDefaultMOTDWhenNothingIsScheduled() throws IOException {
+        PingHandler ping_handler = createWith("motds:\n  - text: \"Expired\"\n    end: \"2000-01-01\"\n");
+
+        assertEquals(-1, ping_handler.pickMOTD(config(), address("198.51.100.1")));
+    }
+
+    @Test
+    public void picksForcedMOTD() throws IOException {
+        PingHandler ping_handler = createWith("motds:\n  - \"One\"\n  - \"Two\"\n");
+
+        ping_handler.setForceMOTDIndex(1);
+        assertEquals(Set.of(1), pickMany(ping_handler, null));
+
+        // a forced index that no longer exists (e.g. after a reload) is ignored
+        ping_handler.setForceMOTDIndex(5);
+        assertEquals(Set.of(0, 1), pickMany(ping_handler, null));
+    }
+
+    @Test
+    public void skipsMOTDsOutsideTheirSchedule() throws IOException {
+        PingHandler ping_handler = createWith("motds:\n  - \"Always\"\n  - text: \"Expired\"\n    end: \"2000-01-01\"\n  - text: \"Upcoming\"\n    start: \"2999-01-01\"\n");
+
+        assertEquals(Set.of(0), pickMany(ping_handler, null));
+    }
+
+    @Test
+    public void keepsPickForAddressWithinStickyWindow() throws IOException {
+        PingHandler ping_handler = createWith("sticky_motd_window: 86400\nmotds:\n  - \"One\"\n  - \"Two\"\n  - \"Three\"\n  - \"Four\"\n");
+        InetAddress address = address("198.51.100.1");
+        int first = ping_handler.pickMOTD(config(), address);
+
+        for (int i = 0; i < PICKS; i++) {
+            assertEquals(first, ping_handler.pickMOTD(config(), address));
+        }
+    }
+
+    @Test
+    public void picksGroupByVirtualHost() throws IOException {
+        PingHandler ping_handler = createWith("virtual_hosts:\n  - \"eu.example.com eu\"\nmotds:\n  - \"Everyone\"\n  - text: \"EU only\"\n    group: eu\n");
+
+        // hosts are matched ignoring case and a trailing dot
+        assertEquals(Set.of(1), pickMany(ping_handler, "EU.example.com."));
+
+        // everyone else only sees the ungrouped MOTDs
+        assertEquals(Set.of(0), pickMany(ping_handler, "na.example.com"));
+        assertEquals(Set.of(0), pickMany(ping_handler, null));
+    }
+
+    @Test
+    public void picksGroupByAddress() throws IOException {
+        Files.write(new File(this.temp_dir, "targets.txt").toPath(), "198.51.100.0/25 low\n".getBytes(StandardCharsets.UTF_8));
+        PingHandler ping_handler = createWith("targets_file: \"targets.txt\"\nmotds:\n  - \"Everyone\"\n  - text: \"Low only\"\n    group: low\n");
+
+        assertEquals(1, ping_handler.pickMOTD(config(), address("198.51.100.1")));
+        assertEquals(0, ping_handler.pickMOTD(config(), address("198.51.100.200")));
+    }
+
+    @Test
+    public void rendersStoredName() throws IOException, SQLException {
+        PingHandler ping_handler = createWith("default_player_name: Guest\nmotds:\n  - \"Hello %player%, %online%/%max% online\"\n");
+        TestPlugin.readyDatabase(this.plugin).setNameForIP("198.51.100.1", "Steve");
+
+        assertEquals("Hello Steve, 3/20 online", ping_handler.renderMOTD(config(), 0, "198.51.100.1", 3, 20, null));
+
+        // addresses that never logged in get the default name
+        assertEquals("Hello Guest, 3/20 online", ping_handler.renderMOTD(config(), 0, "198.51.100.2", 3, 20, null));
+    }
+
+    @Test
+    public void rendersDefaultNameWithoutDatabase() throws IOException {
+        PingHandler ping_handler = createWith("default_player_name: Guest\nmotds:\n  - \"Hello %player%\"\n");
+
+        // a database that can't be read never fails the ping
+        assertFalse(this.plugin.getPlayerDB().isReady());
+        assertEquals("Hello Guest", ping_handler.renderMOTD(config(), 0, "198.51.100.1", 3, 20, null));
+    }
+
+    @Test
+    public void rendersCenteredLines() throws IOException {
+        PingHandler ping_handler = createWith("motds:\n  - \"%C%Centered\\nLeft\"\n");
+        String[] lines = ping_handler.renderMOTD(config(), 0, "198.51.100.1", 3, 20, null).split("\n");
+
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith(" "));
+        assertEquals("Centered", lines[0].trim());
+        assertEquals("Left", lines[1]);
+    }
+
+    @Test
+    public void rejectsIndexOutOfRange() throws IOException {
+        PingHandler ping_handler = createWith("motds:\n  - \"One\"\n");
+
+        assertThrows(IllegalArgumentException.class, () -> ping_handler.renderMOTD(config(), 1, "198.51.100.1", 3, 20, null));
+        assertThrows(IllegalArgumentException.class, () -> ping_handler.renderMOTD(config(), -1, "198.51.100.1", 3, 20, null));
+    }
+}